@@ -0,0 +1,318 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.beatunes.BeaTunesProperties;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Minimal client for the AcousticBrainz low-level submission and count endpoints.
+ * Connections are kept alive and reused by {@link HttpURLConnection}'s connection cache,
+ * as long as every response is read completely and connections are never explicitly disconnected.
+ * Asynchronous submissions share a small thread pool, which caps the number of requests in flight.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class AcousticBrainzClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AcousticBrainzClient.class);
+    private static final String DEFAULT_BASE_URL = "https://acousticbrainz.org/api/v1/";
+    private static final int CHUNK_SIZE = 8 * 1024;
+    // stay below the default of http.maxConnections (5), so that all connections can be kept alive
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    /** Maximum number of MBIDs per count request, as defined by the API. */
+    static final int MAX_COUNT_BATCH_SIZE = 25;
+
+    private final String baseURL;
+    private final String userAgent;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Client for the server configured with the system property {@code abzsubmit.server},
+     * by default {@code https://acousticbrainz.org/api/v1/}.
+     */
+    AcousticBrainzClient() {
+        this(System.getProperty("abzsubmit.server", DEFAULT_BASE_URL));
+    }
+
+    /**
+     * @param baseURL API base URL, ending with a slash
+     */
+    AcousticBrainzClient(final String baseURL) {
+        this(baseURL, null);
+    }
+
+    /**
+     * @param baseURL API base URL, ending with a slash
+     * @param userAgent user agent, {@code null} for the one beaTunes uses
+     */
+    AcousticBrainzClient(final String baseURL, final String userAgent) {
+        this(baseURL, userAgent, Integer.getInteger("abzsubmit.upload.maxInFlight", DEFAULT_MAX_IN_FLIGHT));
+    }
+
+    /**
+     * @param baseURL API base URL, ending with a slash
+     * @param userAgent user agent, {@code null} for the one beaTunes uses
+     * @param maxInFlight maximum number of asynchronous submissions in flight
+     */
+    AcousticBrainzClient(final String baseURL, final String userAgent, final int maxInFlight) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.baseURL = baseURL;
+        this.userAgent = userAgent;
+        this.executor = new ThreadPoolExecutor(Math.max(1, maxInFlight), Math.max(1, maxInFlight),
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz HTTP " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stops accepting asynchronous submissions and interrupts the ones in flight.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private String getUserAgent() {
+        return userAgent != null ? userAgent : BeaTunesProperties.getInstance().getUserAgent();
+    }
+
+    /**
+     * Posts an already gzip-compressed low-level document asynchronously.
+     * If the maximum number of submissions is already in flight, the submission waits for a free slot.
+     *
+     * @param mbid MBID
+     * @param gzippedJson gzip-compressed extractor output
+     * @return future response. Completes exceptionally with an {@link IOException},
+     * if the connection fails, or with a {@link RejectedExecutionException} after {@link #shutdown()}.
+     */
+    CompletableFuture<Response> submitAsync(final String mbid, final Path gzippedJson) {
+        return submitAsync(mbid, out -> Files.copy(gzippedJson, out));
+    }
+
+    /**
+     * Posts an already gzip-compressed low-level document asynchronously.
+     * If the maximum number of submissions is already in flight, the submission waits for a free slot.
+     *
+     * @param mbid MBID
+     * @param gzippedJson writes the gzip-compressed extractor output
+     * @return future response. Completes exceptionally with an {@link IOException},
+     * if the connection fails, or with a {@link RejectedExecutionException} after {@link #shutdown()}.
+     */
+    CompletableFuture<Response> submitAsync(final String mbid, final Body gzippedJson) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(submit(mbid, gzippedJson));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Posts an already gzip-compressed low-level document.
+     * The body is streamed with chunked transfer encoding.
+     *
+     * @param mbid MBID
+     * @param gzippedJson gzip-compressed extractor output
+     * @return response
+     * @throws IOException if the connection fails
+     */
+    Response submit(final String mbid, final Path gzippedJson) throws IOException {
+        return submit(mbid, out -> Files.copy(gzippedJson, out));
+    }
+
+    /**
+     * Posts an already gzip-compressed low-level document.
+     * The body is streamed with chunked transfer encoding.
+     *
+     * @param mbid MBID
+     * @param gzippedJson writes the gzip-compressed extractor output
+     * @return response
+     * @throws IOException if the connection fails
+     */
+    Response submit(final String mbid, final Body gzippedJson) throws IOException {
+        final URL url = new URL(baseURL + mbid.toLowerCase() + "/low-level");
+        if (LOG.isDebugEnabled()) LOG.debug("Posting to " + url);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(10000);
+        connection.setConnectTimeout(5000);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("User-Agent", getUserAgent());
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        connection.setRequestProperty("Content-Type", "application/json");
+        // don't buffer the whole body
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+
+        try (final OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream(), CHUNK_SIZE)) {
+            gzippedJson.writeTo(outputStream);
+        }
+        final int responseCode = connection.getResponseCode();
+        if (responseCode != 200 && responseCode != 201) {
+            return new Response(responseCode, connection.getResponseMessage(), readErrorMessage(connection));
+        }
+        // read the body, so that the connection can be reused
+        try (final InputStream in = connection.getInputStream()) {
+            drain(in);
+        }
+        return new Response(responseCode, connection.getResponseMessage(), null);
+    }
+
+    /**
+     * Looks up how many low-level submissions exist for the given recordings.
+     *
+     * @param mbids up to {@link #MAX_COUNT_BATCH_SIZE} MBIDs
+     * @return submission counts by lower case MBID. MBIDs without submissions map to 0.
+     * @throws IOException if the lookup fails
+     */
+    Map<String, Integer> getCounts(final Collection<String> mbids) throws IOException {
+        if (mbids.size() > MAX_COUNT_BATCH_SIZE) throw new IllegalArgumentException("Too many MBIDs: " + mbids.size());
+        final Map<String, Integer> counts = new HashMap<>();
+        if (mbids.isEmpty()) return counts;
+        final String ids = mbids.stream().map(String::toLowerCase).collect(Collectors.joining(";"));
+        final URL url = new URL(baseURL + "count?recording_ids=" + URLEncoder.encode(ids, "UTF-8"));
+        if (LOG.isDebugEnabled()) LOG.debug("Requesting " + url);
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(10000);
+        connection.setConnectTimeout(5000);
+        connection.setRequestProperty("User-Agent", getUserAgent());
+        connection.setRequestProperty("Accept", "application/json");
+        final int responseCode = connection.getResponseCode();
+        if (responseCode != 200) {
+            throw new IOException("Failed to get submission counts. " + responseCode + ": "
+                + connection.getResponseMessage() + ". " + readErrorMessage(connection));
+        }
+        final JSONObject json;
+        try (final InputStream in = connection.getInputStream()) {
+            json = (JSONObject) new JSONParser().parse(new InputStreamReader(in, StandardCharsets.UTF_8));
+            drain(in);
+        } catch (ParseException e) {
+            throw new IOException("Failed to parse submission counts: " + e, e);
+        }
+        for (final String mbid : mbids) {
+            final Object entry = json.get(mbid.toLowerCase());
+            int count = 0;
+            if (entry instanceof JSONObject && ((JSONObject) entry).get("count") instanceof Number) {
+                count = ((Number) ((JSONObject) entry).get("count")).intValue();
+            }
+            counts.put(mbid.toLowerCase(), count);
+        }
+        return counts;
+    }
+
+    private static String readErrorMessage(final HttpURLConnection connection) throws IOException {
+        final InputStream errorStream = connection.getErrorStream();
+        // no body at all
+        if (errorStream == null) return "";
+        final byte[] b = new byte[1024*4];
+        int read = 0;
+        try (final InputStream in = errorStream) {
+            int n;
+            while (read < b.length && (n = in.read(b, read, b.length - read)) != -1) {
+                read += n;
+            }
+            drain(in);
+        }
+        String message = new String(b, 0, read, StandardCharsets.US_ASCII);
+        LOG.error(message);
+        if (message.contains("\"message\":")) {
+            try {
+                final JSONParser parser = new JSONParser();
+                final JSONObject object = (JSONObject)parser.parse(message);
+                message = (String)object.get("message");
+            } catch (Exception e) {
+                LOG.error(e.toString(), e);
+            }
+        }
+        return message;
+    }
+
+    private static void drain(final InputStream in) throws IOException {
+        final byte[] b = new byte[1024*4];
+        while (in.read(b) != -1) {
+            // discard
+        }
+    }
+
+    /**
+     * Request body, written directly to the connection.
+     */
+    interface Body {
+
+        /**
+         * @param out connection output stream
+         * @throws IOException if writing fails
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Server response.
+     */
+    static final class Response {
+
+        private final int code;
+        private final String responseMessage;
+        private final String errorMessage;
+
+        Response(final int code, final String responseMessage, final String errorMessage) {
+            this.code = code;
+            this.responseMessage = responseMessage;
+            this.errorMessage = errorMessage;
+        }
+
+        int getCode() {
+            return code;
+        }
+
+        boolean isSuccess() {
+            return code == 200 || code == 201;
+        }
+
+        /**
+         * Server errors, timeouts and rate limiting are worth another try,
+         * other client errors are not.
+         *
+         * @return true, if the submission may succeed later
+         */
+        boolean isRetryable() {
+            return code >= 500 || code == 408 || code == 429;
+        }
+
+        @Override
+        public String toString() {
+            return code + ": " + responseMessage + (errorMessage == null ? "" : ". " + errorMessage);
+        }
+    }
+}
@@ -11,7 +11,6 @@ import com.tagtraum.audiokern.AudioMetaData;
 import com.tagtraum.audiokern.AudioSong;
 import com.tagtraum.audiokern.StandardAudioId;
 import com.tagtraum.beatunes.BeaTunes;
-import com.tagtraum.beatunes.BeaTunesProperties;
 import com.tagtraum.beatunes.analysis.AnalysisException;
 import com.tagtraum.beatunes.analysis.AudioAnalysisTask;
 import com.tagtraum.beatunes.analysis.Task;
@@ -19,34 +18,34 @@ import com.tagtraum.beatunes.messages.Message;
 import com.tagtraum.beatunes.onlinedb.OnlineDB;
 import com.tagtraum.core.FileId;
 import com.tagtraum.core.FileUtilities;
-import com.tagtraum.core.OperatingSystem;
 import com.tagtraum.core.ProgressListener;
 import org.jetbrains.annotations.NotNull;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.persistence.Entity;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.nio.file.attribute.PosixFilePermission;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import static java.nio.file.attribute.PosixFilePermission.*;
+import static com.beatunes.acousticbrainz.Extractor.ESSENTIA_BUILD_SHA;
+import static com.beatunes.acousticbrainz.Extractor.OK;
+import static com.beatunes.acousticbrainz.Extractor.OUTPUT_BYTES;
+import static com.beatunes.acousticbrainz.Extractor.THIRTY_MINUTES;
 
 /**
  * AcousticBrainzSubmit.
+ * Extractor processes run in a shared {@link ExtractorPool}, configured via {@link AcousticBrainzSubmitEditor}.
  *
  * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
  */
@@ -54,23 +53,34 @@ import static java.nio.file.attribute.PosixFilePermission.*;
 public class AcousticBrainzSubmit extends AudioAnalysisTask {
 
     private static final Logger LOG = LoggerFactory.getLogger(AcousticBrainzSubmit.class);
-    // SHA-1 to be used on submission profile
-    private static final String ESSENTIA_BUILD_SHA = OperatingSystem.isMac() ? "cead25079874084f62182a551b7393616cd33d87" : "2d9f1f26377add8aeb1075a9c2973f962c4f09fd";
-    private static final String STREAMING_EXTRACTOR_MUSIC = "streaming_extractor_music" + (OperatingSystem.isMac() ? "" : ".exe");
-    private static final String PROFILE_YAML = "profile.yaml";
-    private static final int OK = 0;
-    private static final int THIRTY_MINUTES = 1000 * 60 * 30;
-    private static Path executable;
+    private static final String CONCURRENCY = "concurrency";
+    private static final int DEFAULT_CONCURRENCY = Runtime.getRuntime().availableProcessors();
+    private static final ExtractorPool POOL = new ExtractorPool(DEFAULT_CONCURRENCY);
+    private static final LoadGovernor GOVERNOR = new LoadGovernor(POOL);
+    private static final long DEFAULT_CACHE_SIZE = 1024L * 1024L * 1024L;
+    private static final ExtractorCache CACHE = createCache();
+    private static final String SKIP_THRESHOLD = "skipThreshold";
+    private static final String SEGMENT_LONG_TRACKS = "segmentLongTracks";
+    private static final String OFFLINE = "offline";
+    private static final String BACKGROUND = "background";
+    private static final String FILL_KEY_AND_TEMPO = "fillKeyAndTempo";
+    private static final String SHORT_TRACKS_FIRST = "shortTracksFirst";
+    // roughly the data rate of lossless files, which take longer to decode than lossy ones
+    private static final long BYTES_PER_MS = 88L;
+    private static final AcousticBrainzClient CLIENT = new AcousticBrainzClient();
+    private static final CoverageChecker COVERAGE = new CoverageChecker(CLIENT);
+    private static final Outbox OUTBOX = new Outbox(dataDirectory("outbox"), CLIENT);
+    private static final MBIDResolver RESOLVER = new MBIDResolver(dataDirectory(null).resolve("mbids.tsv"));
+    private static final Archive ARCHIVE = createArchive();
+    private static final ScratchSpace SCRATCH = ScratchSpace.fromSystemProperties();
+    private static final SubmissionLedger LEDGER = new SubmissionLedger(dataDirectory(null).resolve("submitted.tsv"));
+    private static final EmbeddedIdCache TAGS = new EmbeddedIdCache(dataDirectory(null).resolve("tags.tsv"));
+    private static final BatchJournal JOURNAL = new BatchJournal(dataDirectory(null).resolve("journal.tsv"));
+    private static final boolean RESUME = Boolean.parseBoolean(System.getProperty("abzsubmit.journal", "true"));
+    private static final boolean DEDUPLICATE = Boolean.parseBoolean(System.getProperty("abzsubmit.ledger", "true"));
+    private static volatile boolean mbidViaProfile = !Boolean.getBoolean("abzsubmit.copyForMBID");
     private static boolean hookRegistered;
 
-    static {
-        try {
-            executable = extractBinary();
-        } catch (Exception e) {
-            LOG.error(e.toString(), e);
-        }
-    }
-
     public AcousticBrainzSubmit() {
         setProgressRelevant(true);
     }
@@ -102,14 +112,60 @@ public class AcousticBrainzSubmit extends AudioAnalysisTask {
     private void registerShutdownHook() {
         synchronized (AcousticBrainzSubmit.class) {
             if (!hookRegistered) {
-                getApplication().addShutdownHook(() -> {
-                    final Path executableParent = executable.getParent();
-                    if (LOG.isDebugEnabled()) LOG.debug("Deleting temporary AcousticBrainz binaries from " + executableParent);
-                    try {
-                        FileUtilities.deleteRecursively(executableParent);
-                    } catch (Exception e) {
-                        LOG.error("Failure while deleting temporary AcousticBrainz binaries " + executableParent, e);
+                // report uploads that failed for good and resume uploads from earlier sessions
+                OUTBOX.setListener(new Outbox.Listener() {
+                    @Override
+                    public void uploaded(final Outbox.Entry entry) {
+                        if (LOG.isDebugEnabled()) LOG.debug("Submitted '" + entry.getSongName() + "' (" + entry.getMbid() + ") to AcousticBrainz.");
+                        LEDGER.record(entry.getMbid(), ESSENTIA_BUILD_SHA);
+                        JOURNAL.uploaded(entry.getSongId());
+                    }
+
+                    @Override
+                    public void failed(final Outbox.Entry entry, final String reason, final boolean permanent) {
+                        LEDGER.release(entry.getMbid(), ESSENTIA_BUILD_SHA);
+                        // otherwise the outbox tries again after the next start, the track stays extracted
+                        if (permanent) JOURNAL.rejected(entry.getSongId(), null, null, reason);
+                        getMessagePanel().addMessage(new Message(
+                            getApplication().localize("Analysis"),
+                            "Failed to submit '" + entry.getSongName() + "' to AcousticBrainz. " + reason
+                                + (permanent ? "" : ". Trying again, when beaTunes is started the next time."),
+                            entry.getSongId()
+                        ));
                     }
+                });
+                OUTBOX.start();
+                RESOLVER.setLookup(this::lookupMBID);
+                try {
+                    SCRATCH.start();
+                } catch (IOException e) {
+                    LOG.error("Failed to create scratch directory in " + SCRATCH.getRoot(), e);
+                }
+                SubmitMetrics.startReporting();
+                // in background mode, fewer extractors run while the user is listening
+                final boolean[] paused = {false};
+                final boolean[] hasSong = {false};
+                getApplication().getPlayer().addPropertyChangeListener("paused", e -> {
+                    paused[0] = Boolean.TRUE.equals(e.getNewValue());
+                    GOVERNOR.setPlaying(hasSong[0] && !paused[0]);
+                });
+                getApplication().getPlayer().addPropertyChangeListener("song", e -> {
+                    hasSong[0] = e.getNewValue() != null;
+                    GOVERNOR.setPlaying(hasSong[0] && !paused[0]);
+                });
+                getApplication().addShutdownHook(() -> {
+                    GOVERNOR.stop();
+                    POOL.shutdown();
+                    OUTBOX.shutdown();
+                    CLIENT.shutdown();
+                    RESOLVER.shutdown();
+                    ARCHIVE.close();
+                    SCRATCH.shutdown();
+                    LEDGER.close();
+                    CACHE.close();
+                    TAGS.shutdown();
+                    JOURNAL.close();
+                    SubmitMetrics.stopReporting();
                     return true;
                 });
                 hookRegistered = true;
@@ -117,99 +173,544 @@ public class AcousticBrainzSubmit extends AudioAnalysisTask {
         }
     }
 
+    /**
+     * Number of extractor processes that may run at the same time.
+     * Defaults to the number of available processors.
+     *
+     * @return concurrency, at least 1
+     */
+    public int getConcurrency() {
+        final String s = getProperty(CONCURRENCY);
+        if (s != null) {
+            try {
+                return Math.max(1, Integer.parseInt(s));
+            } catch (Exception e) {
+                LOG.error(e.toString(), e);
+            }
+        }
+        return DEFAULT_CONCURRENCY;
+    }
+
+    /**
+     * Persistently stores the number of extractor processes that may run at the same time.
+     *
+     * @param concurrency concurrency, at least 1
+     */
+    public void setConcurrency(final int concurrency) {
+        setProperty(CONCURRENCY, Integer.toString(Math.max(1, concurrency)));
+    }
+
+    /**
+     * Recordings that already have at least this many low-level submissions on AcousticBrainz are skipped.
+     * {@code 0} means, never skip.
+     *
+     * @return threshold
+     */
+    public int getSkipThreshold() {
+        final String s = getProperty(SKIP_THRESHOLD);
+        if (s != null) {
+            try {
+                return Math.max(0, Integer.parseInt(s));
+            } catch (Exception e) {
+                LOG.error(e.toString(), e);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Persistently stores the submission count threshold, at which recordings are skipped.
+     *
+     * @param skipThreshold threshold, {@code 0} for never
+     */
+    public void setSkipThreshold(final int skipThreshold) {
+        setProperty(SKIP_THRESHOLD, Integer.toString(Math.max(0, skipThreshold)));
+    }
+
+    /**
+     * Indicates, whether tracks longer than 30 minutes are analyzed in segments.
+     * Otherwise they are skipped.
+     *
+     * @return true, if long tracks are analyzed in segments
+     */
+    public boolean isSegmentLongTracks() {
+        return Boolean.parseBoolean(getProperty(SEGMENT_LONG_TRACKS));
+    }
+
+    /**
+     * Persistently stores, whether tracks longer than 30 minutes are analyzed in segments.
+     *
+     * @param segmentLongTracks true, if long tracks are analyzed in segments
+     */
+    public void setSegmentLongTracks(final boolean segmentLongTracks) {
+        setProperty(SEGMENT_LONG_TRACKS, Boolean.toString(segmentLongTracks));
+    }
+
+    /**
+     * Indicates, whether results are archived for a later upload with {@link ArchiveUploader}
+     * instead of being uploaded right away, e.g. on machines without network access.
+     *
+     * @return true, if results are archived
+     */
+    public boolean isOffline() {
+        return Boolean.parseBoolean(getProperty(OFFLINE));
+    }
+
+    /**
+     * Persistently stores, whether results are archived instead of uploaded.
+     *
+     * @param offline true, if results are archived
+     */
+    public void setOffline(final boolean offline) {
+        setProperty(OFFLINE, Boolean.toString(offline));
+    }
+
+    /**
+     * Indicates, whether extractors run at low priority and their number is adapted to
+     * the system load and whether beaTunes is playing.
+     *
+     * @return true, if extractors run in the background
+     */
+    public boolean isBackground() {
+        return Boolean.parseBoolean(getProperty(BACKGROUND));
+    }
+
+    /**
+     * Persistently stores, whether extractors run in the background.
+     *
+     * @param background true, if extractors run in the background
+     */
+    public void setBackground(final boolean background) {
+        setProperty(BACKGROUND, Boolean.toString(background));
+    }
+
+    /**
+     * Indicates, whether missing key and tempo values are set from the extractor results,
+     * so that beaTunes doesn't have to analyze the file again.
+     *
+     * @return true, if key and tempo are set
+     */
+    public boolean isFillKeyAndTempo() {
+        return Boolean.parseBoolean(getProperty(FILL_KEY_AND_TEMPO));
+    }
+
+    /**
+     * Persistently stores, whether missing key and tempo values are set from the extractor results.
+     *
+     * @param fillKeyAndTempo true, if key and tempo are set
+     */
+    public void setFillKeyAndTempo(final boolean fillKeyAndTempo) {
+        setProperty(FILL_KEY_AND_TEMPO, Boolean.toString(fillKeyAndTempo));
+    }
+
+    /**
+     * Indicates, whether short tracks are analyzed before long ones that are waiting, so that
+     * more tracks are done in less time. Long tracks are still analyzed, just a little later.
+     *
+     * @return true, if short tracks are analyzed first
+     */
+    public boolean isShortTracksFirst() {
+        return Boolean.parseBoolean(getProperty(SHORT_TRACKS_FIRST));
+    }
+
+    /**
+     * Persistently stores, whether short tracks are analyzed first.
+     *
+     * @param shortTracksFirst true, if short tracks are analyzed first
+     */
+    public void setShortTracksFirst(final boolean shortTracksFirst) {
+        setProperty(SHORT_TRACKS_FIRST, Boolean.toString(shortTracksFirst));
+    }
+
+    @Override
+    public Task createDeepCopy() {
+        final AcousticBrainzSubmit copy = new AcousticBrainzSubmit();
+        copy.setConcurrency(getConcurrency());
+        copy.setSkipThreshold(getSkipThreshold());
+        copy.setSegmentLongTracks(isSegmentLongTracks());
+        copy.setOffline(isOffline());
+        copy.setBackground(isBackground());
+        copy.setFillKeyAndTempo(isFillKeyAndTempo());
+        copy.setShortTracksFirst(isShortTracksFirst());
+        copy.setUseOnlineResources(isUseOnlineResources());
+        for (final Task subTask:getTasks()) {
+            copy.add(subTask.createDeepCopy());
+        }
+        return copy;
+    }
+
     @Override
     public void runBefore(final Task task) throws AnalysisException {
         final AudioSong song = getSong();
         if (song != null && song.getFile() != null) {
             // AC submit tends to crash for very long tracks and
             // the results aren't meaningful anyway, because of averaging.
-            // Therefore we do not submit anything that's longer than 30min
-            if (song.getTotalTime() >= THIRTY_MINUTES) {
+            // Therefore we do not submit anything that's longer than 30min,
+            // unless we are asked to analyze it in segments
+            if (song.getTotalTime() >= THIRTY_MINUTES && !isSegmentLongTracks()) {
                 if (LOG.isDebugEnabled()) LOG.debug("Skipping track, because it is too long: " + song);
                 return;
             }
-            final List<Path> filesToDelete = new ArrayList<>();
+            // resume an interrupted batch
+            if (RESUME && JOURNAL.isDone(song.getId(), ESSENTIA_BUILD_SHA, getLastModified(song))) {
+                if (LOG.isDebugEnabled()) LOG.debug("Skipping track, because it was already dealt with: " + song);
+                SubmitMetrics.increment("journal.skip");
+                return;
+            }
+            final ProgressListener progressListener = getAnalysisProgress().getOperationProgressListener();
+            final Set<String> mbids = getMBIDs(song);
+            // let the coverage check ask for this song, when it asks for songs ahead of it in the queue
+            final boolean precheck = getSkipThreshold() > 0 && !isOffline();
+            if (mbids.isEmpty()) {
+                // resolve the MBID in the background, while songs ahead of this one are analyzed
+                RESOLVER.register(song, mbid -> {
+                    if (precheck) COVERAGE.register(mbid);
+                });
+            } else if (precheck) {
+                mbids.forEach(COVERAGE::register);
+            }
+            if (song.getTotalTime() < THIRTY_MINUTES) {
+                // read the embedded MBIDs, while songs ahead of this one are analyzed
+                TAGS.prewarm(song.getFile(), file -> getMBIDs(song.getImplementation(AudioMetaData.class)));
+            }
+            // the job reports progress to this song's operation, until the song is handed off
+            final AtomicBoolean handedOff = new AtomicBoolean();
+            Future<?> future = null;
             try {
-                final String mbid = getMBID(song);
-                if (mbid != null) {
-                    process(song, mbid, filesToDelete);
+                if (isBackground()) {
+                    // the configured concurrency is used, when the machine is idle
+                    GOVERNOR.setMaximum(getConcurrency());
+                    GOVERNOR.start();
                 } else {
-                    getMessagePanel().addMessage(new Message(
-                        getApplication().localize("Analysis"),
-                        "Failed to submit '" + song.getName() + "' to AcousticBrainz. Unable to find MusicBrainz ID.",
-                        song.getId()
-                    ));
+                    GOVERNOR.stop();
+                    POOL.setSize(getConcurrency());
                 }
-            } catch (Exception e) {
+                POOL.setShortestJobFirst(isShortTracksFirst());
+                // blocks until the pool admits the song. with just one extractor, we wait for the result,
+                // so that progress is reported as usual. otherwise we hand the song off and let the queue
+                // move on, so that up to the configured number of extractors run at the same time.
+                // messages are posted by the job and carry the song's id
+                future = POOL.submit(() -> submit(song, progress -> {
+                    if (!handedOff.get()) progressListener.progress(progress);
+                }), estimateCost(song));
+                if (getConcurrency() == 1) future.get();
+            } catch (InterruptedException e) {
+                // the analysis was cancelled, stop the extractor as well
+                if (future != null) future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new AnalysisException(e);
+            } catch (ExecutionException e) {
                 LOG.error(e.toString(), e);
+            } finally {
+                handedOff.set(true);
+                progressListener.progress(1f);
+            }
+        } else {
+            getMessagePanel().addMessage(new Message(
+                getApplication().localize("Analysis"),
+                "Failed to submit '" + song.getName() + "' to AcousticBrainz. File not found.",
+                song.getId()
+            ));
+        }
+    }
+
+    /**
+     * Runs the extractor for the given song and submits the results.
+     * Any problems are reported to the message panel, nothing is thrown.
+     *
+     * @param song song
+     * @param progress progress callback for the current operation
+     */
+    private void submit(final AudioSong song, final Consumer<Float> progress) {
+        try {
+            final String mbid;
+            try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("mbid")) {
+                mbid = getMBID(song);
+            }
+            if (mbid != null) {
+                // other copies of the same recording may already have been submitted or are being extracted right now
+                if (DEDUPLICATE && !LEDGER.claim(mbid, ESSENTIA_BUILD_SHA)) {
+                    if (LOG.isDebugEnabled()) LOG.debug("Skipping track " + song.getName() + ". Recording " + mbid + " was already submitted.");
+                    return;
+                }
+                boolean handedOff = false;
+                try {
+                    final boolean covered;
+                    try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("precheck")) {
+                        covered = isCovered(song, mbid);
+                    }
+                    if (covered) return;
+                    // wait for scratch space, if earlier jobs use too much
+                    try (final ScratchSpace.Job scratch = SCRATCH.reserve(estimateScratchBytes(song))) {
+                        handedOff = process(song, mbid, progress, scratch);
+                    }
+                } finally {
+                    // no-op, if the submission was recorded.
+                    // the outbox records or releases the claim, once the upload is done
+                    if (!handedOff) LEDGER.release(mbid, ESSENTIA_BUILD_SHA);
+                }
+            } else {
                 getMessagePanel().addMessage(new Message(
                     getApplication().localize("Analysis"),
-                    "Failed to submit '" + song.getName() + "' to AcousticBrainz: " + e,
+                    "Failed to submit '" + song.getName() + "' to AcousticBrainz. Unable to find MusicBrainz ID.",
                     song.getId()
                 ));
-            } finally {
-                getAnalysisProgress().getOperationProgressListener().progress(1f);
-
-                // cleanup
-                filesToDelete.forEach(file -> {
-                    try {
-                        Files.deleteIfExists(file);
-                    } catch (IOException e) {
-                        LOG.error(e.toString(), e);
-                    }
-                });
             }
-        } else {
+        } catch (Exception e) {
+            LOG.error(e.toString(), e);
             getMessagePanel().addMessage(new Message(
                 getApplication().localize("Analysis"),
-                "Failed to submit '" + song.getName() + "' to AcousticBrainz. File not found.",
+                "Failed to submit '" + song.getName() + "' to AcousticBrainz: " + e,
                 song.getId()
             ));
+        } finally {
+            SubmitMetrics.songProcessed();
+        }
+    }
+
+    /**
+     * Estimated cost of extracting the given song, used to analyze short tracks first.
+     * Extraction time grows with duration, decoding time also with file size.
+     *
+     * @param song song
+     * @return cost, roughly in ms of audio
+     */
+    private static long estimateCost(final AudioSong song) {
+        return Math.max(0, song.getTotalTime()) + song.getFile().toFile().length() / BYTES_PER_MS;
+    }
+
+    /**
+     * Scratch space a job for the given song needs at most.
+     *
+     * @param song song
+     * @return bytes
+     */
+    private long estimateScratchBytes(final AudioSong song) {
+        if (song.getTotalTime() >= THIRTY_MINUTES) {
+            // one segment per parallel extractor
+            return POOL.getSize() * getSegmentScratchBytes() + OUTPUT_BYTES;
+        }
+        // a copy is only needed, if the MBID cannot be passed via profile
+        return OUTPUT_BYTES + (mbidViaProfile ? 0 : song.getFile().toFile().length());
+    }
+
+    /**
+     * Checks, whether AcousticBrainz already has enough submissions for the song's recording.
+     *
+     * @param song song
+     * @param mbid MBID
+     * @return true, if we can skip the song
+     */
+    private boolean isCovered(final AudioSong song, final String mbid) {
+        final int threshold = getSkipThreshold();
+        if (threshold <= 0 || isOffline()) return false;
+        try {
+            final int count = COVERAGE.getCount(mbid);
+            if (count >= threshold) {
+                if (LOG.isDebugEnabled()) LOG.debug("Skipping track " + song.getName() + ". AcousticBrainz already has " + count + " submissions for " + mbid);
+                SubmitMetrics.increment("precheck.skipped");
+                return true;
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to get submission count for " + mbid + ". Submitting anyway.", e);
         }
+        return false;
     }
 
-    private void process(final AudioSong song,
-                         final String mbid,
-                         final List<Path> deleteList) throws IOException, UnsupportedAudioFileException, InterruptedException, ParseException {
-        final ProgressListener progressListener = getAnalysisProgress().getOperationProgressListener();
-        progressListener.progress(0.25f);
+    /**
+     * Extracts and archives or enqueues the results.
+     *
+     * @return true, if the results were handed to the outbox, which then takes care of the ledger claim
+     */
+    private boolean process(final AudioSong song,
+                            final String mbid,
+                            final Consumer<Float> progress,
+                            final ScratchSpace.Job scratch) throws IOException, UnsupportedAudioFileException, InterruptedException {
+        progress.accept(0.25f);
         final Set<String> allMBIDs = getMBIDs(song);
         if (allMBIDs.size() > 1) {
             LOG.warn("Track " + song.getName() + ". Found multiple MBIDs: " + allMBIDs);
         } else {
             if (LOG.isDebugEnabled()) LOG.debug("Track " + song.getName() + ". Found MBID " + mbid);
         }
-        // AudioMetaData is the direct access to the file, without going through
-        // any indirection like the beaTunes internal database
-        final Set<String> embeddedMBID = getMBIDs(song.getImplementation(AudioMetaData.class));
-        final Path inputFile;
-        if (embeddedMBID.isEmpty()) {
-            if (LOG.isInfoEnabled()) LOG.info("Track " + song.getName() + ". MBID is not embedded. Embedding " + mbid + " into copy. Consider embedding MBIDs before running this task.");
-            inputFile = createCopyWithMBID(song, mbid);
-            deleteList.add(inputFile);
+        final Path outputFile = scratch.createFile("acousticbrainz", ".json");
+        final String cacheKey;
+        try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("hash")) {
+            cacheKey = CACHE.createKey(song.getFile(), mbid, ESSENTIA_BUILD_SHA);
+        }
+        final int exitCode;
+        if (CACHE.get(cacheKey, outputFile)) {
+            if (LOG.isDebugEnabled()) LOG.debug("Track " + song.getName() + ". Using cached extractor output.");
+            exitCode = OK;
         } else {
-            inputFile = song.getFile().toAbsolutePath();
+            // don't start an extractor for files it would fail on anyway
+            if (AudioProbe.ENABLED) {
+                try {
+                    AudioProbe.check(song.getFile());
+                } catch (AudioProbe.RejectedFileException e) {
+                    JOURNAL.rejected(song.getId(), ESSENTIA_BUILD_SHA, getLastModified(song), e.getMessage());
+                    getMessagePanel().addMessage(new Message(
+                        getApplication().localize("Analysis"),
+                        "Failed to submit '" + song.getName() + "' to AcousticBrainz. " + e.getMessage(),
+                        song.getId()
+                    ));
+                    return false;
+                }
+            }
+            try {
+                exitCode = extract(song, mbid, outputFile, progress, scratch);
+            } catch (ProcessWatchdog.ExtractorKilledException e) {
+                // don't spend the same time on this file again, when the batch is resumed
+                JOURNAL.rejected(song.getId(), ESSENTIA_BUILD_SHA, getLastModified(song), e.getMessage());
+                getMessagePanel().addMessage(new Message(
+                    getApplication().localize("Analysis"),
+                    "Failed to submit '" + song.getName() + "' to AcousticBrainz. " + e.getMessage(),
+                    song.getId()
+                ));
+                return false;
+            }
+            if (exitCode == OK) CACHE.put(cacheKey, outputFile);
         }
-        progressListener.progress(0.4f);
-        final Path outputFile = Files.createTempFile(executable.getParent(), "acousticbrainz", ".json").toAbsolutePath();
-        deleteList.add(outputFile);
-        final Process process = executeStreamingExtractorMusic(inputFile, outputFile);
-        if (LOG.isDebugEnabled()) LOG.debug("Output: " + getOutput(process));
-        final int exitCode = process.waitFor();
-        progressListener.progress(0.5f);
+        progress.accept(0.9f);
         if (exitCode == OK) {
-            final String usedMBID = extractMBID(mbid, outputFile);
-            postToAcousticBrainz(song, usedMBID, outputFile);
+            final String usedMBID;
+            try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("parse")) {
+                usedMBID = extractMBID(mbid, outputFile);
+            }
+            if (isFillKeyAndTempo()) {
+                try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("map")) {
+                    DescriptorMapper.apply(song, outputFile);
+                } catch (IOException e) {
+                    LOG.warn("Failed to set key and tempo of " + song.getName() + " from extractor results.", e);
+                }
+            }
+            // the file may belong to a different recording than the one we claimed
+            if (DEDUPLICATE && !LEDGER.link(mbid, usedMBID, ESSENTIA_BUILD_SHA)) {
+                if (LOG.isDebugEnabled()) LOG.debug("Skipping track " + song.getName() + ". Recording " + usedMBID + " was already submitted.");
+                return false;
+            }
+            if (isOffline()) {
+                try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("archive")) {
+                    ARCHIVE.append(usedMBID, song.getId(), outputFile);
+                }
+                LEDGER.record(usedMBID, ESSENTIA_BUILD_SHA);
+                JOURNAL.extracted(song.getId(), getLastModified(song), usedMBID, ESSENTIA_BUILD_SHA);
+                return false;
+            }
+            // upload in the background, so that we don't keep the extractor slot busy
+            try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("enqueue")) {
+                OUTBOX.enqueue(usedMBID, song.getId(), song.getName(), outputFile);
+            }
+            JOURNAL.extracted(song.getId(), getLastModified(song), usedMBID, ESSENTIA_BUILD_SHA);
+            return true;
         } else {
-            LOG.error("Failed to analyze/submit " + song + ". Input file: " + inputFile + ". Exit code: " + exitCode);
+            JOURNAL.failed(song.getId(), ESSENTIA_BUILD_SHA, getLastModified(song), "Exit code " + exitCode);
             getMessagePanel().addMessage(new Message(
                 getApplication().localize("Analysis"),
                 "Failed to submit '" + song.getName() + "' to AcousticBrainz. Exit code " + exitCode + ". See log for details.",
                 song.getId()
             ));
+            return false;
         }
     }
 
+    /**
+     * Runs the extractor on the song's file. If the MBID is not embedded, it is
+     * injected via a per-run profile. Only if the extractor's output lacks the MBID nonetheless,
+     * we fall back to running the extractor on a copy of the file with the MBID embedded,
+     * and keep doing so for all other songs.
+     *
+     * @param song song
+     * @param mbid MBID
+     * @param outputFile JSON file the extractor writes to
+     * @param progress progress callback
+     * @param scratch scratch space for temporary files
+     * @return extractor exit code
+     */
+    private int extract(final AudioSong song,
+                        final String mbid,
+                        final Path outputFile,
+                        final Consumer<Float> progress,
+                        final ScratchSpace.Job scratch) throws IOException, UnsupportedAudioFileException, InterruptedException {
+        if (song.getTotalTime() >= THIRTY_MINUTES) {
+            return extractSegmented(song, mbid, outputFile, progress, scratch);
+        }
+        // AudioMetaData is the direct access to the file, without going through
+        // any indirection like the beaTunes internal database.
+        // the cache makes sure we only read files that changed.
+        final Set<String> embeddedMBID = TAGS.getMBIDs(song.getFile(), file -> getMBIDs(song.getImplementation(AudioMetaData.class)));
+        if (!embeddedMBID.isEmpty()) {
+            progress.accept(0.4f);
+            return runExtractor(song, song.getFile().toAbsolutePath(), outputFile, Extractor.getDefaultProfile(), scratch, progress);
+        }
+        if (mbidViaProfile) {
+            if (LOG.isDebugEnabled()) LOG.debug("Track " + song.getName() + ". MBID is not embedded. Passing " + mbid + " via profile.");
+            final Path profile = scratch.createFile("profile", ".yaml");
+            Extractor.writeProfile(profile, mbid);
+            progress.accept(0.4f);
+            final int exitCode = runExtractor(song, song.getFile().toAbsolutePath(), outputFile, profile, scratch, progress);
+            // a failure has nothing to do with the profile, a copy would fail just the same
+            if (exitCode != OK) return exitCode;
+            if (scanMBID(outputFile) != null) {
+                SubmitMetrics.increment("mbid.profile");
+                return exitCode;
+            }
+            // the extractor ran fine, but ignored the MBID in the profile
+            LOG.warn("Passing MBIDs via profile does not work with this extractor. Using copies from now on.");
+            mbidViaProfile = false;
+        }
+        if (LOG.isInfoEnabled()) LOG.info("Track " + song.getName() + ". MBID is not embedded. Embedding " + mbid + " into copy. Consider embedding MBIDs before running this task.");
+        SubmitMetrics.increment("mbid.copy");
+        final Path inputFile;
+        try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("copy")) {
+            inputFile = createCopyWithMBID(song, mbid, scratch);
+        }
+        progress.accept(0.4f);
+        return runExtractor(song, inputFile, outputFile, Extractor.getDefaultProfile(), scratch, progress);
+    }
+
+    /**
+     * Splits a long track into segments, runs the extractor on them in parallel and aggregates the results.
+     *
+     * @param song song
+     * @param mbid MBID
+     * @param outputFile JSON file to write the aggregated results to
+     * @param progress progress callback
+     * @param scratch scratch space for temporary files
+     * @return extractor exit code
+     */
+    private int extractSegmented(final AudioSong song,
+                                 final String mbid,
+                                 final Path outputFile,
+                                 final Consumer<Float> progress,
+                                 final ScratchSpace.Job scratch) throws IOException, UnsupportedAudioFileException, InterruptedException {
+        if (LOG.isInfoEnabled()) LOG.info("Track " + song.getName() + " is too long to analyze in one go. Analyzing it in segments.");
+        // segments have no tags, so the MBID has to be passed via profile
+        final Path profile = scratch.createFile("profile", ".yaml");
+        Extractor.writeProfile(profile, mbid);
+        progress.accept(0.4f);
+        // no more segments in parallel than we reserved scratch space for, even if the pool has grown since
+        final int parallelism = (int) ((scratch.getReservedBytes() - OUTPUT_BYTES) / getSegmentScratchBytes());
+        final SegmentedExtractor.SegmentAnalyzer analyzer = (input, output, lengthMillis) -> Extractor.run(
+            song + " (segment " + input.getFileName() + ")", lengthMillis,
+            input, output, profile, input.getParent(), isBackground(), p -> {});
+        final SegmentedExtractor extractor = new SegmentedExtractor(SegmentedExtractor.getDefaultSegmentMillis(), parallelism, POOL);
+        return extractor.extract(song.getFile(), song.getTotalTime(), mbid, outputFile, scratch.createDirectory("segments"),
+            analyzer, p -> progress.accept(0.4f + 0.5f * p));
+    }
+
+    /**
+     * Scratch space for one decoded 16 bit stereo segment and its output.
+     */
+    private static long getSegmentScratchBytes() {
+        return SegmentedExtractor.getDefaultSegmentMillis() * 44100L * 4L / 1000L + OUTPUT_BYTES;
+    }
+
+    private int runExtractor(final AudioSong song, final Path inputFile, final Path outputFile, final Path profile,
+                             final ScratchSpace.Job scratch, final Consumer<Float> progress) throws IOException, InterruptedException {
+        return Extractor.run(song.toString(), song.getTotalTime(), inputFile, outputFile, profile, scratch.getDirectory(), isBackground(), progress);
+    }
+
     private Set<String> getMBIDs(final AudioSong song) {
         return song.getTrackIds()
             .stream()
@@ -220,9 +721,9 @@ public class AcousticBrainzSubmit extends AudioAnalysisTask {
     }
 
     @NotNull
-    private Path createCopyWithMBID(final AudioSong song, final String mbid) throws IOException, UnsupportedAudioFileException {
+    private Path createCopyWithMBID(final AudioSong song, final String mbid, final ScratchSpace.Job scratch) throws IOException, UnsupportedAudioFileException {
         final Path inputFile;// at this point, we don't want to manipulate the original file...
-        inputFile = Files.createTempFile("copy", FileUtilities.getExtension(song.getFile()));
+        inputFile = scratch.createFile("copy", FileUtilities.getExtension(song.getFile()));
         Files.copy(song.getFile(), inputFile, StandardCopyOption.REPLACE_EXISTING);
 
         // provide fileId and attributes to work around dir access caching issue.
@@ -242,155 +743,96 @@ public class AcousticBrainzSubmit extends AudioAnalysisTask {
      * @param outputFile JSON file produced by the AcousticBrainz extractor
      * @return MBID that matched the JSON file
      * @throws IOException
-     * @throws ParseException
      */
-    private String extractMBID(final String mbid, final Path outputFile) throws IOException, ParseException {
-        final String usedMBID;
-        try (final BufferedReader in = Files.newBufferedReader(outputFile)) {
-            final JSONObject json = (JSONObject)new JSONParser().parse(in);
-            final JSONObject metadata = (JSONObject)json.get("metadata");
-            final JSONObject tags = (JSONObject)metadata.get("tags");
-            final JSONArray extractedMBIDs = (JSONArray)tags.get("musicbrainz_trackid");
-            final String extractedMBID = extractedMBIDs != null && !extractedMBIDs.isEmpty()
-                ? ((String)extractedMBIDs.get(0)).toLowerCase()
-                : null;
-            if (extractedMBID != null && !extractedMBID.equals(mbid)) {
-                if (LOG.isInfoEnabled()) LOG.info("Replaced originally found MBID " + mbid + " with " + extractedMBID);
-                usedMBID = extractedMBID;
-            } else {
-                usedMBID = mbid;
-            }
+    private String extractMBID(final String mbid, final Path outputFile) throws IOException {
+        final String extractedMBID = scanMBID(outputFile);
+        if (extractedMBID != null && !extractedMBID.equals(mbid)) {
+            if (LOG.isInfoEnabled()) LOG.info("Replaced originally found MBID " + mbid + " with " + extractedMBID);
+            return extractedMBID;
         }
-        return usedMBID;
+        return mbid;
     }
 
-    @NotNull
-    private String getOutput(final Process process) throws IOException {
-        final InputStream inputStream = process.getInputStream();
-        final StringBuilder sb = new StringBuilder();
-        final byte[] buf = new byte[256];
-        int count;
-        while ((count = inputStream.read(buf)) != -1) {
-            sb.append(new String(buf, 0, count, StandardCharsets.US_ASCII));
+    /**
+     * @param outputFile JSON file produced by the AcousticBrainz extractor
+     * @return lower case MBID in the JSON file or {@code null}
+     * @throws IOException if the file cannot be read
+     */
+    private static String scanMBID(final Path outputFile) throws IOException {
+        try (final Reader in = Files.newBufferedReader(outputFile)) {
+            // scan instead of parsing the whole document, we only need one value
+            final String scannedMBID = MBIDScanner.scan(in);
+            return scannedMBID != null ? scannedMBID.toLowerCase() : null;
         }
-        return sb.toString();
     }
 
-    @NotNull
-    private Process executeStreamingExtractorMusic(final Path inputFile, final Path outputFile) throws IOException {
-        final ProcessBuilder builder = new ProcessBuilder(
-            executable.toString(),
-            inputFile.toString(),
-            outputFile.toString(),
-            executable.resolveSibling(PROFILE_YAML).toString());
-        builder.redirectErrorStream(true);
-        builder.directory(executable.getParent().toFile());
-        return builder.start();
-    }
-
-    private void postToAcousticBrainz(final AudioSong song, final String mbid, final Path file) throws IOException {
-        final URL url = new URL("https://acousticbrainz.org/api/v1/" + mbid.toLowerCase() + "/low-level");
-        if (LOG.isDebugEnabled()) LOG.debug("Posting to " + url);
-        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setReadTimeout(10000);
-        connection.setConnectTimeout(5000);
-        connection.setRequestMethod("POST");
-        connection.setDoOutput(true);
-        connection.setRequestProperty("User-Agent", BeaTunesProperties.getInstance().getUserAgent());
-        connection.setRequestProperty("Content-Encoding", "gzip");
-        connection.setRequestProperty("Content-Type", "application/json");
-
-        try (final OutputStream outputStream = new BufferedOutputStream(connection.getOutputStream())) {
-            Files.copy(file, outputStream);
-        }
-        final int responseCode = connection.getResponseCode();
-        if (responseCode != 200 && responseCode != 201) {
-            final String message = readErrorMessage(connection);
-            getMessagePanel().addMessage(new Message(
-                getApplication().localize("Analysis"),
-                "Failed to submit '" + song.getName() + "' to AcousticBrainz. " + responseCode + ": " + connection.getResponseMessage() + ". " + message,
-                song.getId()
-            ));
-        }
+    /**
+     * Extract MBID from {@link AudioSong} object and if we cannot find it,
+     * attempt to look it up in the central database (or our cache of earlier lookups).
+     *
+     * @param song song
+     * @return MBID or null
+     * @throws InterruptedException if interrupted while waiting for a lookup
+     */
+    private String getMBID(final AudioSong song) throws InterruptedException {
+        final String mbid = song.getTrackIds()
+            .stream()
+            .filter(id -> AudioId.MUSIC_BRAINZ_TRACK.equals(id.getGeneratorName()))
+            .map(AudioId::getId)
+            .map(String::toLowerCase)
+            .findFirst().orElse(null);
+        if (mbid != null) return mbid;
+        // there is no MBID embedded. the resolver remembers lookups from earlier sessions
+        return RESOLVER.resolve(song);
     }
 
-    private String readErrorMessage(final HttpURLConnection connection) throws IOException {
-        final byte[] b = new byte[1024*4];
-        final int read = connection.getErrorStream().read(b);
-        String message = new String(b, 0, read, StandardCharsets.US_ASCII);
-        LOG.error(message);
-        if (message.contains("\"message\":")) {
-            try {
-                final JSONParser parser = new JSONParser();
-                final JSONObject object = (JSONObject)parser.parse(message);
-                message = (String)object.get("message");
-            } catch (Exception e) {
-                LOG.error(e.toString(), e);
-            }
-        }
-        return message;
+    private static long getLastModified(final AudioSong song) {
+        return song.getFile().toFile().lastModified();
     }
 
     /**
-     * Extract MBID from {@link AudioSong} object and if we cannot find it,
-     * attempt to look it up in the central database.
+     * Looks up the MBID via {@link OnlineDB}.
      *
      * @param song song
      * @return MBID or null
+     * @throws IOException if the lookup fails
      */
-    private String getMBID(final AudioSong song) {
-        return song.getTrackIds()
+    private String lookupMBID(final AudioSong song) throws IOException {
+        final OnlineDB onlineDB = getApplication().getPluginManager().getImplementation(OnlineDB.class);
+        return onlineDB.lookup(song)
             .stream()
+            .flatMap(s -> s.getTrackIds().stream())
             .filter(id -> AudioId.MUSIC_BRAINZ_TRACK.equals(id.getGeneratorName()))
             .map(AudioId::getId)
             .map(String::toLowerCase)
-            .findFirst().orElseGet(() -> {
-                // there is no MBID embedded, let's look one up
-                final OnlineDB onlineDB = getApplication().getPluginManager().getImplementation(OnlineDB.class);
-                try {
-                    return onlineDB.lookup(song)
-                        .stream()
-                        .flatMap(s -> s.getTrackIds().stream())
-                        .filter(id -> AudioId.MUSIC_BRAINZ_TRACK.equals(id.getGeneratorName()))
-                        .map(AudioId::getId)
-                        .map(String::toLowerCase)
-                        .findFirst().orElse(null);
-                } catch (Exception e) {
-                    LOG.error("Failed to look up MBID via OnlineDB.", e);
-                }
-                return null;
-            });
+            .findFirst().orElse(null);
     }
 
-    private static Path extractBinary() throws IOException {
-        if (LOG.isDebugEnabled()) LOG.debug("Extracting AcousticBrainz binaries...");
-        try (final InputStream in = AcousticBrainzSubmit.class.getResourceAsStream(STREAMING_EXTRACTOR_MUSIC)) {
-            final Path dir = Files.createTempDirectory("abzsubmit");
-            if (LOG.isDebugEnabled()) LOG.debug("Executable directory: " + dir);
-            final Path executable = dir.resolve(STREAMING_EXTRACTOR_MUSIC);
-            Files.copy(in, executable);
-            try {
-                // actually make executable
-                final Set<PosixFilePermission> permissions = new HashSet<>(Arrays.asList(
-                    OWNER_READ, OWNER_WRITE, OWNER_EXECUTE,
-                    GROUP_READ, GROUP_EXECUTE,
-                    OTHERS_READ, OTHERS_EXECUTE
-                ));
-                Files.setPosixFilePermissions(executable, permissions);
-            } catch (UnsupportedOperationException e) {
-                LOG.warn("Was not able to make executable. Operation not supported on this platform.");
-            }
-            // create profile, see https://github.com/MTG/acousticbrainz-client/blob/master/abz/config.py#L60-L65
-            try (final BufferedWriter writer = Files.newBufferedWriter(dir.resolve(PROFILE_YAML))) {
-                writer.write("requireMbid: true\n" +
-                    "indent: 0\n" +
-                    "mergeValues:\n" +
-                    "    metadata:\n" +
-                    "        version:\n" +
-                    "            essentia_build_sha: " + ESSENTIA_BUILD_SHA + "\n");
-            }
+    private static ExtractorCache createCache() {
+        final long maxBytes = Long.getLong("abzsubmit.cache.maxBytes", DEFAULT_CACHE_SIZE);
+        return new ExtractorCache(dataDirectory("cache"), maxBytes);
+    }
+
+    private static Archive createArchive() {
+        final String configured = System.getProperty("abzsubmit.archive.dir");
+        if (configured != null) return new Archive(Paths.get(configured));
+        return new Archive(dataDirectory("archive"));
+    }
 
-            return executable.toAbsolutePath();
+    /**
+     * Subdirectory of the {@link Directories#getDataDirectory() data directory}. If that cannot be
+     * created, we fall back to the temp directory.
+     *
+     * @param name name of the subdirectory, {@code null} for the data directory itself
+     * @return directory
+     */
+    private static Path dataDirectory(final String name) {
+        try {
+            return name == null ? Directories.getDataDirectory() : Directories.getDataDirectory(name);
+        } catch (IOException e) {
+            LOG.error("Failed to create data directory. Falling back to temp directory.", e);
+            final Path temp = Paths.get(System.getProperty("java.io.tmpdir"));
+            return name == null ? temp : temp.resolve("abzsubmit-" + name);
         }
     }
 }
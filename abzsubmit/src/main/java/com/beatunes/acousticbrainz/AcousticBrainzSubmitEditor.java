@@ -0,0 +1,166 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.beatunes.BeaTunes;
+import com.tagtraum.beatunes.analysis.TaskEditor;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.prefs.Preferences;
+
+/**
+ * Editor for the {@link AcousticBrainzSubmit} analysis {@link com.tagtraum.beatunes.analysis.Task}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class AcousticBrainzSubmitEditor implements TaskEditor<AcousticBrainzSubmit> {
+
+    private static final Preferences PREFERENCES = Preferences.userNodeForPackage(AcousticBrainzSubmitEditor.class);
+    private static final String ABZSUBMIT_CONCURRENCY = "analysisoptions.abzsubmit.concurrency";
+    private static final String ABZSUBMIT_SKIP_THRESHOLD = "analysisoptions.abzsubmit.skipthreshold";
+    private static final String ABZSUBMIT_SEGMENT_LONG_TRACKS = "analysisoptions.abzsubmit.segmentlongtracks";
+    private static final String ABZSUBMIT_OFFLINE = "analysisoptions.abzsubmit.offline";
+    private static final String ABZSUBMIT_BACKGROUND = "analysisoptions.abzsubmit.background";
+    private static final String ABZSUBMIT_FILL_KEY_AND_TEMPO = "analysisoptions.abzsubmit.fillkeyandtempo";
+    private static final String ABZSUBMIT_SHORT_TRACKS_FIRST = "analysisoptions.abzsubmit.shorttracksfirst";
+    private static final int MAX_CONCURRENCY = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final JPanel component;
+    private final JLabel concurrencyLabel;
+    private final JSpinner concurrencySpinner;
+    private final JLabel skipThresholdLabel;
+    private final JSpinner skipThresholdSpinner;
+    private final JCheckBox segmentLongTracksCheckBox;
+    private final JCheckBox offlineCheckBox;
+    private final JCheckBox backgroundCheckBox;
+    private final JCheckBox fillKeyAndTempoCheckBox;
+    private final JCheckBox shortTracksFirstCheckBox;
+
+    private BeaTunes application;
+
+    public AcousticBrainzSubmitEditor() {
+        final int concurrency = Math.min(MAX_CONCURRENCY, Math.max(1,
+            PREFERENCES.getInt(ABZSUBMIT_CONCURRENCY, Runtime.getRuntime().availableProcessors())));
+        this.concurrencyLabel = new JLabel("Parallel extractors:");
+        this.concurrencySpinner = new JSpinner(new SpinnerNumberModel(concurrency, 1, MAX_CONCURRENCY, 1));
+        this.concurrencySpinner.setOpaque(false);
+
+        this.skipThresholdLabel = new JLabel("Skip recordings with at least this many submissions (0 = never):");
+        this.skipThresholdSpinner = new JSpinner(new SpinnerNumberModel(
+            Math.max(0, PREFERENCES.getInt(ABZSUBMIT_SKIP_THRESHOLD, 0)), 0, 1000, 1));
+        this.skipThresholdSpinner.setOpaque(false);
+
+        this.segmentLongTracksCheckBox = new JCheckBox("Analyze tracks longer than 30 minutes in segments",
+            PREFERENCES.getBoolean(ABZSUBMIT_SEGMENT_LONG_TRACKS, false));
+        this.segmentLongTracksCheckBox.setOpaque(false);
+
+        this.offlineCheckBox = new JCheckBox("Don't upload, archive results for later upload",
+            PREFERENCES.getBoolean(ABZSUBMIT_OFFLINE, false));
+        this.offlineCheckBox.setOpaque(false);
+
+        this.backgroundCheckBox = new JCheckBox("Run in background (low priority, fewer extractors while busy or playing)",
+            PREFERENCES.getBoolean(ABZSUBMIT_BACKGROUND, false));
+        this.backgroundCheckBox.setOpaque(false);
+
+        this.fillKeyAndTempoCheckBox = new JCheckBox("Set missing key and BPM from extractor results",
+            PREFERENCES.getBoolean(ABZSUBMIT_FILL_KEY_AND_TEMPO, false));
+        this.fillKeyAndTempoCheckBox.setOpaque(false);
+
+        this.shortTracksFirstCheckBox = new JCheckBox("Analyze short tracks first",
+            PREFERENCES.getBoolean(ABZSUBMIT_SHORT_TRACKS_FIRST, false));
+        this.shortTracksFirstCheckBox.setOpaque(false);
+
+        this.component = new JPanel();
+        this.component.setLayout(new BoxLayout(this.component, BoxLayout.Y_AXIS));
+        this.component.add(createRow(this.concurrencyLabel, this.concurrencySpinner));
+        this.component.add(createRow(this.skipThresholdLabel, this.skipThresholdSpinner));
+        this.component.add(createRow(this.segmentLongTracksCheckBox));
+        this.component.add(createRow(this.offlineCheckBox));
+        this.component.add(createRow(this.backgroundCheckBox));
+        this.component.add(createRow(this.fillKeyAndTempoCheckBox));
+        this.component.add(createRow(this.shortTracksFirstCheckBox));
+        this.component.setOpaque(false);
+
+        this.component.addPropertyChangeListener("enabled", evt -> {
+            this.concurrencyLabel.setEnabled((Boolean) evt.getNewValue());
+            this.concurrencySpinner.setEnabled((Boolean) evt.getNewValue());
+            this.skipThresholdLabel.setEnabled((Boolean) evt.getNewValue());
+            this.skipThresholdSpinner.setEnabled((Boolean) evt.getNewValue());
+            this.segmentLongTracksCheckBox.setEnabled((Boolean) evt.getNewValue());
+            this.offlineCheckBox.setEnabled((Boolean) evt.getNewValue());
+            this.backgroundCheckBox.setEnabled((Boolean) evt.getNewValue());
+            this.fillKeyAndTempoCheckBox.setEnabled((Boolean) evt.getNewValue());
+            this.shortTracksFirstCheckBox.setEnabled((Boolean) evt.getNewValue());
+        });
+    }
+
+    private static JPanel createRow(final JComponent... components) {
+        final JPanel row = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 0));
+        row.setAlignmentX(Component.LEFT_ALIGNMENT);
+        row.setOpaque(false);
+        for (final JComponent c : components) {
+            row.add(c);
+        }
+        return row;
+    }
+
+    @Override
+    public void setApplication(final BeaTunes beaTunes) {
+        this.application = beaTunes;
+    }
+
+    @Override
+    public BeaTunes getApplication() {
+        return application;
+    }
+
+    @Override
+    public void init() {
+    }
+
+    @Override
+    public JComponent getComponent() {
+        return component;
+    }
+
+    @Override
+    public void setTask(final AcousticBrainzSubmit task) {
+        this.concurrencySpinner.setValue(Math.min(MAX_CONCURRENCY, task.getConcurrency()));
+        this.skipThresholdSpinner.setValue(task.getSkipThreshold());
+        this.segmentLongTracksCheckBox.setSelected(task.isSegmentLongTracks());
+        this.offlineCheckBox.setSelected(task.isOffline());
+        this.backgroundCheckBox.setSelected(task.isBackground());
+        this.fillKeyAndTempoCheckBox.setSelected(task.isFillKeyAndTempo());
+        this.shortTracksFirstCheckBox.setSelected(task.isShortTracksFirst());
+    }
+
+    @Override
+    public AcousticBrainzSubmit getTask(final AcousticBrainzSubmit task) {
+        task.setConcurrency((Integer) concurrencySpinner.getValue());
+        PREFERENCES.putInt(ABZSUBMIT_CONCURRENCY, task.getConcurrency());
+        task.setSkipThreshold((Integer) skipThresholdSpinner.getValue());
+        PREFERENCES.putInt(ABZSUBMIT_SKIP_THRESHOLD, task.getSkipThreshold());
+        task.setSegmentLongTracks(segmentLongTracksCheckBox.isSelected());
+        PREFERENCES.putBoolean(ABZSUBMIT_SEGMENT_LONG_TRACKS, task.isSegmentLongTracks());
+        task.setOffline(offlineCheckBox.isSelected());
+        PREFERENCES.putBoolean(ABZSUBMIT_OFFLINE, task.isOffline());
+        task.setBackground(backgroundCheckBox.isSelected());
+        PREFERENCES.putBoolean(ABZSUBMIT_BACKGROUND, task.isBackground());
+        task.setFillKeyAndTempo(fillKeyAndTempoCheckBox.isSelected());
+        PREFERENCES.putBoolean(ABZSUBMIT_FILL_KEY_AND_TEMPO, task.isFillKeyAndTempo());
+        task.setShortTracksFirst(shortTracksFirstCheckBox.isSelected());
+        PREFERENCES.putBoolean(ABZSUBMIT_SHORT_TRACKS_FIRST, task.isShortTracksFirst());
+        return task;
+    }
+
+    @Override
+    public AcousticBrainzSubmit getTask() {
+        final AcousticBrainzSubmit task = new AcousticBrainzSubmit();
+        return getTask(task);
+    }
+}
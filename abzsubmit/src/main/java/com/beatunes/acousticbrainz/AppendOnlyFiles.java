@@ -0,0 +1,56 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Helpers for the append-only, line based files this plugin keeps, e.g. the submission ledger.
+ * If beaTunes crashes while a line is appended, the file may end with a torn line.
+ * Readers skip such a line, but appending to it would merge it with the next, complete line.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class AppendOnlyFiles {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AppendOnlyFiles.class);
+
+    private AppendOnlyFiles() {
+    }
+
+    /**
+     * Cuts off a last line without line break. Must be called before the file is opened for appending.
+     *
+     * @param file file, does not have to exist
+     * @throws IOException if the file cannot be read or truncated
+     */
+    static void cutOffTornLine(final Path file) throws IOException {
+        if (!Files.exists(file)) return;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(1);
+            long end = channel.size();
+            while (end > 0) {
+                buffer.clear();
+                channel.read(buffer, end - 1);
+                if (buffer.get(0) == '\n') break;
+                end--;
+            }
+            if (end < channel.size()) {
+                LOG.warn("Cutting off " + (channel.size() - end) + " bytes of an incomplete line from " + file);
+                channel.truncate(end);
+            }
+        }
+    }
+}
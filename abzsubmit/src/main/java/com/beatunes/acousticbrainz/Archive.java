@@ -0,0 +1,294 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Append-only archive of gzip-compressed extractor results for machines without network access.
+ * Results are appended to segment files ({@code archive-NNNNN.abz}) of limited size. Every record
+ * consists of a fixed size header (magic, MBID, payload length) followed by the payload.
+ * For each segment, an index file ({@code archive-NNNNN.idx}) lists MBID, offset and length of
+ * each complete record. A record that was not completely written (e.g. because of a crash) is
+ * not indexed and is cut off, when the archive is opened again, just like a torn index line.
+ * Archives are replayed with {@link ArchiveUploader}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class Archive {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Archive.class);
+    static final String SEGMENT_SUFFIX = ".abz";
+    static final String INDEX_SUFFIX = ".idx";
+    private static final byte[] MAGIC = {'A', 'B', 'Z', '1'};
+    private static final int MBID_LENGTH = 36;
+    private static final int HEADER_SIZE = MAGIC.length + MBID_LENGTH + Long.BYTES;
+    private static final long DEFAULT_MAX_SEGMENT_BYTES = 256L * 1024L * 1024L;
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private FileChannel segment;
+    private Writer index;
+    private int segmentNumber;
+
+    /**
+     * @param directory archive directory
+     * @param maxSegmentBytes size at which a new segment is started
+     */
+    Archive(final Path directory, final long maxSegmentBytes) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Archive with segments of the size given by the system property
+     * {@code abzsubmit.archive.segmentMB}, by default 256 MB.
+     *
+     * @param directory archive directory
+     */
+    Archive(final Path directory) {
+        this(directory, Long.getLong("abzsubmit.archive.segmentMB", DEFAULT_MAX_SEGMENT_BYTES / 1024L / 1024L) * 1024L * 1024L);
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Compresses the given extractor output and appends it to the current segment.
+     *
+     * @param mbid MBID the output belongs to
+     * @param songId id of the song, for the index
+     * @param json extractor output
+     * @return the new record
+     * @throws IOException if the record cannot be written
+     */
+    synchronized Record append(final String mbid, final long songId, final Path json) throws IOException {
+        if (mbid.length() != MBID_LENGTH) throw new IllegalArgumentException("Not an MBID: " + mbid);
+        open();
+        final long offset = segment.size();
+        segment.position(offset);
+        final long length;
+        final long raw;
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.put(mbid.toLowerCase().getBytes(StandardCharsets.US_ASCII));
+            // length is patched once we know it
+            header.putLong(-1L);
+            header.flip();
+            while (header.hasRemaining()) segment.write(header);
+            final CountingOutputStream compressed = new CountingOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(segment)));
+            // don't close, that would close the channel
+            final GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            raw = Files.copy(json, gzip);
+            gzip.finish();
+            compressed.flush();
+            length = compressed.getCount();
+            final ByteBuffer lengthBuffer = ByteBuffer.allocate(Long.BYTES).putLong(length);
+            lengthBuffer.flip();
+            segment.write(lengthBuffer, offset + MAGIC.length + MBID_LENGTH);
+            segment.force(false);
+        } catch (IOException | RuntimeException e) {
+            // don't leave a partial record behind
+            segment.truncate(offset);
+            throw e;
+        }
+        // only indexed records count
+        index.write(mbid.toLowerCase() + '\t' + (offset + HEADER_SIZE) + '\t' + length + '\t' + songId + '\n');
+        index.flush();
+        SubmitMetrics.add("upload.bytes.raw", raw);
+        SubmitMetrics.add("upload.bytes.gzip", length);
+        SubmitMetrics.increment("archive.appended");
+        final Record record = new Record(segmentFile(segmentNumber), mbid.toLowerCase(), offset + HEADER_SIZE, length, songId);
+        if (segment.size() >= maxSegmentBytes) close();
+        return record;
+    }
+
+    /**
+     * Closes the current segment. The next {@link #append} starts a new one.
+     */
+    synchronized void close() {
+        try {
+            if (index != null) index.close();
+            if (segment != null) segment.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close archive segment " + segmentNumber, e);
+        }
+        index = null;
+        segment = null;
+    }
+
+    /**
+     * Opens the last segment for appending, unless it's full. Unindexed trailing bytes are cut off.
+     */
+    private void open() throws IOException {
+        if (segment != null) return;
+        Files.createDirectories(directory);
+        final List<Path> segments = listSegments(directory);
+        segmentNumber = segments.isEmpty() ? 1 : toNumber(segments.get(segments.size() - 1));
+        if (!segments.isEmpty() && Files.size(segmentFile(segmentNumber)) >= maxSegmentBytes) segmentNumber++;
+        final Path file = segmentFile(segmentNumber);
+        segment = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = 0;
+        for (final Record record : readIndex(file)) {
+            end = Math.max(end, record.getOffset() + record.getLength());
+        }
+        if (segment.size() > end) {
+            LOG.warn("Cutting off " + (segment.size() - end) + " bytes of incomplete records from " + file);
+            segment.truncate(end);
+        }
+        AppendOnlyFiles.cutOffTornLine(toIndex(file));
+        index = Files.newBufferedWriter(toIndex(file), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private Path segmentFile(final int number) {
+        return directory.resolve(String.format("archive-%05d%s", number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Segment files of the archive in the given directory, in order.
+     *
+     * @param directory archive directory
+     * @return segments
+     * @throws IOException if the directory cannot be listed
+     */
+    static List<Path> listSegments(final Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return new ArrayList<>();
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().matches("archive-\\d+\\" + SEGMENT_SUFFIX))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Records of the given segment, as listed in its index.
+     *
+     * @param segment segment file
+     * @return records
+     * @throws IOException if the index cannot be read
+     */
+    static List<Record> readIndex(final Path segment) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        final Path index = toIndex(segment);
+        if (!Files.exists(index)) return records;
+        try (final BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                // a torn last line
+                if (fields.length != 4) continue;
+                try {
+                    records.add(new Record(segment, fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Skipping broken index line in " + index + ": " + line);
+                }
+            }
+        }
+        return records;
+    }
+
+    static Path toIndex(final Path segment) {
+        final String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static int toNumber(final Path segment) {
+        final String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring("archive-".length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * An archived, gzip-compressed extractor result.
+     */
+    static final class Record {
+
+        private final Path segment;
+        private final String mbid;
+        private final long offset;
+        private final long length;
+        private final long songId;
+
+        private Record(final Path segment, final String mbid, final long offset, final long length, final long songId) {
+            this.segment = segment;
+            this.mbid = mbid;
+            this.offset = offset;
+            this.length = length;
+            this.songId = songId;
+        }
+
+        Path getSegment() {
+            return segment;
+        }
+
+        String getMbid() {
+            return mbid;
+        }
+
+        /**
+         * @return offset of the payload within the segment
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return length of the gzip-compressed payload
+         */
+        long getLength() {
+            return length;
+        }
+
+        long getSongId() {
+            return songId;
+        }
+
+        /**
+         * Streams the compressed payload from the given channel, which must belong to this record's segment.
+         * Reads are positional, so several records of the same segment can be streamed concurrently.
+         *
+         * @param channel channel of the segment
+         * @param out target
+         * @throws IOException if reading or writing fails
+         */
+        void copyTo(final FileChannel channel, final OutputStream out) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+            long position = offset;
+            final long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                final int read = channel.read(buffer, position);
+                if (read < 0) throw new EOFException("Unexpected end of " + segment + " at " + position);
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return segment.getFileName() + "@" + offset + " (" + mbid + ")";
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Uploads the records of an {@link Archive}, e.g. one written by a machine without network access.
+ * Records are streamed from the segment files straight into the upload, several in parallel.
+ * Failed uploads are retried with exponential backoff. The outcome of each record is appended
+ * to a log next to its segment ({@code archive-NNNNN.done}), so an interrupted replay
+ * continues where it left off.
+ * <p>
+ * Usage: {@code ArchiveUploader <archive directory>}. Configured with system properties:
+ * <ul>
+ *     <li>{@code abzsubmit.server}: API base URL (default {@code https://acousticbrainz.org/api/v1/})</li>
+ *     <li>{@code abzsubmit.upload.maxInFlight}: parallel uploads (default 4)</li>
+ *     <li>{@code abzsubmit.archive.attempts}: attempts per record (default 5)</li>
+ *     <li>{@code abzsubmit.archive.backoff}: initial retry delay in ms (default 5000)</li>
+ * </ul>
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class ArchiveUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveUploader.class);
+    static final String DONE_SUFFIX = ".done";
+    private static final int RETRY_LATER = -1;
+    private static final long MAX_BACKOFF_MILLIS = 5L * 60L * 1000L;
+
+    private final Path directory;
+    private final AcousticBrainzClient client;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "AcousticBrainz Archive Retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LongAdder uploaded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * @param directory archive directory
+     * @param client client used for uploading
+     * @param maxAttempts attempts per record
+     * @param initialBackoffMillis delay before the first retry, doubled for every further attempt
+     */
+    ArchiveUploader(final Path directory, final AcousticBrainzClient client, final int maxAttempts, final long initialBackoffMillis) {
+        this.directory = directory;
+        this.client = client;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: ArchiveUploader <archive directory>");
+            System.exit(2);
+        }
+        final AcousticBrainzClient client = new AcousticBrainzClient(
+            System.getProperty("abzsubmit.server", "https://acousticbrainz.org/api/v1/"), "abzsubmit-archive");
+        final ArchiveUploader uploader = new ArchiveUploader(Paths.get(args[0]), client,
+            Integer.getInteger("abzsubmit.archive.attempts", 5), Long.getLong("abzsubmit.archive.backoff", 5000L));
+        final boolean success;
+        try {
+            success = uploader.run();
+        } finally {
+            client.shutdown();
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    /**
+     * Uploads all records that have not been uploaded yet, segment by segment.
+     *
+     * @return true, if no record failed
+     * @throws IOException if the archive cannot be read
+     * @throws InterruptedException if interrupted while waiting for uploads
+     */
+    boolean run() throws IOException, InterruptedException {
+        final long start = System.currentTimeMillis();
+        try {
+            for (final Path segment : Archive.listSegments(directory)) {
+                upload(segment);
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+        if (LOG.isInfoEnabled()) LOG.info("Uploaded " + uploaded.sum() + " record(s), " + failed.sum() + " failed, "
+            + skipped.sum() + " already done, in " + (System.currentTimeMillis() - start) + "ms.");
+        return failed.sum() == 0;
+    }
+
+    private void upload(final Path segment) throws IOException, InterruptedException {
+        final Set<Long> done = readDone(segment);
+        final List<Archive.Record> records = Archive.readIndex(segment);
+        records.removeIf(record -> done.contains(record.getOffset()));
+        skipped.add(done.size());
+        if (records.isEmpty()) return;
+        if (LOG.isInfoEnabled()) LOG.info("Uploading " + records.size() + " record(s) from " + segment);
+        final CountDownLatch remaining = new CountDownLatch(records.size());
+        AppendOnlyFiles.cutOffTornLine(toDone(segment));
+        try (final FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ);
+             final Writer log = Files.newBufferedWriter(toDone(segment), StandardCharsets.UTF_8,
+                 StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (final Archive.Record record : records) {
+                new Attempt(record, channel, log, remaining).run();
+            }
+            // the channel must stay open until every record is through
+            remaining.await();
+        }
+    }
+
+    /**
+     * Offsets of all records of the given segment that were uploaded or rejected by the server.
+     */
+    private static Set<Long> readDone(final Path segment) throws IOException {
+        final Set<Long> done = new HashSet<>();
+        final Path file = toDone(segment);
+        if (!Files.exists(file)) return done;
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 2) continue;
+                try {
+                    if (Integer.parseInt(fields[1]) != RETRY_LATER) done.add(Long.parseLong(fields[0]));
+                } catch (NumberFormatException e) {
+                    // ignore broken line
+                }
+            }
+        }
+        return done;
+    }
+
+    static Path toDone(final Path segment) {
+        final String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - Archive.SEGMENT_SUFFIX.length()) + DONE_SUFFIX);
+    }
+
+    /**
+     * Uploads a single record, retrying as long as that may help.
+     */
+    private final class Attempt implements Runnable {
+
+        private final Archive.Record record;
+        private final FileChannel channel;
+        private final Writer log;
+        private final CountDownLatch remaining;
+        private int attempts;
+
+        private Attempt(final Archive.Record record, final FileChannel channel, final Writer log, final CountDownLatch remaining) {
+            this.record = record;
+            this.channel = channel;
+            this.log = log;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void run() {
+            attempts++;
+            client.submitAsync(record.getMbid(), out -> record.copyTo(channel, out)).whenComplete((response, t) -> {
+                if (t == null && response.isSuccess()) {
+                    uploaded.increment();
+                    done(response.getCode());
+                } else if (t == null && !response.isRetryable()) {
+                    LOG.error("Server rejected " + record + ": " + response);
+                    failed.increment();
+                    done(response.getCode());
+                } else if (t instanceof RejectedExecutionException || attempts >= maxAttempts) {
+                    LOG.error("Giving up on " + record + " after " + attempts + " attempt(s): " + (t == null ? response : t));
+                    failed.increment();
+                    // the next run tries again
+                    done(RETRY_LATER);
+                } else {
+                    final long delay = Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(20, attempts - 1));
+                    LOG.warn("Upload of " + record + " failed (attempt " + attempts + "): " + (t == null ? response : t)
+                        + ". Retrying in " + delay + "ms.");
+                    scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+
+        /**
+         * Logs the final outcome of this record.
+         *
+         * @param code HTTP status code or {@link #RETRY_LATER}
+         */
+        private void done(final int code) {
+            synchronized (log) {
+                try {
+                    log.write(record.getOffset() + "\t" + code + "\n");
+                    log.flush();
+                } catch (IOException e) {
+                    LOG.error("Failed to log upload of " + record, e);
+                }
+            }
+            remaining.countDown();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Cheap pre-flight check of an audio file, so that corrupt or truncated files are
+ * rejected before we start an extractor process, which would otherwise spend seconds of CPU
+ * before failing. Files are only rejected on positive evidence, everything we cannot judge
+ * is left to the extractor:
+ * <ol>
+ *     <li>The file must not be empty. If it starts with the header of a container we know,
+ *     that container is checked further. For WAVE and AIFF files, the size in the header must not
+ *     exceed the file size. Files with other headers, e.g. MP3 files with leading padding,
+ *     Musepack, CAF, DSF or TTA, are not probed at all.</li>
+ *     <li>The first few frames of a known container must decode. Decoding relies on the
+ *     {@link AudioSystem} service providers beaTunes installs. If none of them can open the file,
+ *     this check is skipped.</li>
+ * </ol>
+ * Rejections are counted as {@code probe.rejected.*} in {@link SubmitMetrics}, files that
+ * could not be judged as {@code probe.skipped}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class AudioProbe {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AudioProbe.class);
+    /**
+     * Whether files are probed at all, system property {@code abzsubmit.probe} (default true).
+     */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("abzsubmit.probe", "true"));
+    private static final int HEADER_SIZE = 12;
+    // roughly 200ms of 16 bit stereo at 44.1kHz
+    private static final int PROBE_BYTES = 32 * 1024;
+
+    private AudioProbe() {
+    }
+
+    /**
+     * Checks the given file.
+     *
+     * @param audioFile audio file
+     * @throws RejectedFileException if the extractor would most likely fail on this file
+     * @throws IOException if the file cannot be read at all
+     */
+    static void check(final Path audioFile) throws IOException {
+        try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("probe")) {
+            final String container = checkHeader(audioFile);
+            if (container == null) {
+                SubmitMetrics.increment("probe.skipped");
+                return;
+            }
+            checkDecoding(audioFile);
+        }
+    }
+
+    /**
+     * Checks the file's header.
+     *
+     * @param audioFile audio file
+     * @return container or {@code null}, if not recognized
+     * @throws RejectedFileException if the file is empty or truncated
+     */
+    private static String checkHeader(final Path audioFile) throws IOException {
+        final long size = Files.size(audioFile);
+        final byte[] header = new byte[HEADER_SIZE];
+        int read = 0;
+        try (final InputStream in = Files.newInputStream(audioFile)) {
+            int n;
+            while (read < header.length && (n = in.read(header, read, header.length - read)) != -1) {
+                read += n;
+            }
+        }
+        if (read < header.length) throw reject("empty", "File is empty or truncated (" + size + " bytes).");
+        final String container = identify(header);
+        if (container == null) {
+            if (LOG.isDebugEnabled()) LOG.debug("Unrecognized header, not probing " + audioFile);
+            return null;
+        }
+        // RIFF and FORM store the size of everything that follows the first 8 bytes
+        if ("WAVE".equals(container) || "AIFF".equals(container)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(header, 4, 4)
+                .order("WAVE".equals(container) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            final long declared = (buffer.getInt() & 0xFFFFFFFFL) + 8;
+            // streaming writers may leave the size at 0 or -1
+            final boolean unknown = declared == 8 || declared == 0xFFFFFFFFL + 8;
+            if (!unknown && declared > size) throw reject("truncated", "Truncated " + container + " file (" + size + " of " + declared + " bytes).");
+        }
+        return container;
+    }
+
+    private static void checkDecoding(final Path audioFile) throws IOException {
+        final AudioInputStream source;
+        try {
+            source = AudioSystem.getAudioInputStream(audioFile.toFile());
+        } catch (UnsupportedAudioFileException | IOException e) {
+            // service providers also fail to open files they only partially support.
+            // we cannot tell, let the extractor try
+            if (LOG.isDebugEnabled()) LOG.debug("Cannot open " + audioFile + " for probing: " + e);
+            SubmitMetrics.increment("probe.skipped");
+            return;
+        }
+        final AudioInputStream pcm;
+        try {
+            pcm = toPCM(source);
+        } catch (IllegalArgumentException e) {
+            source.close();
+            if (LOG.isDebugEnabled()) LOG.debug("Cannot convert " + audioFile + " to PCM for probing: " + e);
+            SubmitMetrics.increment("probe.skipped");
+            return;
+        }
+        try (final AudioInputStream in = pcm) {
+            final byte[] buf = new byte[PROBE_BYTES];
+            int total = 0;
+            int n;
+            while (total < buf.length && (n = in.read(buf, total, buf.length - total)) != -1) {
+                total += n;
+            }
+            if (total == 0) throw reject("decode", "File contains no audio.");
+        } catch (RejectedFileException e) {
+            throw e;
+        } catch (IOException e) {
+            throw reject("decode", "File cannot be decoded: " + e.getMessage());
+        }
+    }
+
+    private static AudioInputStream toPCM(final AudioInputStream source) {
+        final AudioFormat sourceFormat = source.getFormat();
+        if (AudioFormat.Encoding.PCM_SIGNED.equals(sourceFormat.getEncoding())
+            || AudioFormat.Encoding.PCM_UNSIGNED.equals(sourceFormat.getEncoding())) return source;
+        final AudioFormat targetFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+            sourceFormat.getSampleRate(), 16, sourceFormat.getChannels(),
+            sourceFormat.getChannels() * 2, sourceFormat.getSampleRate(), false);
+        return AudioSystem.getAudioInputStream(targetFormat, source);
+    }
+
+    /**
+     * Identifies the container by its magic bytes.
+     *
+     * @param header first {@link #HEADER_SIZE} bytes of the file
+     * @return container name or {@code null}, if not recognized
+     */
+    static String identify(final byte[] header) {
+        final String ascii = new String(header, StandardCharsets.ISO_8859_1);
+        if (ascii.startsWith("ID3")) return "ID3";
+        if ((header[0] & 0xFF) == 0xFF && (header[1] & 0xE0) == 0xE0) return "MPEG";
+        if (ascii.startsWith("fLaC")) return "FLAC";
+        if (ascii.startsWith("OggS")) return "Ogg";
+        if (ascii.startsWith("RIFF") && ascii.startsWith("WAVE", 8)) return "WAVE";
+        if (ascii.startsWith("FORM") && (ascii.startsWith("AIFF", 8) || ascii.startsWith("AIFC", 8))) return "AIFF";
+        if (ascii.startsWith("ftyp", 4)) return "MP4";
+        if (ascii.startsWith("MAC ")) return "APE";
+        if (ascii.startsWith("wvpk")) return "WavPack";
+        // ASF header object GUID
+        if ((header[0] & 0xFF) == 0x30 && (header[1] & 0xFF) == 0x26 && (header[2] & 0xFF) == 0xB2 && (header[3] & 0xFF) == 0x75) return "ASF";
+        // raw AAC (ADTS) has the same sync word as MPEG audio and is covered above
+        return null;
+    }
+
+    private static RejectedFileException reject(final String reason, final String message) {
+        SubmitMetrics.increment("probe.rejected");
+        SubmitMetrics.increment("probe.rejected." + reason);
+        return new RejectedFileException(message);
+    }
+
+    /**
+     * Thrown, if a file fails the probe.
+     */
+    static final class RejectedFileException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RejectedFileException(final String message) {
+            super(message);
+        }
+    }
+}
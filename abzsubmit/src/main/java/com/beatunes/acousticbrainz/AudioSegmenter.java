@@ -0,0 +1,165 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Decodes an audio file and splits it into 16 bit PCM WAVE files of fixed length,
+ * one at a time. Decoding relies on the {@link AudioSystem} service providers beaTunes
+ * installs, so every format beaTunes can play can be split.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class AudioSegmenter implements Closeable {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final AudioInputStream pcm;
+    private final Path directory;
+    private final long framesPerSegment;
+    private int index;
+    private long startFrame;
+    private boolean done;
+
+    /**
+     * @param audioFile audio file
+     * @param segmentMillis length of each segment, the last one may be shorter
+     * @param directory directory to write segments to
+     * @throws IOException if the file cannot be read
+     * @throws UnsupportedAudioFileException if the file cannot be decoded
+     */
+    AudioSegmenter(final Path audioFile, final long segmentMillis, final Path directory) throws IOException, UnsupportedAudioFileException {
+        final AudioInputStream source = AudioSystem.getAudioInputStream(audioFile.toFile());
+        final AudioFormat sourceFormat = source.getFormat();
+        final AudioFormat targetFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED,
+            sourceFormat.getSampleRate(), 16, sourceFormat.getChannels(),
+            sourceFormat.getChannels() * 2, sourceFormat.getSampleRate(), false);
+        this.pcm = sourceFormat.matches(targetFormat) ? source : AudioSystem.getAudioInputStream(targetFormat, source);
+        this.directory = directory;
+        this.framesPerSegment = Math.max(1, (long) (targetFormat.getSampleRate() * segmentMillis / 1000.0));
+    }
+
+    /**
+     * Decodes and writes the next segment.
+     *
+     * @return segment or {@code null}, if there is no more audio
+     * @throws IOException if decoding or writing fails
+     */
+    Segment next() throws IOException {
+        if (done) return null;
+        final Path file = directory.resolve("segment-" + index + ".wav");
+        final long frames = writeWave(file);
+        if (frames < framesPerSegment) done = true;
+        if (frames == 0) {
+            Files.deleteIfExists(file);
+            return null;
+        }
+        final Segment result = new Segment(file, index, toMillis(startFrame), toMillis(frames));
+        index++;
+        startFrame += frames;
+        return result;
+    }
+
+    /**
+     * Writes up to {@link #framesPerSegment} frames. We write the header ourselves,
+     * because {@link AudioSystem#write} trusts the stream length, which we only know afterwards.
+     */
+    private long writeWave(final Path file) throws IOException {
+        final AudioFormat format = pcm.getFormat();
+        final int frameSize = format.getFrameSize();
+        final byte[] buf = new byte[frameSize * 4096];
+        long dataBytes = 0;
+        final long maxBytes = framesPerSegment * frameSize;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            int justRead;
+            while (dataBytes < maxBytes
+                && (justRead = pcm.read(buf, 0, (int) Math.min(buf.length, maxBytes - dataBytes))) != -1) {
+                final ByteBuffer data = ByteBuffer.wrap(buf, 0, justRead);
+                while (data.hasRemaining()) channel.write(data);
+                dataBytes += justRead;
+            }
+            channel.write(createHeader(format, dataBytes), 0);
+        }
+        return dataBytes / frameSize;
+    }
+
+    private static ByteBuffer createHeader(final AudioFormat format, final long dataBytes) {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] {'R', 'I', 'F', 'F'});
+        header.putInt((int) (HEADER_SIZE - 8 + dataBytes));
+        header.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+        header.putInt(16);
+        // PCM
+        header.putShort((short) 1);
+        header.putShort((short) format.getChannels());
+        header.putInt((int) format.getSampleRate());
+        header.putInt((int) format.getSampleRate() * format.getFrameSize());
+        header.putShort((short) format.getFrameSize());
+        header.putShort((short) format.getSampleSizeInBits());
+        header.put(new byte[] {'d', 'a', 't', 'a'});
+        header.putInt((int) dataBytes);
+        header.flip();
+        return header;
+    }
+
+    private long toMillis(final long frames) {
+        return (long) (frames * 1000.0 / pcm.getFormat().getFrameRate());
+    }
+
+    @Override
+    public void close() throws IOException {
+        pcm.close();
+    }
+
+    /**
+     * A segment written to disk.
+     */
+    static final class Segment {
+
+        private final Path file;
+        private final int index;
+        private final long startMillis;
+        private final long lengthMillis;
+
+        private Segment(final Path file, final int index, final long startMillis, final long lengthMillis) {
+            this.file = file;
+            this.index = index;
+            this.startMillis = startMillis;
+            this.lengthMillis = lengthMillis;
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        long getStartMillis() {
+            return startMillis;
+        }
+
+        long getLengthMillis() {
+            return lengthMillis;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.core.OperatingSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs extractor processes at low OS scheduling priority, so that playback and UI stay responsive.
+ * The extractor is started via a launcher, so that it runs at low priority from the start
+ * and no additional process is needed per extractor.
+ * <ul>
+ *     <li>On macOS, {@code taskpolicy -b} throttles both CPU and I/O. Without {@code taskpolicy},
+ *     {@code nice} is used, which does not lower I/O priority.</li>
+ *     <li>On Windows, {@code cmd /c start /b /low /wait} starts the extractor in the <em>Idle</em>
+ *     priority class, which does not lower I/O priority either. As the extractor then is a child
+ *     of {@code cmd}, the {@link ProcessWatchdog} needs its pid to kill it. Java 8 doesn't
+ *     tell us that pid, so there, the priority is not lowered.</li>
+ *     <li>Elsewhere, {@code nice} is used and, if available, {@code ionice -c 3}, which lowers I/O priority
+ *     to <em>idle</em>.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class BackgroundPriority {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackgroundPriority.class);
+    private static final Path TASKPOLICY = Paths.get("/usr/sbin/taskpolicy");
+    private static final Path IONICE = Paths.get("/usr/bin/ionice");
+
+    private BackgroundPriority() {
+    }
+
+    /**
+     * Command that starts the given command at low priority.
+     *
+     * @param command command
+     * @return command, prefixed with a launcher, if the platform supports that
+     */
+    static List<String> wrap(final List<String> command) {
+        final List<String> wrapped = new ArrayList<>();
+        if (OperatingSystem.isMac()) {
+            if (Files.isExecutable(TASKPOLICY)) {
+                wrapped.addAll(Arrays.asList(TASKPOLICY.toString(), "-b"));
+            } else {
+                wrapped.addAll(Arrays.asList("nice", "-n", "19"));
+            }
+        } else if (OperatingSystem.isWindows()) {
+            if (!hasPid()) {
+                if (LOG.isDebugEnabled()) LOG.debug("Not lowering extractor priority, because this Java version doesn't report process ids.");
+                return command;
+            }
+            // the empty argument is the window title, /wait passes on the exit code
+            wrapped.addAll(Arrays.asList("cmd", "/c", "start", "\"\"", "/b", "/low", "/wait"));
+        } else {
+            if (Files.isExecutable(IONICE)) {
+                wrapped.addAll(Arrays.asList(IONICE.toString(), "-c", "3"));
+            }
+            wrapped.addAll(Arrays.asList("nice", "-n", "19"));
+        }
+        wrapped.addAll(command);
+        return wrapped;
+    }
+
+    /**
+     * {@code Process.pid()} only exists in Java 9 and later.
+     */
+    private static boolean hasPid() {
+        try {
+            Process.class.getMethod("pid");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
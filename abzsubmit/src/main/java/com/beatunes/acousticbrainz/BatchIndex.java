@@ -0,0 +1,191 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Modification time index of the files {@link BatchRunner} has dealt with, so that repeated
+ * runs over the same directory tree only touch new or changed files and files the extractor failed on.
+ * <p>
+ * The index file is append-only, one line per file: hash of the absolute path, modification time,
+ * size, extractor build SHA and the {@link Outcome}. Later lines override earlier ones.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class BatchIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchIndex.class);
+
+    private final Path file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private Writer writer;
+    private boolean loaded;
+
+    /**
+     * What happened to a file.
+     */
+    enum Outcome {
+        /** Results were submitted or archived, or the recording was submitted before. */
+        DONE,
+        /** The file has no embedded MBID. */
+        NO_MBID,
+        /** The file is not supported or too long. */
+        UNSUPPORTED,
+        /** The extractor failed. Tried again by the next run. */
+        FAILED
+    }
+
+    /**
+     * @param file index file
+     */
+    BatchIndex(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Indicates, whether the given file was dealt with by an earlier run with the same
+     * extractor build and hasn't changed since. Files the extractor failed on are tried again,
+     * as the failure may have been transient, e.g. a timeout on a busy machine.
+     *
+     * @param audioFile audio file
+     * @param attributes the file's current attributes
+     * @param buildSha extractor build SHA
+     * @return true, if the file can be skipped
+     */
+    boolean isUnchanged(final Path audioFile, final BasicFileAttributes attributes, final String buildSha) {
+        load();
+        final Entry entry = entries.get(createKey(audioFile));
+        return entry != null && entry.outcome != Outcome.FAILED && entry.lastModified == attributes.lastModifiedTime().toMillis()
+            && entry.size == attributes.size() && entry.buildSha.equals(buildSha);
+    }
+
+    /**
+     * @param audioFile audio file
+     * @param attributes the file's attributes at the time it was read
+     * @param buildSha extractor build SHA
+     * @param outcome outcome
+     */
+    void record(final Path audioFile, final BasicFileAttributes attributes, final String buildSha, final Outcome outcome) {
+        load();
+        final String key = createKey(audioFile);
+        final Entry entry = new Entry(attributes.lastModifiedTime().toMillis(), attributes.size(), buildSha, outcome);
+        entries.put(key, entry);
+        store(key, entry);
+    }
+
+    synchronized void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close batch index " + file, e);
+        }
+        writer = null;
+    }
+
+    private synchronized void store(final String key, final Entry entry) {
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                AppendOnlyFiles.cutOffTornLine(file);
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(toLine(key, entry));
+            writer.flush();
+        } catch (IOException e) {
+            LOG.error("Failed to write batch index " + file, e);
+        }
+    }
+
+    /**
+     * Reads the index file. If it contains many overridden lines, it's compacted.
+     */
+    private synchronized void load() {
+        if (loaded) return;
+        loaded = true;
+        int lines = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                // ignore broken lines, e.g. a torn last line
+                if (fields.length != 5) continue;
+                try {
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        fields[3], Outcome.valueOf(fields[4])));
+                    lines++;
+                } catch (IllegalArgumentException e) {
+                    // ignore broken line
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            LOG.error("Failed to read batch index " + file, e);
+            return;
+        }
+        if (LOG.isDebugEnabled()) LOG.debug("Loaded " + entries.size() + " batch index entries.");
+        if (lines > entries.size() * 2 + 1000) compact();
+    }
+
+    private void compact() {
+        try {
+            final Path tempFile = Files.createTempFile(file.getParent(), "batch", ".tmp");
+            try {
+                try (final Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+                        writer.write(toLine(e.getKey(), e.getValue()));
+                    }
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to compact batch index " + file, e);
+        }
+    }
+
+    private static String toLine(final String key, final Entry entry) {
+        return key + '\t' + entry.lastModified + '\t' + entry.size + '\t' + entry.buildSha + '\t' + entry.outcome + '\n';
+    }
+
+    /**
+     * Hash of the absolute path, so that we don't have to escape paths in the index file.
+     */
+    private static String createKey(final Path audioFile) {
+        final MessageDigest digest = Checksums.createDigest();
+        digest.update(audioFile.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+        return Checksums.toHex(digest.digest());
+    }
+
+    private static class Entry {
+        private final long lastModified;
+        private final long size;
+        private final String buildSha;
+        private final Outcome outcome;
+
+        private Entry(final long lastModified, final long size, final String buildSha, final Outcome outcome) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.buildSha = buildSha;
+            this.outcome = outcome;
+        }
+    }
+}
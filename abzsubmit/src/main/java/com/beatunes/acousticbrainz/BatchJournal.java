@@ -0,0 +1,301 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of the state of each track of a (possibly very long) submission batch,
+ * so that a batch can be resumed after beaTunes was quit, without redoing finished work.
+ * <p>
+ * Each line holds the complete, current entry of one track: song id, {@link State}, the MBID the
+ * results were submitted for, extractor build SHA, the file's modification time, the time of the change
+ * and, for failures, the reason. Later lines override earlier ones. MBIDs looked up for tracks
+ * without embedded MBID are not journaled, {@link MBIDResolver}'s cache is the only place they're kept. Every line is written to the OS right away, so
+ * that it survives beaTunes quitting or crashing. To survive power loss, the journal is also
+ * forced to disk, but only in batches: every {@code abzsubmit.journal.syncBatch} lines (default 1000)
+ * or after {@code abzsubmit.journal.syncInterval} ms (default 1000), whatever comes first.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class BatchJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchJournal.class);
+    private static final String NONE = "-";
+    private static final int FIELDS = 7;
+
+    private final Path file;
+    private final int syncBatch;
+    private final long syncIntervalMillis;
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private FileChannel channel;
+    private ScheduledExecutorService syncer;
+    private int unsynced;
+    private boolean loaded;
+
+    /**
+     * States of a track.
+     */
+    enum State {
+        /** The extractor output is in the outbox or archive. */
+        EXTRACTED,
+        /** The extractor output was uploaded. */
+        UPLOADED,
+        /** Extracting or uploading failed, maybe just for now. Tried again by the next run. */
+        FAILED,
+        /**
+         * Extracting or uploading failed for good, e.g. because the file is broken, the extractor had to be killed
+         * or the server refused the results.
+         */
+        REJECTED
+    }
+
+    /**
+     * @param file journal file
+     * @param syncBatch number of lines after which the journal is forced to disk
+     * @param syncIntervalMillis time after which written lines are forced to disk
+     */
+    BatchJournal(final Path file, final int syncBatch, final long syncIntervalMillis) {
+        this.file = file;
+        this.syncBatch = Math.max(1, syncBatch);
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Journal that syncs as configured by the system properties {@code abzsubmit.journal.syncBatch}
+     * and {@code abzsubmit.journal.syncInterval}.
+     *
+     * @param file journal file
+     */
+    BatchJournal(final Path file) {
+        this(file, Integer.getInteger("abzsubmit.journal.syncBatch", 1000),
+            Long.getLong("abzsubmit.journal.syncInterval", 1000L));
+    }
+
+    /**
+     * Indicates, whether the given track was already dealt with by an earlier run, i.e. extracted,
+     * uploaded or rejected, with the same extractor build, and its file hasn't changed since.
+     * Tracks that {@link State#FAILED failed} are tried again, as the failure may have been transient,
+     * e.g. the extractor crashed while the machine was short of memory.
+     *
+     * @param songId song id
+     * @param buildSha extractor build SHA
+     * @param lastModified modification time of the song's file
+     * @return true, if the track doesn't have to be analyzed again
+     */
+    synchronized boolean isDone(final long songId, final String buildSha, final long lastModified) {
+        load();
+        final Entry entry = entries.get(songId);
+        return entry != null && entry.state != State.FAILED
+            && buildSha.equals(entry.buildSha) && entry.lastModified == lastModified;
+    }
+
+    /**
+     * @param songId song id
+     * @param lastModified modification time of the song's file
+     * @param mbid MBID the results were submitted for
+     * @param buildSha extractor build SHA
+     */
+    synchronized void extracted(final long songId, final long lastModified, final String mbid, final String buildSha) {
+        load();
+        final Entry current = entries.get(songId);
+        // the outbox may have been faster than we are
+        if (current != null && current.state == State.UPLOADED && current.lastModified == lastModified
+            && buildSha.equals(current.buildSha)) return;
+        update(songId, State.EXTRACTED, mbid, buildSha, lastModified, null);
+    }
+
+    /**
+     * @param songId song id
+     */
+    void uploaded(final long songId) {
+        update(songId, State.UPLOADED, null, null, null, null);
+    }
+
+    /**
+     * The track is tried again by the next run.
+     *
+     * @param songId song id
+     * @param buildSha extractor build SHA, {@code null} to keep the journaled one
+     * @param lastModified modification time of the song's file, {@code null} to keep the journaled one
+     * @param reason reason
+     */
+    void failed(final long songId, final String buildSha, final Long lastModified, final String reason) {
+        update(songId, State.FAILED, null, buildSha, lastModified, reason);
+    }
+
+    /**
+     * The track is not tried again, unless its file or the extractor changes.
+     *
+     * @param songId song id
+     * @param buildSha extractor build SHA, {@code null} to keep the journaled one
+     * @param lastModified modification time of the song's file, {@code null} to keep the journaled one
+     * @param reason reason
+     */
+    void rejected(final long songId, final String buildSha, final Long lastModified, final String reason) {
+        update(songId, State.REJECTED, null, buildSha, lastModified, reason);
+    }
+
+    /**
+     * Changes the state of a track. Values that are {@code null} are taken from the current entry.
+     */
+    private synchronized void update(final long songId, final State state, final String mbid, final String buildSha,
+                                     final Long lastModified, final String reason) {
+        load();
+        final Entry current = entries.get(songId);
+        final Entry entry = new Entry(state,
+            mbid != null || current == null ? mbid : current.mbid,
+            buildSha != null || current == null ? buildSha : current.buildSha,
+            lastModified != null ? lastModified : current == null ? -1 : current.lastModified,
+            reason);
+        entries.put(songId, entry);
+        try {
+            if (channel == null) open();
+            final ByteBuffer line = StandardCharsets.UTF_8.encode(toLine(songId, entry, System.currentTimeMillis()));
+            while (line.hasRemaining()) channel.write(line);
+            if (++unsynced >= syncBatch) sync();
+        } catch (IOException e) {
+            LOG.error("Failed to write journal " + file, e);
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(file.getParent());
+        // don't glue the first new line to a torn last line
+        AppendOnlyFiles.cutOffTornLine(file);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Forces written lines to disk.
+     */
+    synchronized void sync() {
+        if (channel == null || unsynced == 0) return;
+        try {
+            channel.force(false);
+            SubmitMetrics.increment("journal.sync");
+            unsynced = 0;
+        } catch (IOException e) {
+            LOG.error("Failed to sync journal " + file, e);
+        }
+    }
+
+    synchronized void close() {
+        if (channel == null) return;
+        sync();
+        syncer.shutdownNow();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close journal " + file, e);
+        }
+        channel = null;
+    }
+
+    /**
+     * Reads the journal. If it contains many overridden lines, it's compacted.
+     */
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        int lines = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t", -1);
+                // ignore broken lines, e.g. a torn last line
+                if (fields.length != FIELDS) continue;
+                try {
+                    entries.put(Long.parseLong(fields[0]), new Entry(State.valueOf(fields[1]),
+                        toValue(fields[2]), toValue(fields[3]), Long.parseLong(fields[4]), toValue(fields[6])));
+                    lines++;
+                } catch (IllegalArgumentException e) {
+                    // ignore broken line
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            LOG.error("Failed to read journal " + file, e);
+            return;
+        }
+        if (LOG.isDebugEnabled()) LOG.debug("Loaded " + entries.size() + " journal entries.");
+        if (lines > entries.size() * 2 + 1000) compact();
+    }
+
+    private void compact() {
+        try {
+            final Path tempFile = Files.createTempFile(file.getParent(), "journal", ".tmp");
+            try {
+                try (final FileChannel out = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+                     final Writer writer = Channels.newWriter(out, StandardCharsets.UTF_8.newEncoder(), -1)) {
+                    final long now = System.currentTimeMillis();
+                    for (final Map.Entry<Long, Entry> e : entries.entrySet()) {
+                        writer.write(toLine(e.getKey(), e.getValue(), now));
+                    }
+                    writer.flush();
+                    out.force(false);
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to compact journal " + file, e);
+        }
+    }
+
+    private static String toLine(final long songId, final Entry entry, final long time) {
+        return songId + "\t" + entry.state + '\t' + toField(entry.mbid) + '\t' + toField(entry.buildSha) + '\t'
+            + entry.lastModified + '\t' + time + '\t' + toField(entry.reason) + '\n';
+    }
+
+    private static String toField(final String value) {
+        return value == null || value.isEmpty() ? NONE : value.replaceAll("[\t\r\n]", " ");
+    }
+
+    private static String toValue(final String field) {
+        return NONE.equals(field) ? null : field;
+    }
+
+    private static class Entry {
+        private final State state;
+        private final String mbid;
+        private final String buildSha;
+        private final long lastModified;
+        private final String reason;
+
+        private Entry(final State state, final String mbid, final String buildSha, final long lastModified, final String reason) {
+            this.state = state;
+            this.mbid = mbid;
+            this.buildSha = buildSha;
+            this.lastModified = lastModified;
+            this.reason = reason;
+        }
+    }
+}
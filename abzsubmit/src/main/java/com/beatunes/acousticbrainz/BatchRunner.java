@@ -0,0 +1,383 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.audiokern.AudioId;
+import com.tagtraum.audiokern.AudioMetaData;
+import com.tagtraum.core.FileId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.beatunes.acousticbrainz.Extractor.ESSENTIA_BUILD_SHA;
+
+/**
+ * Runs the bundled extractor over all audio files in one or more directory trees and submits
+ * or archives the results, without beaTunes. Meant for headless machines.
+ * <p>
+ * Directories are listed in parallel and extractors run in an {@link ExtractorPool}.
+ * Only files with an embedded MBID are analyzed, as there is no beaTunes to look one up.
+ * Like in beaTunes, tracks of 30 minutes or longer are skipped. Symbolic links are not followed.
+ * What happened to each file is remembered in a {@link BatchIndex}, so that repeated runs only
+ * touch new or changed files and files the extractor failed on. Recordings that were already submitted are skipped via the
+ * {@link SubmissionLedger} that is shared with the plugin.
+ * <p>
+ * Configured with system properties:
+ * <ul>
+ *     <li>{@code abzsubmit.batch.concurrency}: parallel extractors (default: processors)</li>
+ *     <li>{@code abzsubmit.batch.walkers}: directories listed in parallel (default 4)</li>
+ *     <li>{@code abzsubmit.batch.offline}: archive results instead of uploading them (default false),
+ *     see {@link ArchiveUploader}</li>
+ *     <li>{@code abzsubmit.batch.background}: run extractors at low priority (default false)</li>
+ *     <li>{@code abzsubmit.batch.drainTimeout}: how long to wait for pending uploads in ms (default 10 min).
+ *     Uploads left over are resumed by the next run.</li>
+ *     <li>{@code abzsubmit.dir}: base directory for index, ledger, outbox and archive</li>
+ *     <li>{@code abzsubmit.server}: AcousticBrainz API base URL</li>
+ *     <li>{@code abzsubmit.scratch.*}: see {@link ScratchSpace#fromSystemProperties()}</li>
+ *     <li>{@code abzsubmit.extractor}, {@code abzsubmit.extractor.buildSha}: extractor binary to use
+ *     instead of the bundled one, e.g. on Linux, see {@link Extractor}</li>
+ * </ul>
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class BatchRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchRunner.class);
+    private static final Set<String> AUDIO_EXTENSIONS = new HashSet<>(Arrays.asList(
+        "mp3", "m4a", "mp4", "aac", "alac", "flac", "ogg", "oga", "opus", "wav", "aif", "aiff", "wma", "ape", "wv"));
+    // there is no beaTunes song
+    private static final long NO_SONG_ID = 0L;
+
+    private final ExtractorPool pool;
+    private final ThreadPoolExecutor walkers;
+    private final BatchIndex index;
+    private final SubmissionLedger ledger;
+    private final ScratchSpace scratch;
+    private final Outbox outbox;
+    private final Archive archive;
+    private final boolean background;
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder unchanged = new LongAdder();
+    private final LongAdder extracted = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder noMBID = new LongAdder();
+    private final LongAdder unsupported = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private Path profile;
+
+    /**
+     * @param concurrency number of parallel extractors
+     * @param walkerCount number of directories listed in parallel
+     * @param index index of files dealt with by earlier runs
+     * @param ledger submitted recordings
+     * @param scratch scratch space for extractor output
+     * @param outbox outbox for uploads, {@code null}, if results are archived
+     * @param archive archive, {@code null}, if results are uploaded
+     * @param background true, if extractors run at low priority
+     */
+    BatchRunner(final int concurrency, final int walkerCount, final BatchIndex index, final SubmissionLedger ledger,
+                final ScratchSpace scratch, final Outbox outbox, final Archive archive, final boolean background) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ExtractorPool(Math.max(1, concurrency));
+        this.walkers = new ThreadPoolExecutor(Math.max(1, walkerCount), Math.max(1, walkerCount), 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz Walker " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.index = index;
+        this.ledger = ledger;
+        this.scratch = scratch;
+        this.outbox = outbox;
+        this.archive = archive;
+        this.background = background;
+        if (outbox != null) {
+            // submissions only count once they are uploaded
+            outbox.setListener(new Outbox.Listener() {
+                @Override
+                public void uploaded(final Outbox.Entry entry) {
+                    ledger.record(entry.getMbid(), ESSENTIA_BUILD_SHA);
+                }
+
+                @Override
+                public void failed(final Outbox.Entry entry, final String reason, final boolean permanent) {
+                    ledger.release(entry.getMbid(), ESSENTIA_BUILD_SHA);
+                }
+            });
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: BatchRunner <directory>...");
+            System.exit(2);
+        }
+        final boolean offline = Boolean.getBoolean("abzsubmit.batch.offline");
+        final AcousticBrainzClient client = new AcousticBrainzClient(
+            System.getProperty("abzsubmit.server", "https://acousticbrainz.org/api/v1/"), "abzsubmit-batch");
+        final Outbox outbox = offline ? null : new Outbox(Directories.getDataDirectory("outbox"), client);
+        final Archive archive = offline
+            ? new Archive(Paths.get(System.getProperty("abzsubmit.archive.dir", Directories.getDataDirectory("archive").toString())))
+            : null;
+        final BatchIndex index = new BatchIndex(Directories.getDataDirectory().resolve("batch.tsv"));
+        final SubmissionLedger ledger = new SubmissionLedger(Directories.getDataDirectory().resolve("submitted.tsv"));
+        final ScratchSpace scratch = ScratchSpace.fromSystemProperties();
+        final BatchRunner runner = new BatchRunner(
+            Integer.getInteger("abzsubmit.batch.concurrency", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("abzsubmit.batch.walkers", 4),
+            index, ledger, scratch, outbox, archive,
+            Boolean.getBoolean("abzsubmit.batch.background"));
+        // on ctrl-c, keep what we have. everything else is picked up again by the next run
+        final Thread hook = new Thread(() -> {
+            if (archive != null) archive.close();
+            index.close();
+            ledger.close();
+        }, "AcousticBrainz Batch Shutdown");
+        Runtime.getRuntime().addShutdownHook(hook);
+        final boolean success;
+        try {
+            scratch.start();
+            if (outbox != null) outbox.start();
+            SubmitMetrics.startReporting();
+            final Path[] directories = Arrays.stream(args).map(Paths::get).toArray(Path[]::new);
+            success = runner.run(directories);
+            if (outbox != null) runner.drain(Long.getLong("abzsubmit.batch.drainTimeout", TimeUnit.MINUTES.toMillis(10)));
+        } finally {
+            SubmitMetrics.stopReporting();
+            if (outbox != null) outbox.shutdown();
+            client.shutdown();
+            scratch.shutdown();
+            hook.run();
+            Runtime.getRuntime().removeShutdownHook(hook);
+        }
+        System.exit(success ? 0 : 1);
+    }
+
+    /**
+     * Analyzes all new or changed audio files in the given directory trees.
+     *
+     * @param directories directories
+     * @return true, if no extractor failed
+     * @throws IOException if the extractor cannot be extracted
+     * @throws InterruptedException if interrupted while waiting for the extractors
+     */
+    boolean run(final Path... directories) throws IOException, InterruptedException {
+        final long start = System.currentTimeMillis();
+        profile = Extractor.getDefaultProfile();
+        try {
+            for (final Path directory : directories) {
+                walk(directory);
+            }
+            awaitIdle();
+        } finally {
+            walkers.shutdownNow();
+            pool.shutdown();
+        }
+        if (LOG.isInfoEnabled()) LOG.info("Scanned " + scanned.sum() + " audio file(s) in " + (System.currentTimeMillis() - start) + "ms. "
+            + extracted.sum() + " extracted, " + unchanged.sum() + " unchanged, " + duplicates.sum() + " already submitted, "
+            + noMBID.sum() + " without MBID, " + unsupported.sum() + " unsupported, " + rejected.sum() + " corrupt, " + failed.sum() + " failed, "
+            + errors.sum() + " error(s).");
+        return failed.sum() == 0 && errors.sum() == 0;
+    }
+
+    /**
+     * Waits for pending uploads.
+     *
+     * @param timeoutMillis max time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void drain(final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!outbox.isEmpty()) {
+            if (System.currentTimeMillis() > deadline) {
+                LOG.warn("Uploads are still pending. They will be resumed by the next run.");
+                return;
+            }
+            Thread.sleep(1000L);
+        }
+    }
+
+    private void walk(final Path directory) {
+        begin();
+        try {
+            walkers.execute(() -> {
+                try {
+                    list(directory);
+                } finally {
+                    end();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            end();
+        }
+    }
+
+    private void list(final Path directory) {
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (final Path path : entries) {
+                final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()) {
+                    walk(path);
+                } else if (attributes.isRegularFile() && isAudio(path)) {
+                    scanned.increment();
+                    if (index.isUnchanged(path, attributes, ESSENTIA_BUILD_SHA)) {
+                        unchanged.increment();
+                        continue;
+                    }
+                    begin();
+                    try {
+                        // blocks, while the extractors are busy
+                        pool.submit(() -> {
+                            try {
+                                process(path, attributes);
+                            } finally {
+                                end();
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        end();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to list " + directory, e);
+            errors.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void process(final Path audioFile, final BasicFileAttributes attributes) {
+        try {
+            final AudioMetaData metaData;
+            try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("tags")) {
+                metaData = AudioMetaData.get(audioFile, attributes, new FileId(audioFile), false);
+            }
+            if (metaData == null || metaData.getTotalTime() >= Extractor.THIRTY_MINUTES) {
+                if (LOG.isDebugEnabled()) LOG.debug("Skipping unsupported or too long file " + audioFile);
+                finish(audioFile, attributes, BatchIndex.Outcome.UNSUPPORTED, unsupported);
+                return;
+            }
+            final String mbid = metaData.getTrackIds()
+                .stream()
+                .filter(id -> AudioId.MUSIC_BRAINZ_TRACK.equals(id.getGeneratorName()))
+                .map(AudioId::getId)
+                .map(String::toLowerCase)
+                .findFirst().orElse(null);
+            if (mbid == null) {
+                if (LOG.isDebugEnabled()) LOG.debug("Skipping file without MBID " + audioFile);
+                finish(audioFile, attributes, BatchIndex.Outcome.NO_MBID, noMBID);
+                return;
+            }
+            if (AudioProbe.ENABLED) {
+                try {
+                    AudioProbe.check(audioFile);
+                } catch (AudioProbe.RejectedFileException e) {
+                    LOG.warn("Skipping " + audioFile + ". " + e.getMessage());
+                    finish(audioFile, attributes, BatchIndex.Outcome.UNSUPPORTED, rejected);
+                    return;
+                }
+            }
+            if (!ledger.claim(mbid, ESSENTIA_BUILD_SHA)) {
+                if (LOG.isDebugEnabled()) LOG.debug("Skipping " + audioFile + ". Recording " + mbid + " was already submitted.");
+                finish(audioFile, attributes, BatchIndex.Outcome.DONE, duplicates);
+                return;
+            }
+            boolean handedOff = false;
+            try (final ScratchSpace.Job job = scratch.reserve(Extractor.OUTPUT_BYTES)) {
+                final Path outputFile = job.createFile("acousticbrainz", ".json");
+                final int exitCode = Extractor.run(audioFile.toString(), metaData.getTotalTime(),
+                    audioFile.toAbsolutePath(), outputFile, profile, job.getDirectory(), background, p -> {});
+                if (exitCode != Extractor.OK) {
+                    finish(audioFile, attributes, BatchIndex.Outcome.FAILED, failed);
+                    return;
+                }
+                final String usedMBID;
+                try (final Reader in = Files.newBufferedReader(outputFile)) {
+                    final String scannedMBID = MBIDScanner.scan(in);
+                    usedMBID = scannedMBID != null ? scannedMBID.toLowerCase() : mbid;
+                }
+                // the file may belong to a different recording than the one we claimed
+                if (!ledger.link(mbid, usedMBID, ESSENTIA_BUILD_SHA)) {
+                    if (LOG.isDebugEnabled()) LOG.debug("Skipping " + audioFile + ". Recording " + usedMBID + " was already submitted.");
+                    finish(audioFile, attributes, BatchIndex.Outcome.DONE, duplicates);
+                    return;
+                }
+                if (archive != null) {
+                    archive.append(usedMBID, NO_SONG_ID, outputFile);
+                    ledger.record(usedMBID, ESSENTIA_BUILD_SHA);
+                } else {
+                    outbox.enqueue(usedMBID, NO_SONG_ID, audioFile.toString(), outputFile);
+                    handedOff = true;
+                }
+                finish(audioFile, attributes, BatchIndex.Outcome.DONE, extracted);
+            } finally {
+                // no-op, if the submission was recorded.
+                // the outbox records or releases the claim, once the upload is done
+                if (!handedOff) ledger.release(mbid, ESSENTIA_BUILD_SHA);
+            }
+        } catch (UnsupportedAudioFileException e) {
+            finish(audioFile, attributes, BatchIndex.Outcome.UNSUPPORTED, unsupported);
+        } catch (ProcessWatchdog.ExtractorKilledException e) {
+            // counted as failure, the next run tries again
+            finish(audioFile, attributes, BatchIndex.Outcome.FAILED, failed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // not recorded, so that the next run tries again
+            LOG.error("Failed to analyze/submit " + audioFile, e);
+            errors.increment();
+        } finally {
+            SubmitMetrics.songProcessed();
+        }
+    }
+
+    private void finish(final Path audioFile, final BasicFileAttributes attributes, final BatchIndex.Outcome outcome, final LongAdder counter) {
+        index.record(audioFile, attributes, ESSENTIA_BUILD_SHA, outcome);
+        counter.increment();
+    }
+
+    private static boolean isAudio(final Path file) {
+        final String name = file.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 && AUDIO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private void begin() {
+        pending.incrementAndGet();
+    }
+
+    private void end() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void awaitIdle() throws InterruptedException {
+        while (pending.get() > 0) {
+            wait();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 helpers.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class Checksums {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Checksums() {
+    }
+
+    /**
+     * @return new SHA-256 digest
+     */
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is required to be present in every JVM
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds the complete file into the given digest.
+     *
+     * @param digest digest
+     * @param file file
+     * @throws IOException if the file cannot be read
+     */
+    static void update(final MessageDigest digest, final Path file) throws IOException {
+        final byte[] buf = new byte[64 * 1024];
+        try (final InputStream in = Files.newInputStream(file)) {
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                digest.update(buf, 0, count);
+            }
+        }
+    }
+
+    /**
+     * Hex encoded SHA-256 of a file.
+     *
+     * @param file file
+     * @return checksum
+     * @throws IOException if the file cannot be read
+     */
+    static String sha256(final Path file) throws IOException {
+        final MessageDigest digest = createDigest();
+        update(digest, file);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param bytes bytes
+     * @return lower case hex string
+     */
+    static String toHex(final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i=0; i<bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Knows how many low-level submissions AcousticBrainz already has for a recording.
+ * MBIDs of upcoming songs can be {@link #register(String) registered} ahead of time,
+ * so that a single count request answers questions for many songs.
+ * Answers are cached for a limited time and evicted, once they have expired.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class CoverageChecker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CoverageChecker.class);
+    private static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private final AcousticBrainzClient client;
+    private final long ttlMillis;
+    private final Map<String, Count> counts = new ConcurrentHashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param client client
+     * @param ttlMillis time a count is considered current
+     */
+    CoverageChecker(final AcousticBrainzClient client, final long ttlMillis) {
+        this.client = client;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Checker with a TTL defined by the system property {@code abzsubmit.precheck.ttl} (ms), by default 24h.
+     *
+     * @param client client
+     */
+    CoverageChecker(final AcousticBrainzClient client) {
+        this(client, Long.getLong("abzsubmit.precheck.ttl", DEFAULT_TTL_MILLIS));
+    }
+
+    /**
+     * Registers the MBID of an upcoming song, so that its count is fetched along with others.
+     *
+     * @param mbid MBID
+     */
+    void register(final String mbid) {
+        final String key = mbid.toLowerCase();
+        if (getCurrent(key) == null) pending.add(key);
+    }
+
+    /**
+     * Number of low-level submissions for the given recording.
+     * If the count is not cached, it's fetched together with up to
+     * {@link AcousticBrainzClient#MAX_COUNT_BATCH_SIZE} - 1 registered MBIDs.
+     *
+     * @param mbid MBID
+     * @return number of submissions
+     * @throws IOException if the count cannot be fetched
+     */
+    int getCount(final String mbid) throws IOException {
+        final String key = mbid.toLowerCase();
+        final Count cached = getCurrent(key);
+        if (cached != null) {
+            SubmitMetrics.increment("precheck.hit");
+            return cached.count;
+        }
+        SubmitMetrics.increment("precheck.miss");
+        final Set<String> batch = new LinkedHashSet<>();
+        batch.add(key);
+        for (final Iterator<String> i = pending.iterator(); i.hasNext() && batch.size() < AcousticBrainzClient.MAX_COUNT_BATCH_SIZE;) {
+            final String p = i.next();
+            i.remove();
+            if (getCurrent(p) == null) batch.add(p);
+        }
+        final Map<String, Integer> fetched;
+        try {
+            fetched = client.getCounts(batch);
+        } catch (IOException e) {
+            // try the others again later
+            batch.remove(key);
+            pending.addAll(batch);
+            throw e;
+        }
+        SubmitMetrics.increment("precheck.request");
+        if (LOG.isDebugEnabled()) LOG.debug("Fetched submission counts for " + fetched.size() + " recordings.");
+        final long now = System.currentTimeMillis();
+        // counts of recordings that aren't asked for again would stay forever
+        counts.values().removeIf(c -> !isCurrent(c));
+        fetched.forEach((m, c) -> counts.put(m, new Count(c, now)));
+        pending.removeAll(fetched.keySet());
+        final Integer count = fetched.get(key);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Cached count, if it's current. Expired counts are evicted.
+     */
+    private Count getCurrent(final String key) {
+        final Count count = counts.get(key);
+        if (count == null) return null;
+        if (isCurrent(count)) return count;
+        counts.remove(key, count);
+        return null;
+    }
+
+    private boolean isCurrent(final Count count) {
+        return count != null && System.currentTimeMillis() - count.timestamp < ttlMillis;
+    }
+
+    private static class Count {
+        private final int count;
+        private final long timestamp;
+
+        private Count(final int count, final long timestamp) {
+            this.count = count;
+            this.timestamp = timestamp;
+        }
+    }
+}
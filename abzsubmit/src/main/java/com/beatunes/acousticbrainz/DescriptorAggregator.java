@@ -0,0 +1,236 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.*;
+
+/**
+ * Combines the low-level documents of consecutive segments of one track into a single document,
+ * as if the extractor had analyzed the whole track.
+ * <ul>
+ *     <li>Means, medians and other scalars are averaged, weighted by segment length.</li>
+ *     <li>Variances are pooled with their means, i.e. {@code var}/{@code mean},
+ *     {@code dvar}/{@code dmean} and {@code dvar2}/{@code dmean2}.</li>
+ *     <li>{@code min} and {@code max} are the minimum and maximum over all segments.</li>
+ *     <li>Counts ({@code *_count}) are summed, beat positions are shifted and concatenated.</li>
+ *     <li>Strings (e.g. keys and scales) are taken from the segments with the largest total length.</li>
+ * </ul>
+ * Values that are equal in all segments are kept as they are.
+ * Medians are only approximated by this. To let consumers tell such documents apart from
+ * regular extractor output, {@code metadata.version.segmented} is set to {@code true}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class DescriptorAggregator {
+
+    private static final String[][] POOLED = {{"var", "mean"}, {"dvar", "dmean"}, {"dvar2", "dmean2"}};
+    private static final Set<String> SHIFTED = new HashSet<>(Arrays.asList("beats_position", "onset_times"));
+
+    private DescriptorAggregator() {
+    }
+
+    /**
+     * Aggregates segment documents.
+     *
+     * @param segments low-level documents of consecutive segments, in order
+     * @param lengths segment lengths in seconds, used as weights
+     * @param offsets segment start times in seconds
+     * @return aggregated document. {@code metadata.audio_properties.length} is the total length,
+     * {@code metadata.version.segmented} is {@code true}.
+     */
+    static JSONObject aggregate(final List<JSONObject> segments, final double[] lengths, final double[] offsets) {
+        if (segments.isEmpty()) throw new IllegalArgumentException("No segments");
+        if (segments.size() != lengths.length || segments.size() != offsets.length) {
+            throw new IllegalArgumentException("Need one length and offset per segment");
+        }
+        final double total = Arrays.stream(lengths).sum();
+        final double[] weights = new double[lengths.length];
+        for (int i=0; i<lengths.length; i++) {
+            weights[i] = total > 0 ? lengths[i] / total : 1.0 / lengths.length;
+        }
+        final JSONObject result = (JSONObject) merge(null, new ArrayList<>(segments), weights, offsets);
+        final Object metadata = result.get("metadata");
+        if (metadata instanceof JSONObject) {
+            final Object audioProperties = ((JSONObject) metadata).get("audio_properties");
+            if (audioProperties instanceof JSONObject) {
+                put((JSONObject) audioProperties, "length", total);
+                // describes the segment, not the track
+                ((JSONObject) audioProperties).remove("md5_encoded");
+            }
+            Object version = ((JSONObject) metadata).get("version");
+            if (!(version instanceof JSONObject)) {
+                version = new JSONObject();
+                put((JSONObject) metadata, "version", version);
+            }
+            put((JSONObject) version, "segmented", true);
+        }
+        return result;
+    }
+
+    private static Object merge(final String key, final List<Object> values, final double[] weights, final double[] offsets) {
+        final Object first = values.get(0);
+        // counts and time stamps differ, even if they are equal in all segments
+        if (SHIFTED.contains(key) && allInstances(values, JSONArray.class)) {
+            return mergeArrays(key, values, weights, offsets);
+        }
+        if (key != null && key.endsWith("_count") && allInstances(values, Number.class)) {
+            return sum(values);
+        }
+        if (allEqual(values)) return first;
+        if (first instanceof JSONObject && allInstances(values, JSONObject.class)) {
+            return mergeObjects(values, weights, offsets);
+        }
+        if (first instanceof JSONArray && allInstances(values, JSONArray.class)) {
+            return mergeArrays(key, values, weights, offsets);
+        }
+        if (first instanceof Number && allInstances(values, Number.class)) {
+            if ("min".equals(key)) return values.stream().mapToDouble(v -> ((Number) v).doubleValue()).min().getAsDouble();
+            if ("max".equals(key)) return values.stream().mapToDouble(v -> ((Number) v).doubleValue()).max().getAsDouble();
+            return weightedMean(values, weights);
+        }
+        return heaviest(values, weights);
+    }
+
+    private static JSONObject mergeObjects(final List<Object> values, final double[] weights, final double[] offsets) {
+        final JSONObject result = new JSONObject();
+        final JSONObject first = (JSONObject) values.get(0);
+        for (final Object k : first.keySet()) {
+            final String key = (String) k;
+            final List<Object> children = new ArrayList<>();
+            for (final Object v : values) children.add(((JSONObject) v).get(key));
+            if (children.contains(null)) {
+                // not produced for all segments, keep the first
+                put(result, key, first.get(key));
+            } else {
+                put(result, key, merge(key, children, weights, offsets));
+            }
+        }
+        // variances need to be pooled with the per-segment means
+        for (final String[] pair : POOLED) {
+            final String var = pair[0];
+            final String mean = pair[1];
+            if (!first.containsKey(var) || !first.containsKey(mean)) continue;
+            final List<double[]> vars = new ArrayList<>();
+            final List<double[]> means = new ArrayList<>();
+            for (final Object v : values) {
+                final double[] segmentVar = toDoubles(((JSONObject) v).get(var));
+                final double[] segmentMean = toDoubles(((JSONObject) v).get(mean));
+                if (segmentVar == null || segmentMean == null || segmentVar.length != segmentMean.length) break;
+                vars.add(segmentVar);
+                means.add(segmentMean);
+            }
+            if (vars.size() != values.size()) continue;
+            final double[] pooledMean = toDoubles(result.get(mean));
+            if (pooledMean == null || pooledMean.length != vars.get(0).length) continue;
+            final double[] pooled = new double[pooledMean.length];
+            for (int s=0; s<vars.size(); s++) {
+                for (int i=0; i<pooled.length; i++) {
+                    pooled[i] += weights[s] * (vars.get(s)[i] + means.get(s)[i] * means.get(s)[i]);
+                }
+            }
+            for (int i=0; i<pooled.length; i++) {
+                pooled[i] = Math.max(0, pooled[i] - pooledMean[i] * pooledMean[i]);
+            }
+            put(result, var, first.get(var) instanceof JSONArray ? toArray(pooled) : pooled[0]);
+        }
+        return result;
+    }
+
+    private static JSONArray mergeArrays(final String key, final List<Object> values, final double[] weights, final double[] offsets) {
+        if (SHIFTED.contains(key)) {
+            final JSONArray result = new JSONArray();
+            for (int s=0; s<values.size(); s++) {
+                for (final Object v : (JSONArray) values.get(s)) {
+                    add(result, v instanceof Number ? ((Number) v).doubleValue() + offsets[s] : v);
+                }
+            }
+            return result;
+        }
+        final int size = ((JSONArray) values.get(0)).size();
+        for (final Object v : values) {
+            if (((JSONArray) v).size() != size) {
+                // e.g. variable length lists, which cannot be merged element by element
+                return (JSONArray) heaviest(values, weights);
+            }
+        }
+        final JSONArray result = new JSONArray();
+        for (int i=0; i<size; i++) {
+            final List<Object> elements = new ArrayList<>();
+            for (final Object v : values) elements.add(((JSONArray) v).get(i));
+            // elements of min/max arrays are still minima/maxima
+            add(result, merge(key, elements, weights, offsets));
+        }
+        return result;
+    }
+
+    private static boolean allEqual(final List<Object> values) {
+        final Object first = values.get(0);
+        for (final Object v : values) {
+            if (!Objects.equals(first, v)) return false;
+        }
+        return true;
+    }
+
+    private static boolean allInstances(final List<Object> values, final Class<?> type) {
+        for (final Object v : values) {
+            if (!type.isInstance(v)) return false;
+        }
+        return true;
+    }
+
+    private static Object sum(final List<Object> values) {
+        long sum = 0;
+        for (final Object v : values) sum += ((Number) v).longValue();
+        return sum;
+    }
+
+    private static double weightedMean(final List<Object> values, final double[] weights) {
+        double mean = 0;
+        for (int i=0; i<values.size(); i++) mean += weights[i] * ((Number) values.get(i)).doubleValue();
+        return mean;
+    }
+
+    /**
+     * The value with the largest total weight.
+     */
+    private static Object heaviest(final List<Object> values, final double[] weights) {
+        final Map<Object, Double> totals = new LinkedHashMap<>();
+        for (int i=0; i<values.size(); i++) totals.merge(values.get(i), weights[i], Double::sum);
+        return Collections.max(totals.entrySet(), Map.Entry.comparingByValue()).getKey();
+    }
+
+    private static double[] toDoubles(final Object value) {
+        if (value instanceof Number) return new double[] {((Number) value).doubleValue()};
+        if (!(value instanceof JSONArray)) return null;
+        final JSONArray array = (JSONArray) value;
+        final double[] doubles = new double[array.size()];
+        for (int i=0; i<doubles.length; i++) {
+            if (!(array.get(i) instanceof Number)) return null;
+            doubles[i] = ((Number) array.get(i)).doubleValue();
+        }
+        return doubles;
+    }
+
+    private static JSONArray toArray(final double[] doubles) {
+        final JSONArray array = new JSONArray();
+        for (final double d : doubles) add(array, d);
+        return array;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(final JSONObject object, final String key, final Object value) {
+        object.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void add(final JSONArray array, final Object value) {
+        array.add(value);
+    }
+}
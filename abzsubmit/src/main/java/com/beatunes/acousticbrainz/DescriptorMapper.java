@@ -0,0 +1,112 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.audiokern.AudioSong;
+import com.tagtraum.audiokern.key.Key;
+import com.tagtraum.audiokern.key.KeyFactory;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Copies key and tempo from the extractor's low-level output to a song, so that beaTunes
+ * doesn't have to decode the file again for its own key and tempo analysis.
+ * Mood is not part of the low-level output (it's computed by AcousticBrainz' high-level models)
+ * and therefore cannot be copied.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class DescriptorMapper {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DescriptorMapper.class);
+    // outside of this, the extractor most likely got it wrong
+    private static final double MIN_BPM = 30;
+    private static final double MAX_BPM = 300;
+
+    private DescriptorMapper() {
+    }
+
+    /**
+     * Sets key and tempo of the given song from the given extractor output, unless they are already set.
+     *
+     * @param song song
+     * @param outputFile low-level JSON produced by the extractor
+     * @throws IOException if the output cannot be read
+     */
+    static void apply(final AudioSong song, final Path outputFile) throws IOException {
+        if (song.getKey() != null && song.getExactBPM() != null) return;
+        final JSONObject document;
+        try (final Reader reader = Files.newBufferedReader(outputFile, StandardCharsets.UTF_8)) {
+            document = (JSONObject) new JSONParser().parse(reader);
+        } catch (ParseException | ClassCastException e) {
+            throw new IOException("Failed to parse extractor output " + outputFile + ": " + e, e);
+        }
+        if (song.getKey() == null) {
+            final Key key = toKey(document);
+            if (key != null) {
+                if (LOG.isDebugEnabled()) LOG.debug("Setting key of " + song + " to " + key);
+                song.setKey(key);
+                SubmitMetrics.increment("mapped.key");
+            }
+        }
+        if (song.getExactBPM() == null) {
+            final Float bpm = toBPM(document);
+            if (bpm != null) {
+                if (LOG.isDebugEnabled()) LOG.debug("Setting BPM of " + song + " to " + bpm);
+                song.setExactBPM(bpm);
+                SubmitMetrics.increment("mapped.bpm");
+            }
+        }
+    }
+
+    /**
+     * Key from {@code tonal.key_key} and {@code tonal.key_scale}, e.g. {@code "Eb"} and {@code "minor"}.
+     *
+     * @param document low-level document
+     * @return key or {@code null}
+     */
+    static Key toKey(final JSONObject document) {
+        final Object tonal = document.get("tonal");
+        if (!(tonal instanceof JSONObject)) return null;
+        final Object tonic = ((JSONObject) tonal).get("key_key");
+        final Object scale = ((JSONObject) tonal).get("key_scale");
+        if (!(tonic instanceof String) || !(scale instanceof String)) return null;
+        // ID3 TKEY notation: tonic with optional b or #, followed by m for minor
+        final String tkey = tonic + ("minor".equals(scale) ? "m" : "");
+        try {
+            return KeyFactory.parseTKEY(tkey);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to parse key " + tkey, e);
+            return null;
+        }
+    }
+
+    /**
+     * Tempo from {@code rhythm.bpm}.
+     *
+     * @param document low-level document
+     * @return BPM or {@code null}
+     */
+    static Float toBPM(final JSONObject document) {
+        final Object rhythm = document.get("rhythm");
+        if (!(rhythm instanceof JSONObject)) return null;
+        final Object bpm = ((JSONObject) rhythm).get("bpm");
+        if (!(bpm instanceof Number)) return null;
+        final double value = ((Number) bpm).doubleValue();
+        if (value < MIN_BPM || value > MAX_BPM) return null;
+        return (float) value;
+    }
+}
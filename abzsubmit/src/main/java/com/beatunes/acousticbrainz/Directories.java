@@ -0,0 +1,62 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.core.OperatingSystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Locations of files this plugin keeps across beaTunes sessions.
+ * The base directory can be overridden with the system property {@code abzsubmit.dir}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class Directories {
+
+    private static final String ABZSUBMIT = "abzsubmit";
+
+    private Directories() {
+    }
+
+    /**
+     * Persistent data directory for this plugin, e.g.
+     * {@code ~/Library/Application Support/beaTunes/abzsubmit} on macOS.
+     *
+     * @return existing directory
+     * @throws IOException if the directory cannot be created
+     */
+    static Path getDataDirectory() throws IOException {
+        final Path dir;
+        final String override = System.getProperty("abzsubmit.dir");
+        final String localAppData = System.getenv("LOCALAPPDATA");
+        if (override != null) {
+            dir = Paths.get(override);
+        } else if (OperatingSystem.isMac()) {
+            dir = Paths.get(System.getProperty("user.home"), "Library", "Application Support", "beaTunes", ABZSUBMIT);
+        } else if (localAppData != null) {
+            dir = Paths.get(localAppData, "tagtraum industries", "beaTunes", ABZSUBMIT);
+        } else {
+            dir = Paths.get(System.getProperty("user.home"), "." + ABZSUBMIT);
+        }
+        return Files.createDirectories(dir);
+    }
+
+    /**
+     * Named subdirectory of {@link #getDataDirectory()}.
+     *
+     * @param name name
+     * @return existing directory
+     * @throws IOException if the directory cannot be created
+     */
+    static Path getDataDirectory(final String name) throws IOException {
+        return Files.createDirectories(getDataDirectory().resolve(name));
+    }
+}
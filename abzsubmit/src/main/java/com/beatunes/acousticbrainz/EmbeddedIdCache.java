@@ -0,0 +1,270 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent cache of the MBIDs embedded in audio files. Reading tags means random reads,
+ * which are slow on network volumes, while checking a file's identity, modification time
+ * and size is a single metadata request. Entries are therefore keyed by path and only used,
+ * while the file's key (e.g. device and inode), modification time and size are unchanged.
+ * Files that are about to be analyzed can be {@link #prewarm pre-warmed}, i.e. read in parallel
+ * in the background.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class EmbeddedIdCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedIdCache.class);
+    private static final String NONE = "-";
+    private static final int DEFAULT_PREWARM_THREADS = 4;
+
+    private final Path file;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, Future<Set<String>>> inFlight = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private Writer writer;
+    private boolean loaded;
+
+    /**
+     * @param file cache file
+     * @param prewarmThreads number of files read in parallel when pre-warming
+     */
+    EmbeddedIdCache(final Path file, final int prewarmThreads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.file = file;
+        this.executor = new ThreadPoolExecutor(prewarmThreads, prewarmThreads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz Tag Reader " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Cache that pre-warms with the number of threads given by the system property
+     * {@code abzsubmit.tags.prewarmThreads}, by default 4.
+     *
+     * @param file cache file
+     */
+    EmbeddedIdCache(final Path file) {
+        this(file, Math.max(1, Integer.getInteger("abzsubmit.tags.prewarmThreads", DEFAULT_PREWARM_THREADS)));
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            if (writer == null) return;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOG.error("Failed to close tag cache " + this.file, e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Reads the given file's tags in the background, unless they are cached.
+     *
+     * @param audioFile audio file
+     * @param reader reads the MBIDs embedded in the file
+     */
+    void prewarm(final Path audioFile, final Reader reader) {
+        load();
+        final String key = createKey(audioFile);
+        if (cache.containsKey(key) || inFlight.containsKey(key)) return;
+        final FutureTask<Set<String>> task = new FutureTask<>(() -> {
+            try {
+                return read(key, audioFile, reader);
+            } finally {
+                inFlight.remove(key);
+            }
+        });
+        if (inFlight.putIfAbsent(key, task) != null) return;
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+        }
+    }
+
+    /**
+     * MBIDs embedded in the given file. Answered from the cache, if the file is unchanged.
+     * If the file is being read in the background, we wait for that.
+     *
+     * @param audioFile audio file
+     * @param reader reads the MBIDs embedded in the file
+     * @return lower case MBIDs
+     * @throws IOException if the file cannot be read
+     * @throws InterruptedException if interrupted while waiting for a background read
+     */
+    Set<String> getMBIDs(final Path audioFile, final Reader reader) throws IOException, InterruptedException {
+        load();
+        final String key = createKey(audioFile);
+        final Future<Set<String>> future = inFlight.get(key);
+        if (future != null) {
+            try {
+                SubmitMetrics.increment("tags.wait");
+                return future.get();
+            } catch (ExecutionException e) {
+                // read again below and report the problem
+            }
+        }
+        return read(key, audioFile, reader);
+    }
+
+    private Set<String> read(final String key, final Path audioFile, final Reader reader) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(audioFile, BasicFileAttributes.class);
+        final Entry cached = cache.get(key);
+        if (cached != null && cached.matches(attributes)) {
+            SubmitMetrics.increment("tags.hit");
+            return cached.mbids;
+        }
+        SubmitMetrics.increment("tags.miss");
+        final Set<String> mbids;
+        try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("tags")) {
+            mbids = Collections.unmodifiableSet(new HashSet<>(reader.read(audioFile)));
+        }
+        final Entry entry = new Entry(toString(attributes.fileKey()), attributes.lastModifiedTime().toMillis(), attributes.size(), mbids);
+        cache.put(key, entry);
+        store(key, entry);
+        return mbids;
+    }
+
+    private synchronized void store(final String key, final Entry entry) {
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                AppendOnlyFiles.cutOffTornLine(file);
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(key + '\t' + entry.fileKey + '\t' + entry.lastModified + '\t' + entry.size + '\t'
+                + (entry.mbids.isEmpty() ? NONE : String.join(",", entry.mbids)) + '\n');
+            writer.flush();
+        } catch (IOException e) {
+            LOG.error("Failed to write tag cache " + file, e);
+        }
+    }
+
+    /**
+     * Reads the cache file. Later lines override earlier ones. If the file contains many
+     * overridden lines, it's compacted.
+     */
+    private synchronized void load() {
+        if (loaded) return;
+        loaded = true;
+        int lines = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 5) continue;
+                lines++;
+                try {
+                    final Set<String> mbids = NONE.equals(fields[4])
+                        ? Collections.emptySet()
+                        : Collections.unmodifiableSet(new HashSet<>(Arrays.asList(fields[4].split(","))));
+                    cache.put(fields[0], new Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), mbids));
+                } catch (NumberFormatException e) {
+                    // ignore broken line
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            LOG.error("Failed to read tag cache " + file, e);
+            return;
+        }
+        if (LOG.isDebugEnabled()) LOG.debug("Loaded " + cache.size() + " tag cache entries.");
+        if (lines > cache.size() * 2 + 100) compact();
+    }
+
+    private void compact() {
+        try {
+            final Path tempFile = Files.createTempFile(file.getParent(), "tags", ".tmp");
+            try {
+                try (final Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    for (final Map.Entry<String, Entry> e : cache.entrySet()) {
+                        final Entry entry = e.getValue();
+                        writer.write(e.getKey() + '\t' + entry.fileKey + '\t' + entry.lastModified + '\t' + entry.size + '\t'
+                            + (entry.mbids.isEmpty() ? NONE : String.join(",", entry.mbids)) + '\n');
+                    }
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to compact tag cache " + file, e);
+        }
+    }
+
+    /**
+     * Hash of the absolute path, so that we don't have to escape paths in the cache file.
+     */
+    private static String createKey(final Path audioFile) {
+        final MessageDigest digest = Checksums.createDigest();
+        digest.update(audioFile.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8));
+        return Checksums.toHex(digest.digest());
+    }
+
+    /**
+     * File keys are not available on all platforms. Their string form is e.g. {@code (dev=803,ino=1234)}.
+     */
+    private static String toString(final Object fileKey) {
+        return fileKey == null ? NONE : fileKey.toString().replace('\t', ' ');
+    }
+
+    /**
+     * Reads the MBIDs embedded in a file.
+     */
+    interface Reader {
+
+        /**
+         * @param audioFile audio file
+         * @return lower case MBIDs
+         * @throws IOException if the file cannot be read
+         */
+        Set<String> read(Path audioFile) throws IOException;
+    }
+
+    private static class Entry {
+        private final String fileKey;
+        private final long lastModified;
+        private final long size;
+        private final Set<String> mbids;
+
+        private Entry(final String fileKey, final long lastModified, final long size, final Set<String> mbids) {
+            this.fileKey = fileKey;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.mbids = mbids;
+        }
+
+        private boolean matches(final BasicFileAttributes attributes) {
+            return lastModified == attributes.lastModifiedTime().toMillis()
+                && size == attributes.size()
+                && fileKey.equals(EmbeddedIdCache.toString(attributes.fileKey()));
+        }
+    }
+}
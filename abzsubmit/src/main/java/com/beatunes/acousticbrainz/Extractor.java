@@ -0,0 +1,279 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.core.OperatingSystem;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static java.nio.file.attribute.PosixFilePermission.*;
+
+/**
+ * The AcousticBrainz streaming extractor: its executable, build SHA and profiles, and how to run it.
+ * Used by both the beaTunes task {@link AcousticBrainzSubmit} and the headless {@link BatchRunner},
+ * so that this class must not depend on beaTunes.
+ * <p>
+ * By default, the binary bundled for macOS or Windows is used. A different binary, e.g. on Linux,
+ * can be configured with the system property {@code abzsubmit.extractor}. As AcousticBrainz only
+ * accepts results from known builds, its build SHA should then be configured with
+ * {@code abzsubmit.extractor.buildSha}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class Extractor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Extractor.class);
+    private static final String BUNDLED_BUILD_SHA = OperatingSystem.isMac() ? "cead25079874084f62182a551b7393616cd33d87" : "2d9f1f26377add8aeb1075a9c2973f962c4f09fd";
+    private static final String CONFIGURED_EXECUTABLE = System.getProperty("abzsubmit.extractor");
+    // SHA-1 to be used on submission profile
+    static final String ESSENTIA_BUILD_SHA = System.getProperty("abzsubmit.extractor.buildSha", BUNDLED_BUILD_SHA);
+    private static final String STREAMING_EXTRACTOR_MUSIC = "streaming_extractor_music" + (OperatingSystem.isMac() ? "" : ".exe");
+    private static final String PROFILE_YAML = "profile.yaml";
+    static final int OK = 0;
+    /**
+     * The extractor tends to crash for tracks this long or longer, and its results
+     * aren't meaningful anyway, because of averaging.
+     */
+    static final int THIRTY_MINUTES = 1000 * 60 * 30;
+    // generous estimate for the extractor's JSON output
+    static final long OUTPUT_BYTES = 4L * 1024L * 1024L;
+    private static Path executable;
+    private static Path defaultProfile;
+
+    private Extractor() {
+    }
+
+    /**
+     * Runs the extractor and waits for it, guarded by a {@link ProcessWatchdog}.
+     *
+     * @param name name of what is analyzed, for messages
+     * @param trackMillis track length in ms, used to derive the watchdog's limits
+     * @param inputFile audio file
+     * @param outputFile JSON file the extractor writes to
+     * @param profile extractor profile
+     * @param workingDirectory working directory of the extractor
+     * @param background true, if the extractor should run at low priority
+     * @param progress progress callback
+     * @return extractor exit code
+     * @throws IOException if the extractor cannot be started
+     * @throws InterruptedException if interrupted while waiting. The extractor is killed in this case.
+     */
+    static int run(final String name, final long trackMillis, final Path inputFile, final Path outputFile, final Path profile,
+                   final Path workingDirectory, final boolean background, final Consumer<Float> progress) throws IOException, InterruptedException {
+        final Process process = start(inputFile, outputFile, profile, workingDirectory, background);
+        // the extractor's stages map to 0.4 - 0.9 of the overall progress
+        final OutputPump pump = OutputPump.start(process, p -> progress.accept(0.4f + 0.5f * p));
+        final int exitCode;
+        try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("extract")) {
+            exitCode = ProcessWatchdog.forTrack(trackMillis).waitFor(process);
+        } catch (ProcessWatchdog.ExtractorKilledException e) {
+            pump.join();
+            LOG.error("Failed to analyze/submit " + name + ". Input file: " + inputFile + ". " + e.getMessage() + ". Output: " + pump.getTail());
+            throw e;
+        }
+        pump.join();
+        if (exitCode != OK) {
+            SubmitMetrics.increment("failure.exit");
+            LOG.error("Failed to analyze/submit " + name + ". Input file: " + inputFile + ". Exit code: " + exitCode + ". Output: " + pump.getTail());
+        } else {
+            if (LOG.isDebugEnabled()) LOG.debug("Output: " + pump.getTail());
+        }
+        return exitCode;
+    }
+
+    @NotNull
+    private static Process start(final Path inputFile, final Path outputFile, final Path profile,
+                                 final Path workingDirectory, final boolean background) throws IOException {
+        final Path executable = getExecutable();
+        final List<String> command = Arrays.asList(
+            executable.toString(),
+            inputFile.toString(),
+            outputFile.toString(),
+            profile.toString());
+        final ProcessBuilder builder = new ProcessBuilder(background ? BackgroundPriority.wrap(command) : command);
+        builder.redirectErrorStream(true);
+        // anything the extractor writes next to its output belongs into scratch space
+        builder.directory(workingDirectory.toFile());
+        return builder.start();
+    }
+
+    /**
+     * Writes an extractor profile.
+     * See https://github.com/MTG/acousticbrainz-client/blob/master/abz/config.py#L60-L65
+     *
+     * @param file profile file
+     * @param mbid MBID to merge into the output's tags, if the file does not contain one.
+     *             {@code null}, if the file is required to contain an MBID.
+     * @throws IOException if the profile cannot be written
+     */
+    static void writeProfile(final Path file, final String mbid) throws IOException {
+        try (final BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(createProfile(mbid));
+        }
+    }
+
+    private static String createProfile(final String mbid) {
+        return "requireMbid: " + (mbid == null) + "\n" +
+            "indent: 0\n" +
+            "mergeValues:\n" +
+            "    metadata:\n" +
+            "        version:\n" +
+            "            essentia_build_sha: " + ESSENTIA_BUILD_SHA + "\n" +
+            (mbid == null ? "" : "        tags:\n" +
+                "            musicbrainz_trackid: [\"" + mbid + "\"]\n");
+    }
+
+    /**
+     * Path to the extractor executable. Unless configured via {@code abzsubmit.extractor},
+     * the bundled binary is extracted on first use.
+     *
+     * @return executable
+     * @throws IOException if the binary cannot be extracted or the configured one doesn't exist
+     */
+    static synchronized Path getExecutable() throws IOException {
+        if (executable == null) {
+            if (CONFIGURED_EXECUTABLE != null) {
+                final Path configured = Paths.get(CONFIGURED_EXECUTABLE).toAbsolutePath();
+                if (!Files.isExecutable(configured)) throw new IOException("Configured extractor " + configured + " is not executable.");
+                executable = configured;
+            } else {
+                executable = extractBinary();
+            }
+        }
+        return executable;
+    }
+
+    /**
+     * Profile for files with embedded MBIDs. Lives in a directory specific to the build SHA,
+     * next to the bundled executable. An existing profile is only reused, if its content is
+     * what we would write, so that a partially written one is never used.
+     *
+     * @return profile
+     * @throws IOException if the profile cannot be written
+     */
+    static synchronized Path getDefaultProfile() throws IOException {
+        if (defaultProfile == null) {
+            final Path dir = getBinaryDirectory();
+            final Path profile = dir.resolve(PROFILE_YAML);
+            final String content = createProfile(null);
+            if (!isProfile(profile, content)) {
+                // write to a temp file first, so that other sessions cannot see a partial profile
+                final Path tempFile = Files.createTempFile(dir, PROFILE_YAML, ".tmp");
+                try {
+                    Files.write(tempFile, content.getBytes(StandardCharsets.UTF_8));
+                    Files.move(tempFile, profile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+            defaultProfile = profile;
+        }
+        return defaultProfile;
+    }
+
+    private static boolean isProfile(final Path profile, final String content) {
+        if (!Files.isRegularFile(profile)) return false;
+        try {
+            final boolean intact = content.equals(new String(Files.readAllBytes(profile), StandardCharsets.UTF_8));
+            if (!intact) LOG.warn("Unexpected content in " + profile + ". Writing it again.");
+            return intact;
+        } catch (IOException e) {
+            LOG.error("Failed to read " + profile, e);
+            return false;
+        }
+    }
+
+    private static Path getBinaryDirectory() throws IOException {
+        try {
+            return Files.createDirectories(Directories.getDataDirectory("bin").resolve(ESSENTIA_BUILD_SHA));
+        } catch (IOException e) {
+            LOG.error("Failed to create binary directory. Falling back to temp directory.", e);
+            return Files.createDirectories(Paths.get(System.getProperty("java.io.tmpdir"), "abzsubmit-bin", ESSENTIA_BUILD_SHA));
+        }
+    }
+
+    /**
+     * Extracts the bundled binary into a directory specific to its build SHA, so that
+     * it can be reused across sessions. Next to it, we record the checksum of the bundled resource,
+     * not of the extracted file. An existing binary is only reused, if it matches that checksum,
+     * so that a partially written or damaged binary is never mistaken for an intact one.
+     *
+     * @return path to the executable
+     * @throws IOException if the binary cannot be extracted
+     */
+    private static Path extractBinary() throws IOException {
+        final Path dir = getBinaryDirectory();
+        if (LOG.isDebugEnabled()) LOG.debug("Executable directory: " + dir);
+        final Path executable = dir.resolve(STREAMING_EXTRACTOR_MUSIC);
+        final Path checksum = dir.resolve(STREAMING_EXTRACTOR_MUSIC + ".sha256");
+        if (isIntact(executable, checksum)) {
+            if (LOG.isDebugEnabled()) LOG.debug("Reusing AcousticBrainz binaries in " + dir);
+        } else {
+            if (LOG.isDebugEnabled()) LOG.debug("Extracting AcousticBrainz binaries...");
+            // extract to a temp file first, so that concurrent extractions cannot see a partial binary
+            final Path tempFile = Files.createTempFile(dir, STREAMING_EXTRACTOR_MUSIC, ".tmp");
+            try {
+                final MessageDigest digest = Checksums.createDigest();
+                try (final InputStream resource = Extractor.class.getResourceAsStream(STREAMING_EXTRACTOR_MUSIC)) {
+                    if (resource == null) throw new IOException("No extractor bundled for this platform. Configure one with -Dabzsubmit.extractor=<path>.");
+                    try (final InputStream in = new DigestInputStream(resource, digest)) {
+                        Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+                final String sha256 = Checksums.toHex(digest.digest());
+                if (!sha256.equals(Checksums.sha256(tempFile))) throw new IOException("Failed to extract " + STREAMING_EXTRACTOR_MUSIC + ". Checksum mismatch.");
+                try {
+                    // actually make executable
+                    final Set<PosixFilePermission> permissions = new HashSet<>(Arrays.asList(
+                        OWNER_READ, OWNER_WRITE, OWNER_EXECUTE,
+                        GROUP_READ, GROUP_EXECUTE,
+                        OTHERS_READ, OTHERS_EXECUTE
+                    ));
+                    Files.setPosixFilePermissions(tempFile, permissions);
+                } catch (UnsupportedOperationException e) {
+                    LOG.warn("Was not able to make executable. Operation not supported on this platform.");
+                }
+                Files.move(tempFile, executable, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.write(checksum, sha256.getBytes(StandardCharsets.US_ASCII));
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+        return executable.toAbsolutePath();
+    }
+
+    private static boolean isIntact(final Path executable, final Path checksum) {
+        if (!Files.isRegularFile(executable) || !Files.isRegularFile(checksum)) return false;
+        try {
+            final String expected = new String(Files.readAllBytes(checksum), StandardCharsets.US_ASCII).trim();
+            final boolean intact = expected.equals(Checksums.sha256(executable));
+            if (!intact) LOG.warn("Checksum mismatch for " + executable + ". Extracting again.");
+            return intact;
+        } catch (IOException e) {
+            LOG.error("Failed to verify " + executable, e);
+            return false;
+        }
+    }
+}
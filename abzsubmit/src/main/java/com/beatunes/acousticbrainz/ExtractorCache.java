@@ -0,0 +1,309 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Persistent, content-addressed cache for the low-level JSON produced by the extractor.
+ * Entries are keyed by a hash of the audio bytes, the MBID and the extractor build SHA,
+ * so that identical audio is never analyzed twice by the same extractor.
+ * When the cache grows beyond its maximum size, least recently used entries are evicted.
+ * <p>
+ * Hashing a file means reading all of it. Like {@link EmbeddedIdCache}, we therefore remember
+ * each file's hash in {@code digests.tsv} and only hash it again, if its key (e.g. device and inode),
+ * modification time or size changed.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class ExtractorCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractorCache.class);
+    private static final String SUFFIX = ".json";
+    private static final String NONE = "-";
+
+    private final Path directory;
+    private final Path digestFile;
+    private final long maxBytes;
+    private final Map<String, Digest> digests = new ConcurrentHashMap<>();
+    private Writer digestWriter;
+    private boolean digestsLoaded;
+    private long size = -1;
+
+    /**
+     * @param directory cache directory
+     * @param maxBytes maximum size of all entries together
+     */
+    ExtractorCache(final Path directory, final long maxBytes) {
+        this.directory = directory;
+        this.digestFile = directory.resolve("digests.tsv");
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized void close() {
+        if (digestWriter == null) return;
+        try {
+            digestWriter.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close digest file " + digestFile, e);
+        }
+        digestWriter = null;
+    }
+
+    /**
+     * Creates a cache key for the given audio file.
+     * Unless the file's hash is remembered from an earlier call, this reads the complete file,
+     * which is still a lot cheaper than running the extractor.
+     *
+     * @param audioFile audio file
+     * @param mbid MBID the extractor output will be submitted for
+     * @param buildSha extractor build SHA
+     * @return hex encoded key
+     * @throws IOException if the file cannot be read
+     */
+    String createKey(final Path audioFile, final String mbid, final String buildSha) throws IOException {
+        final MessageDigest digest = Checksums.createDigest();
+        digest.update(getAudioDigest(audioFile).getBytes(StandardCharsets.US_ASCII));
+        digest.update(mbid.getBytes(StandardCharsets.US_ASCII));
+        digest.update(buildSha.getBytes(StandardCharsets.US_ASCII));
+        return Checksums.toHex(digest.digest());
+    }
+
+    private String getAudioDigest(final Path audioFile) throws IOException {
+        loadDigests();
+        final String path = audioFile.toAbsolutePath().toString();
+        final BasicFileAttributes attributes = Files.readAttributes(audioFile, BasicFileAttributes.class);
+        final Digest cached = digests.get(path);
+        if (cached != null && cached.matches(attributes)) {
+            SubmitMetrics.increment("cache.digest.hit");
+            return cached.sha256;
+        }
+        SubmitMetrics.increment("cache.digest.miss");
+        final Digest digest = new Digest(toString(attributes.fileKey()), attributes.lastModifiedTime().toMillis(),
+            attributes.size(), Checksums.sha256(audioFile));
+        // the file may have changed while we read it, then it's hashed again next time
+        if (digest.matches(Files.readAttributes(audioFile, BasicFileAttributes.class))) {
+            digests.put(path, digest);
+            storeDigest(path, digest);
+        }
+        return digest.sha256;
+    }
+
+    private synchronized void storeDigest(final String path, final Digest digest) {
+        try {
+            if (digestWriter == null) {
+                Files.createDirectories(directory);
+                AppendOnlyFiles.cutOffTornLine(digestFile);
+                digestWriter = Files.newBufferedWriter(digestFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            digestWriter.write(toLine(path, digest));
+            digestWriter.flush();
+        } catch (IOException e) {
+            LOG.error("Failed to write digest file " + digestFile, e);
+        }
+    }
+
+    /**
+     * Reads the digest file. Later lines override earlier ones. If the file contains many
+     * overridden lines, it's compacted.
+     */
+    private synchronized void loadDigests() {
+        if (digestsLoaded) return;
+        digestsLoaded = true;
+        int lines = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(digestFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the path comes last, as it may contain tabs
+                final String[] fields = line.split("\t", 5);
+                if (fields.length != 5) continue;
+                lines++;
+                try {
+                    digests.put(fields[4], new Digest(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                } catch (NumberFormatException e) {
+                    // ignore broken line
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            LOG.error("Failed to read digest file " + digestFile, e);
+            return;
+        }
+        if (LOG.isDebugEnabled()) LOG.debug("Loaded " + digests.size() + " audio digests.");
+        if (lines > digests.size() * 2 + 100) compactDigests();
+    }
+
+    private void compactDigests() {
+        try {
+            final Path tempFile = Files.createTempFile(directory, "digests", ".tmp");
+            try {
+                try (final Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    for (final Map.Entry<String, Digest> e : digests.entrySet()) {
+                        writer.write(toLine(e.getKey(), e.getValue()));
+                    }
+                }
+                Files.move(tempFile, digestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to compact digest file " + digestFile, e);
+        }
+    }
+
+    private static String toLine(final String path, final Digest digest) {
+        return digest.fileKey + '\t' + digest.lastModified + '\t' + digest.size + '\t' + digest.sha256 + '\t' + path + '\n';
+    }
+
+    /**
+     * File keys are not available on all platforms. Their string form is e.g. {@code (dev=803,ino=1234)}.
+     */
+    private static String toString(final Object fileKey) {
+        return fileKey == null ? NONE : fileKey.toString().replace('\t', ' ');
+    }
+
+    /**
+     * Copies a cached entry to the given target file.
+     *
+     * @param key cache key
+     * @param target target file, will be replaced
+     * @return true, if the entry was found
+     */
+    boolean get(final String key, final Path target) {
+        final Path entry = directory.resolve(key + SUFFIX);
+        try {
+            Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+            // remember the access for LRU eviction
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            SubmitMetrics.increment("cache.hit");
+            return true;
+        } catch (NoSuchFileException e) {
+            SubmitMetrics.increment("cache.miss");
+            return false;
+        } catch (IOException e) {
+            LOG.error("Failed to read cached extractor output " + entry, e);
+            SubmitMetrics.increment("cache.miss");
+            return false;
+        } finally {
+            if (LOG.isDebugEnabled()) LOG.debug("Extractor cache hit ratio: " + SubmitMetrics.ratio("cache.hit", "cache.miss"));
+        }
+    }
+
+    /**
+     * Stores a copy of the given JSON file in the cache and evicts old entries, if necessary.
+     * Failures are logged, but not thrown, as the cache is only an optimization.
+     *
+     * @param key cache key
+     * @param json extractor output
+     */
+    void put(final String key, final Path json) {
+        final Path entry = directory.resolve(key + SUFFIX);
+        try {
+            Files.createDirectories(directory);
+            final Path tempFile = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.copy(json, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+            evict(Files.size(entry));
+        } catch (IOException e) {
+            LOG.error("Failed to cache extractor output " + entry, e);
+        }
+    }
+
+    private synchronized void evict(final long added) throws IOException {
+        if (size < 0) {
+            size = 0;
+            for (final Entry e : list()) size += e.size;
+        } else {
+            size += added;
+        }
+        if (size <= maxBytes) return;
+        final List<Entry> entries = list();
+        entries.sort(Comparator.comparing(e -> e.lastModified));
+        // evict down to 90%, so that we don't have to do this for every new entry
+        final long target = maxBytes / 10 * 9;
+        size = 0;
+        for (final Entry e : entries) size += e.size;
+        for (final Entry e : entries) {
+            if (size <= target) break;
+            if (Files.deleteIfExists(e.path)) {
+                size -= e.size;
+                SubmitMetrics.increment("cache.eviction");
+                if (LOG.isDebugEnabled()) LOG.debug("Evicted cached extractor output " + e.path);
+            }
+        }
+    }
+
+    private List<Entry> list() throws IOException {
+        final List<Entry> entries = new ArrayList<>();
+        if (!Files.isDirectory(directory)) return entries;
+        try (final Stream<Path> files = Files.list(directory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).forEach(p -> {
+                try {
+                    final BasicFileAttributes attributes = Files.readAttributes(p, BasicFileAttributes.class);
+                    entries.add(new Entry(p, attributes.size(), attributes.lastModifiedTime()));
+                } catch (IOException e) {
+                    // concurrently deleted
+                    if (LOG.isDebugEnabled()) LOG.debug(e.toString());
+                }
+            });
+        }
+        return entries;
+    }
+
+    private static class Digest {
+        private final String fileKey;
+        private final long lastModified;
+        private final long size;
+        private final String sha256;
+
+        private Digest(final String fileKey, final long lastModified, final long size, final String sha256) {
+            this.fileKey = fileKey;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        private boolean matches(final BasicFileAttributes attributes) {
+            return lastModified == attributes.lastModifiedTime().toMillis()
+                && size == attributes.size()
+                && fileKey.equals(ExtractorCache.toString(attributes.fileKey()));
+        }
+    }
+
+    private static class Entry {
+        private final Path path;
+        private final long size;
+        private final FileTime lastModified;
+
+        private Entry(final Path path, final long size, final FileTime lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool for running several extractor jobs at the same time.
+ * Jobs are started in the order they are submitted. Submitting blocks,
+ * once all workers are busy and the same number of jobs is already waiting,
+ * so that the analysis queue cannot run away from the extractors.
+ * <p>
+ * In {@link #setShortestJobFirst(boolean) shortest-job-first} mode, more jobs may wait
+ * and cheap jobs are started before expensive ones. To make sure expensive jobs are
+ * started eventually, jobs are ordered by a virtual deadline: their submission time plus
+ * their cost times the aging factor given by the system property {@code abzsubmit.sjf.aging}
+ * (ms per unit of cost, by default 0.05). I.e. an expensive job is only overtaken by
+ * jobs that are submitted not much later.
+ * <p>
+ * A running job may {@link #tryBorrowSlot() borrow} free slots for additional extractors,
+ * e.g. to analyze the segments of a long track in parallel. Borrowed slots count against
+ * the pool size, so that no more extractors run than the pool (or the {@link LoadGovernor}) allows.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class ExtractorPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractorPool.class);
+    /** Minimum number of waiting jobs in shortest-job-first mode, so that there is something to choose from. */
+    private static final int LOOKAHEAD = Integer.getInteger("abzsubmit.sjf.lookahead", 32);
+    private static final double AGING = Double.parseDouble(System.getProperty("abzsubmit.sjf.aging", "0.05"));
+
+    private final ThreadPoolExecutor executor;
+    private final ResizableSemaphore admission;
+    private final AtomicLong sequence = new AtomicLong();
+    private int size;
+    private int borrowed;
+    private boolean shortestJobFirst;
+
+    ExtractorPool(final int size) {
+        if (size < 1) throw new IllegalArgumentException("Pool size must be at least 1: " + size);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.size = size;
+        this.admission = new ResizableSemaphore(admissionLimit(size, false));
+        this.executor = new ThreadPoolExecutor(size, size, 60L, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz Extractor " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Number of jobs that may run concurrently.
+     *
+     * @return pool size
+     */
+    synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Number of jobs that are running right now.
+     *
+     * @return approximate number of running jobs
+     */
+    int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Number of slots {@link #tryBorrowSlot() borrowed} by running jobs for additional extractors.
+     *
+     * @return borrowed slots
+     */
+    synchronized int getBorrowedCount() {
+        return borrowed;
+    }
+
+    /**
+     * Indicates, whether cheap jobs are started before expensive ones.
+     *
+     * @return true, if in shortest-job-first mode
+     */
+    synchronized boolean isShortestJobFirst() {
+        return shortestJobFirst;
+    }
+
+    /**
+     * Switches between starting jobs in submission order and starting cheap jobs first.
+     * Jobs that are already waiting keep their position.
+     *
+     * @param shortestJobFirst true, for shortest-job-first mode
+     */
+    synchronized void setShortestJobFirst(final boolean shortestJobFirst) {
+        if (shortestJobFirst == this.shortestJobFirst) return;
+        if (LOG.isDebugEnabled()) LOG.debug("Switching extractor pool to " + (shortestJobFirst ? "shortest-job-first" : "submission") + " order");
+        resizeAdmission(admissionLimit(size, this.shortestJobFirst), admissionLimit(size, shortestJobFirst));
+        this.shortestJobFirst = shortestJobFirst;
+    }
+
+    /**
+     * Changes the number of jobs that may run concurrently.
+     * Running jobs are not affected, if the pool shrinks.
+     *
+     * @param size new size, at least 1
+     */
+    synchronized void setSize(final int size) {
+        if (size < 1) throw new IllegalArgumentException("Pool size must be at least 1: " + size);
+        if (size == this.size) return;
+        if (LOG.isDebugEnabled()) LOG.debug("Resizing extractor pool from " + this.size + " to " + size);
+        resizeAdmission(admissionLimit(this.size, shortestJobFirst), admissionLimit(size, shortestJobFirst));
+        this.size = size;
+        resizeWorkers();
+    }
+
+    /**
+     * Lets a running job use a free slot for an additional extractor. Until the slot is
+     * {@link #returnSlot() returned}, one job less is started.
+     *
+     * @return true, if a slot was free
+     */
+    synchronized boolean tryBorrowSlot() {
+        if (executor.getActiveCount() + borrowed >= size) return false;
+        borrowed++;
+        resizeWorkers();
+        return true;
+    }
+
+    /**
+     * Returns a slot obtained with {@link #tryBorrowSlot()}.
+     */
+    synchronized void returnSlot() {
+        if (borrowed == 0) throw new IllegalStateException("No slot borrowed");
+        borrowed--;
+        resizeWorkers();
+    }
+
+    /**
+     * Workers that exceed the new maximum terminate once they are idle, running jobs are not affected.
+     */
+    private void resizeWorkers() {
+        final int workers = Math.max(1, size - borrowed);
+        if (workers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(workers);
+            executor.setCorePoolSize(workers);
+        } else {
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+        }
+    }
+
+    private void resizeAdmission(final int oldLimit, final int newLimit) {
+        if (newLimit > oldLimit) admission.release(newLimit - oldLimit);
+        else if (newLimit < oldLimit) admission.reducePermits(oldLimit - newLimit);
+    }
+
+    /**
+     * Submits a job. Blocks, if the pool is saturated.
+     *
+     * @param job job
+     * @return future that completes, once the job is done
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    Future<?> submit(final Runnable job) throws InterruptedException {
+        return submit(job, 0);
+    }
+
+    /**
+     * Submits a job. Blocks, if the pool is saturated.
+     *
+     * @param job job
+     * @param cost estimated cost of the job, only used in shortest-job-first mode,
+     *             e.g. the duration of the track to analyze in ms
+     * @return future that completes, once the job is done
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    Future<?> submit(final Runnable job, final long cost) throws InterruptedException {
+        admission.acquire();
+        try {
+            final long now = System.currentTimeMillis();
+            final long deadline = isShortestJobFirst() ? now + (long) (Math.max(0, cost) * AGING) : now;
+            // released once the job is done, or cancelled before it ran
+            final PrioritizedJob future = new PrioritizedJob(job, deadline, sequence.incrementAndGet(), admission::release);
+            executor.execute(future);
+            return future;
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting new jobs. Jobs that are already running are not interrupted.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Running jobs plus the same number of waiting jobs, or, in shortest-job-first mode,
+     * at least {@link #LOOKAHEAD} waiting jobs.
+     */
+    private static int admissionLimit(final int size, final boolean shortestJobFirst) {
+        return size + (shortestJobFirst ? Math.max(size, LOOKAHEAD) : size);
+    }
+
+    /**
+     * Job ordered by deadline and, for equal deadlines, by submission order.
+     */
+    private static class PrioritizedJob extends FutureTask<Void> implements Comparable<PrioritizedJob> {
+
+        private final long deadline;
+        private final long sequence;
+        private final Runnable onDone;
+
+        PrioritizedJob(final Runnable runnable, final long deadline, final long sequence, final Runnable onDone) {
+            super(runnable, null);
+            this.deadline = deadline;
+            this.sequence = sequence;
+            this.onDone = onDone;
+        }
+
+        @Override
+        protected void done() {
+            onDone.run();
+        }
+
+        @Override
+        public int compareTo(final PrioritizedJob that) {
+            final int c = Long.compare(this.deadline, that.deadline);
+            return c != 0 ? c : Long.compare(this.sequence, that.sequence);
+        }
+    }
+
+    /**
+     * Semaphore that exposes {@link #reducePermits(int)}.
+     */
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(final int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(final int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with logarithmic buckets
+ * (four per power of two, i.e. about 19% resolution).
+ * Good enough for percentiles of stage latencies.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    // 2^40 micros are about 12 days
+    private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param micros duration in microseconds
+     */
+    void record(final long micros) {
+        final long value = Math.max(0, micros);
+        buckets.incrementAndGet(toBucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return sum of all recorded durations in microseconds
+     */
+    long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return largest recorded duration in microseconds
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Estimated percentile, i.e. the upper bound of the bucket the percentile falls into.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return duration in microseconds
+     */
+    long getPercentile(final double percentile) {
+        final long total = getCount();
+        if (total == 0) return 0;
+        final long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(getMax(), toUpperBound(i));
+        }
+        return getMax();
+    }
+
+    private static int toBucket(final long micros) {
+        if (micros < 1) return 0;
+        final int bucket = (int) (Math.log(micros + 1) / Math.log(2) * SUB_BUCKETS);
+        return Math.min(BUCKETS - 1, bucket);
+    }
+
+    private static long toUpperBound(final int bucket) {
+        return (long) Math.ceil(Math.pow(2, (bucket + 1) / (double) SUB_BUCKETS)) - 1;
+    }
+}
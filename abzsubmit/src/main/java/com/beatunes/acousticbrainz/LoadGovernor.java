@@ -0,0 +1,150 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the size of the {@link ExtractorPool} to what else is going on on the machine.
+ * While beaTunes is playing, only one extractor runs. Otherwise, the pool grows one extractor
+ * at a time, while the load caused by other processes is low, and shrinks, while it is high.
+ * The load caused by others is estimated from the system load average (or, where that is not
+ * available, the system CPU load) minus one CPU per running extractor.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class LoadGovernor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadGovernor.class);
+    private static final long DEFAULT_INTERVAL_MILLIS = 5000L;
+    /** Fraction of the CPUs used by others, below which we add an extractor. */
+    private static final double IDLE = 0.25;
+    /** Fraction of the CPUs used by others, above which we remove an extractor. */
+    private static final double BUSY = 0.5;
+
+    private final ExtractorPool pool;
+    private final long intervalMillis;
+    private final int processors = Runtime.getRuntime().availableProcessors();
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private ScheduledExecutorService scheduler;
+    private volatile int maximum = 1;
+    private volatile boolean playing;
+
+    /**
+     * @param pool pool to resize
+     * @param intervalMillis time between adjustments
+     */
+    LoadGovernor(final ExtractorPool pool, final long intervalMillis) {
+        this.pool = pool;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Governor that adjusts in the interval given by the system property
+     * {@code abzsubmit.governor.interval} (ms), by default every 5s.
+     *
+     * @param pool pool to resize
+     */
+    LoadGovernor(final ExtractorPool pool) {
+        this(pool, Long.getLong("abzsubmit.governor.interval", DEFAULT_INTERVAL_MILLIS));
+    }
+
+    /**
+     * @param maximum configured number of extractors, used when the machine is idle
+     */
+    void setMaximum(final int maximum) {
+        this.maximum = Math.max(1, maximum);
+        if (pool.getSize() > this.maximum) pool.setSize(this.maximum);
+    }
+
+    /**
+     * @param playing true, if beaTunes is playing
+     */
+    void setPlaying(final boolean playing) {
+        final boolean changed = this.playing != playing;
+        this.playing = playing;
+        // react to the user right away
+        if (changed && isRunning()) adjust();
+    }
+
+    synchronized boolean isRunning() {
+        return scheduler != null;
+    }
+
+    /**
+     * Starts adjusting periodically. Does nothing, if already started.
+     */
+    synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz Load Governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::adjust, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops adjusting. The pool keeps its current size.
+     */
+    synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        scheduler = null;
+    }
+
+    /**
+     * Resizes the pool according to the current load and player state.
+     */
+    synchronized void adjust() {
+        try {
+            final int current = pool.getSize();
+            final int target = computeTarget(current, getLoadByOthers());
+            if (target != current) {
+                if (LOG.isDebugEnabled()) LOG.debug("Changing number of extractors from " + current + " to " + target + (playing ? " (playing)." : "."));
+                pool.setSize(target);
+                SubmitMetrics.increment(target > current ? "governor.up" : "governor.down");
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Failed to adjust number of extractors", e);
+        }
+    }
+
+    /**
+     * @param current current pool size
+     * @param loadByOthers fraction of the CPUs used by other processes, negative if unknown
+     * @return new pool size
+     */
+    int computeTarget(final int current, final double loadByOthers) {
+        if (playing) return 1;
+        if (loadByOthers < 0) return maximum;
+        if (loadByOthers < IDLE) return Math.min(maximum, current + 1);
+        if (loadByOthers > BUSY) return Math.max(1, current - 1);
+        return Math.min(maximum, current);
+    }
+
+    /**
+     * @return fraction of the CPUs used by other processes, negative if unknown
+     */
+    private double getLoadByOthers() {
+        double busyProcessors = os.getSystemLoadAverage();
+        if (busyProcessors < 0 && os instanceof com.sun.management.OperatingSystemMXBean) {
+            final double cpuLoad = ((com.sun.management.OperatingSystemMXBean) os).getSystemCpuLoad();
+            busyProcessors = cpuLoad < 0 ? cpuLoad : cpuLoad * processors;
+        }
+        if (busyProcessors < 0) return -1;
+        // each running extractor keeps about one CPU busy, including the ones on borrowed slots
+        return Math.max(0, busyProcessors - pool.getActiveCount() - pool.getBorrowedCount()) / processors;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.audiokern.AudioSong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Resolves MBIDs for songs that don't have one embedded, using a lookup service like
+ * beaTunes' {@link com.tagtraum.beatunes.onlinedb.OnlineDB}.
+ * Upcoming songs can be {@link #register(AudioSong) registered} ahead of time and are then
+ * resolved in batches in the background, so that the extractor doesn't have to wait for a lookup.
+ * Results, including songs without MBID, are kept in a persistent cache keyed by a fingerprint
+ * of the song's metadata. Negative entries expire, so that songs are looked up again eventually.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class MBIDResolver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MBIDResolver.class);
+    private static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final int BATCH_SIZE = 25;
+    private static final String NONE = "-";
+
+    private final Path file;
+    private final long negativeTtlMillis;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Map<String, AudioSong> pending = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private volatile Lookup lookup;
+    private boolean loaded;
+
+    /**
+     * @param file cache file
+     * @param negativeTtlMillis time we remember that a song has no MBID
+     */
+    MBIDResolver(final Path file, final long negativeTtlMillis) {
+        this.file = file;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz MBID Lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Resolver that remembers missing MBIDs for the time given by the system property
+     * {@code abzsubmit.mbid.negativeTtl} (ms), by default 7 days.
+     *
+     * @param file cache file
+     */
+    MBIDResolver(final Path file) {
+        this(file, Long.getLong("abzsubmit.mbid.negativeTtl", DEFAULT_NEGATIVE_TTL_MILLIS));
+    }
+
+    /**
+     * @param lookup lookup service
+     */
+    void setLookup(final Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Registers an upcoming song without embedded MBID, so that it's resolved in the background.
+     *
+     * @param song song
+     * @param resolved called with the song's MBID, once it's known. Not called, if the song has none.
+     *                 May be called on the lookup thread.
+     */
+    void register(final AudioSong song, final Consumer<String> resolved) {
+        load();
+        final String key = createKey(song);
+        final Entry cached = cache.get(key);
+        if (isCurrent(cached)) {
+            if (cached.mbid != null) resolved.accept(cached.mbid);
+            return;
+        }
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        final CompletableFuture<String> existing = inFlight.putIfAbsent(key, future);
+        (existing != null ? existing : future).thenAccept(mbid -> {
+            if (mbid != null) resolved.accept(mbid);
+        });
+        if (existing != null) return;
+        pending.put(key, song);
+        try {
+            executor.execute(this::resolvePending);
+        } catch (RejectedExecutionException e) {
+            // shutting down, songs are resolved on demand
+            if (LOG.isDebugEnabled()) LOG.debug("Not resolving " + song + " in the background, because we are shutting down.");
+        }
+    }
+
+    /**
+     * MBID for the given song. Answered from the cache, if possible. If the song is being
+     * resolved in the background, we wait for that. Otherwise it's looked up right away.
+     *
+     * @param song song
+     * @return MBID or {@code null}, if the song has none
+     * @throws InterruptedException if interrupted while waiting for a background lookup
+     */
+    String resolve(final AudioSong song) throws InterruptedException {
+        load();
+        final String key = createKey(song);
+        final Entry cached = cache.get(key);
+        if (isCurrent(cached)) {
+            SubmitMetrics.increment("mbid.lookup.hit");
+            return cached.mbid;
+        }
+        final CompletableFuture<String> future = inFlight.get(key);
+        if (future != null && pending.remove(key) == null) {
+            // already being looked up in the background
+            SubmitMetrics.increment("mbid.lookup.wait");
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                return null;
+            }
+        }
+        SubmitMetrics.increment("mbid.lookup.miss");
+        final Map<String, Entry> result = new HashMap<>();
+        final String mbid = lookup(key, song, result);
+        store(result);
+        return mbid;
+    }
+
+    /**
+     * Looks up a batch of pending songs and stores the results in one go.
+     */
+    private void resolvePending() {
+        final Map<String, Entry> results = new HashMap<>();
+        while (results.size() < BATCH_SIZE) {
+            final Map.Entry<String, AudioSong> next;
+            synchronized (pending) {
+                final Iterator<Map.Entry<String, AudioSong>> i = pending.entrySet().iterator();
+                if (!i.hasNext()) break;
+                next = i.next();
+                i.remove();
+            }
+            lookup(next.getKey(), next.getValue(), results);
+        }
+        if (!results.isEmpty()) {
+            SubmitMetrics.increment("mbid.lookup.batch");
+            if (LOG.isDebugEnabled()) LOG.debug("Resolved " + results.size() + " MBIDs ahead of time.");
+            store(results);
+        }
+    }
+
+    /**
+     * Looks up a single song and caches the result in memory.
+     *
+     * @param results answers to persist, keyed by fingerprint
+     */
+    private String lookup(final String key, final AudioSong song, final Map<String, Entry> results) {
+        final Lookup lookup = this.lookup;
+        String mbid = null;
+        try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("lookup")) {
+            if (lookup != null) {
+                final String found = lookup.lookup(song);
+                mbid = found == null ? null : found.toLowerCase();
+                // only remember answers, not failures
+                final Entry entry = new Entry(mbid, System.currentTimeMillis());
+                cache.put(key, entry);
+                results.put(key, entry);
+            }
+        } catch (Exception e) {
+            LOG.error("Failed to look up MBID for " + song, e);
+        }
+        final CompletableFuture<String> future = inFlight.remove(key);
+        if (future != null) future.complete(mbid);
+        return mbid;
+    }
+
+    /**
+     * Appends entries to the cache file.
+     */
+    private void store(final Map<String, Entry> results) {
+        if (results.isEmpty()) return;
+        final StringBuilder sb = new StringBuilder();
+        results.forEach((key, entry) -> sb.append(key).append('\t').append(entry.mbid == null ? NONE : entry.mbid)
+            .append('\t').append(entry.timestamp).append('\n'));
+        synchronized (this) {
+            try {
+                Files.createDirectories(file.getParent());
+                AppendOnlyFiles.cutOffTornLine(file);
+                try (final Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    writer.write(sb.toString());
+                }
+            } catch (IOException e) {
+                LOG.error("Failed to write MBID cache " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Reads the cache file. Later lines override earlier ones. If the file contains many
+     * overridden or expired lines, it's compacted.
+     */
+    private synchronized void load() {
+        if (loaded) return;
+        loaded = true;
+        int lines = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 3) continue;
+                lines++;
+                try {
+                    cache.put(fields[0], new Entry(NONE.equals(fields[1]) ? null : fields[1], Long.parseLong(fields[2])));
+                } catch (NumberFormatException e) {
+                    // ignore broken line
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            LOG.error("Failed to read MBID cache " + file, e);
+            return;
+        }
+        cache.values().removeIf(entry -> !isCurrent(entry));
+        if (LOG.isDebugEnabled()) LOG.debug("Loaded " + cache.size() + " MBID cache entries.");
+        if (lines > cache.size() * 2 + 100) compact();
+    }
+
+    private void compact() {
+        try {
+            final Path tempFile = Files.createTempFile(file.getParent(), "mbids", ".tmp");
+            try {
+                try (final Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    for (final Map.Entry<String, Entry> e : cache.entrySet()) {
+                        writer.write(e.getKey() + '\t' + (e.getValue().mbid == null ? NONE : e.getValue().mbid)
+                            + '\t' + e.getValue().timestamp + '\n');
+                    }
+                }
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to compact MBID cache " + file, e);
+        }
+    }
+
+    private boolean isCurrent(final Entry entry) {
+        return entry != null && (entry.mbid != null || System.currentTimeMillis() - entry.timestamp < negativeTtlMillis);
+    }
+
+    /**
+     * Fingerprint of the metadata a lookup is based on.
+     *
+     * @param song song
+     * @return hex encoded key
+     */
+    static String createKey(final AudioSong song) {
+        final MessageDigest digest = Checksums.createDigest();
+        for (final String s : new String[] {song.getArtist(), song.getAlbum(), song.getName()}) {
+            digest.update((s == null ? "" : s.trim().toLowerCase()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        // lookups tolerate small differences in length, so should we
+        digest.update(Long.toString(song.getTotalTime() / 1000L).getBytes(StandardCharsets.US_ASCII));
+        return Checksums.toHex(digest.digest());
+    }
+
+    /**
+     * Looks up a song's MBID.
+     */
+    interface Lookup {
+
+        /**
+         * @param song song
+         * @return MBID or {@code null}, if the song has none
+         * @throws Exception if the lookup fails
+         */
+        String lookup(AudioSong song) throws Exception;
+    }
+
+    private static class Entry {
+        private final String mbid;
+        private final long timestamp;
+
+        private Entry(final String mbid, final long timestamp) {
+            this.mbid = mbid;
+            this.timestamp = timestamp;
+        }
+    }
+}
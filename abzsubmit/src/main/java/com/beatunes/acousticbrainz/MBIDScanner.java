@@ -0,0 +1,209 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Finds {@code metadata.tags.musicbrainz_trackid} in extractor output without building
+ * a DOM. Everything that's not on the path to the MBID is skipped character by character,
+ * and scanning stops as soon as the MBID is found.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class MBIDScanner {
+
+    private static final String[] PATH = {"metadata", "tags", "musicbrainz_trackid"};
+
+    private final Reader in;
+    private final char[] buf = new char[8 * 1024];
+    private final StringBuilder sb = new StringBuilder();
+    private int pos;
+    private int limit;
+
+    private MBIDScanner(final Reader in) {
+        this.in = in;
+    }
+
+    /**
+     * Scans the given JSON for the MBID. If the value is an array, its first element is returned.
+     *
+     * @param in JSON
+     * @return MBID or {@code null}, if not found
+     * @throws IOException if the JSON cannot be read or is malformed
+     */
+    static String scan(final Reader in) throws IOException {
+        final MBIDScanner scanner = new MBIDScanner(in);
+        if (scanner.nextNonWhitespace() != '{') throw new IOException("Expected JSON object");
+        return scanner.scanObject(0);
+    }
+
+    /**
+     * Scans an object, whose opening brace has already been consumed.
+     *
+     * @param depth number of path elements that lead to this object
+     * @return MBID or null
+     */
+    private String scanObject(final int depth) throws IOException {
+        int c = nextNonWhitespace();
+        if (c == '}') return null;
+        while (true) {
+            if (c != '"') throw new IOException("Expected key, got " + (char) c);
+            final boolean onPath = readKey(PATH[depth]);
+            if (nextNonWhitespace() != ':') throw new IOException("Expected ':'");
+            if (onPath) {
+                final int value = nextNonWhitespace();
+                if (depth + 1 == PATH.length) {
+                    return readMBID(value);
+                }
+                if (value == '{') {
+                    final String mbid = scanObject(depth + 1);
+                    if (mbid != null) return mbid;
+                } else {
+                    skipValue(value);
+                }
+            } else {
+                skipValue(nextNonWhitespace());
+            }
+            c = nextNonWhitespace();
+            if (c == '}') return null;
+            if (c != ',') throw new IOException("Expected ',' or '}', got " + (char) c);
+            c = nextNonWhitespace();
+        }
+    }
+
+    private String readMBID(final int c) throws IOException {
+        if (c == '"') {
+            return readString();
+        }
+        if (c == '[') {
+            final int first = nextNonWhitespace();
+            return first == '"' ? readString() : null;
+        }
+        return null;
+    }
+
+    /**
+     * Reads a key, whose opening quote has already been consumed, and compares it with the expected key
+     * without building a string.
+     */
+    private boolean readKey(final String expected) throws IOException {
+        int i = 0;
+        boolean match = true;
+        while (true) {
+            int c = read();
+            if (c == '"') return match && i == expected.length();
+            if (c == '\\') {
+                c = read();
+                // keys on our path don't contain escapes
+                match = false;
+            }
+            if (c == -1) throw new IOException("Unterminated string");
+            if (match && (i >= expected.length() || expected.charAt(i) != c)) match = false;
+            i++;
+        }
+    }
+
+    private String readString() throws IOException {
+        sb.setLength(0);
+        while (true) {
+            final int c = read();
+            if (c == '"') return sb.toString();
+            if (c == -1) throw new IOException("Unterminated string");
+            if (c == '\\') {
+                final int escaped = read();
+                switch (escaped) {
+                    case 'u': sb.append(readHexChar()); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case -1: throw new IOException("Unterminated string");
+                    default: sb.append((char) escaped);
+                }
+            } else {
+                sb.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Reads the four hex digits of a unicode escape.
+     */
+    private char readHexChar() throws IOException {
+        int value = 0;
+        for (int i=0; i<4; i++) {
+            final int c = read();
+            final int digit = c == -1 ? -1 : Character.digit(c, 16);
+            if (digit == -1) throw new IOException("Malformed unicode escape");
+            value = value * 16 + digit;
+        }
+        return (char) value;
+    }
+
+    /**
+     * Skips a value, whose first character has already been consumed.
+     */
+    private void skipValue(final int first) throws IOException {
+        if (first == '"') {
+            skipString();
+        } else if (first == '{' || first == '[') {
+            int nesting = 1;
+            while (nesting > 0) {
+                final int c = read();
+                if (c == -1) throw new IOException("Unexpected end of JSON");
+                if (c == '"') skipString();
+                else if (c == '{' || c == '[') nesting++;
+                else if (c == '}' || c == ']') nesting--;
+            }
+        } else {
+            // number, true, false, null
+            while (true) {
+                final int c = peek();
+                if (c == -1 || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) return;
+                pos++;
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            final int c = read();
+            if (c == '"') return;
+            if (c == '\\') read();
+            else if (c == -1) throw new IOException("Unterminated string");
+        }
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int read() throws IOException {
+        final int c = peek();
+        if (c != -1) pos++;
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buf);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buf[pos];
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Persistent queue of extractor results waiting to be uploaded.
+ * Each entry consists of the gzip-compressed JSON and a small properties file
+ * with the MBID and the song it belongs to. Entries are uploaded in the background
+ * and retried with jittered exponential backoff, so that neither slow nor failing
+ * uploads hold up the extractors. Entries that still fail after {@value #MAX_ATTEMPTS} attempts
+ * are moved to the {@code failed} subdirectory. Entries left over from an earlier session are
+ * picked up again by {@link #start()}, and so are failed entries, unless the server refused them
+ * (HTTP 4xx other than 408 and 429).
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class Outbox {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Outbox.class);
+    private static final String JSON_SUFFIX = ".json.gz";
+    private static final String PROPERTIES_SUFFIX = ".properties";
+    private static final String FAILED = "failed";
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long INITIAL_BACKOFF_MILLIS = 5000L;
+    private static final long MAX_BACKOFF_MILLIS = 30L * 60L * 1000L;
+
+    private final Path directory;
+    private final AcousticBrainzClient client;
+    private final long initialBackoffMillis;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private volatile Listener listener;
+
+    /**
+     * @param directory outbox directory
+     * @param client client used for uploading
+     */
+    Outbox(final Path directory, final AcousticBrainzClient client) {
+        this(directory, client, INITIAL_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param directory outbox directory
+     * @param client client used for uploading
+     * @param initialBackoffMillis delay before the first retry, doubled for every further attempt
+     */
+    Outbox(final Path directory, final AcousticBrainzClient client, final long initialBackoffMillis) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.directory = directory;
+        this.client = client;
+        this.initialBackoffMillis = initialBackoffMillis;
+        // uploads themselves run asynchronously in the client, which caps the requests in flight
+        this.scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz Upload " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param listener listener that is told about the final outcome of each upload
+     */
+    void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Schedules uploads for all entries left over from earlier sessions, including
+     * entries we gave up on, because the server could not be reached.
+     */
+    void start() {
+        if (!Files.isDirectory(directory)) return;
+        requeueFailed();
+        try (final Stream<Path> files = Files.list(directory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(JSON_SUFFIX)).forEach(json -> {
+                try {
+                    schedule(readEntry(json), 0);
+                } catch (IOException e) {
+                    LOG.error("Failed to read outbox entry " + json, e);
+                }
+            });
+        } catch (IOException e) {
+            LOG.error("Failed to list outbox " + directory, e);
+        }
+    }
+
+    /**
+     * Moves failed entries the server did not refuse back into the outbox.
+     */
+    private void requeueFailed() {
+        final Path failedDirectory = directory.resolve(FAILED);
+        if (!Files.isDirectory(failedDirectory)) return;
+        try (final Stream<Path> files = Files.list(failedDirectory)) {
+            files.filter(p -> p.getFileName().toString().endsWith(JSON_SUFFIX)).forEach(json -> {
+                try {
+                    final Properties properties = readProperties(json);
+                    if (Boolean.parseBoolean(properties.getProperty("permanent"))) return;
+                    if (LOG.isDebugEnabled()) LOG.debug("Retrying failed upload " + json + ": " + properties.getProperty("reason"));
+                    // properties first, so that a visible JSON file always has its properties
+                    final Path target = directory.resolve(json.getFileName());
+                    Files.move(toProperties(json), toProperties(target), StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(json, target, StandardCopyOption.REPLACE_EXISTING);
+                    SubmitMetrics.increment("outbox.requeued");
+                } catch (IOException e) {
+                    LOG.error("Failed to move failed outbox entry " + json + " back", e);
+                }
+            });
+        } catch (IOException e) {
+            LOG.error("Failed to list outbox " + failedDirectory, e);
+        }
+    }
+
+    /**
+     * Stops uploading. Queued entries stay on disk and are uploaded after the next {@link #start()}.
+     */
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Indicates, whether all entries were uploaded or failed for good.
+     *
+     * @return true, if there is nothing left to upload
+     */
+    boolean isEmpty() {
+        if (!Files.isDirectory(directory)) return true;
+        try (final Stream<Path> files = Files.list(directory)) {
+            return files.noneMatch(p -> p.getFileName().toString().endsWith(JSON_SUFFIX));
+        } catch (IOException e) {
+            LOG.error("Failed to list outbox " + directory, e);
+            return false;
+        }
+    }
+
+    /**
+     * Compresses the given extractor output into the outbox and schedules its upload.
+     *
+     * @param mbid MBID the output is submitted for
+     * @param songId id of the song
+     * @param songName name of the song, for messages
+     * @param json extractor output, may be deleted once this method returns
+     * @return new entry
+     * @throws IOException if the entry cannot be written
+     */
+    Entry enqueue(final String mbid, final long songId, final String songName, final Path json) throws IOException {
+        Files.createDirectories(directory);
+        final String name = System.currentTimeMillis() + "-" + mbid + "-" + songId;
+        final Entry entry = new Entry(directory.resolve(name + JSON_SUFFIX), mbid, songId, songName);
+        final Path tempFile = Files.createTempFile(directory, name, ".tmp");
+        try {
+            // compress while copying and count bytes before and after compression
+            final CountingOutputStream compressed;
+            try (final OutputStream out = Files.newOutputStream(tempFile)) {
+                compressed = new CountingOutputStream(new BufferedOutputStream(out));
+                try (final OutputStream gzip = new GZIPOutputStream(compressed)) {
+                    SubmitMetrics.add("upload.bytes.raw", Files.copy(json, gzip));
+                }
+            }
+            SubmitMetrics.add("upload.bytes.gzip", compressed.getCount());
+            // properties first, so that a visible JSON file always has its properties
+            writeProperties(entry);
+            Files.move(tempFile, entry.json, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        SubmitMetrics.increment("outbox.enqueued");
+        schedule(entry, 0);
+        return entry;
+    }
+
+    private void schedule(final Entry entry, final long delayMillis) {
+        try {
+            scheduler.schedule(() -> upload(entry), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down, the entry is picked up again after restart
+            if (LOG.isDebugEnabled()) LOG.debug("Not scheduling upload of " + entry.json + ", because we are shutting down.");
+        }
+    }
+
+    private void upload(final Entry entry) {
+        entry.attempts++;
+        final SubmitMetrics.Timer timer = SubmitMetrics.time("upload");
+        client.submitAsync(entry.mbid, entry.json).whenComplete((response, t) -> {
+            timer.close();
+            if (t == null) {
+                handle(entry, response);
+            } else if (t instanceof RejectedExecutionException) {
+                // shutting down, the entry is picked up again after restart
+                if (LOG.isDebugEnabled()) LOG.debug("Not uploading " + entry.json + ", because we are shutting down.");
+            } else {
+                retry(entry, t.toString());
+            }
+        });
+    }
+
+    private void handle(final Entry entry, final AcousticBrainzClient.Response response) {
+        if (response.isSuccess()) {
+            SubmitMetrics.increment("upload.success");
+            delete(entry);
+            final Listener listener = this.listener;
+            if (listener != null) listener.uploaded(entry);
+        } else if (response.isRetryable()) {
+            retry(entry, response.toString());
+        } else {
+            fail(entry, response.toString(), true);
+        }
+    }
+
+    private void retry(final Entry entry, final String reason) {
+        if (entry.attempts >= MAX_ATTEMPTS) {
+            fail(entry, reason, false);
+            return;
+        }
+        SubmitMetrics.increment("upload.retry");
+        final long backoff = Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(20, entry.attempts - 1));
+        // full jitter, i.e. anywhere between 0 and the backoff, so that retries of many entries don't happen in lockstep
+        final long delay = (long) (backoff * ThreadLocalRandom.current().nextDouble());
+        LOG.warn("Upload of " + entry.json + " failed (attempt " + entry.attempts + "): " + reason + ". Retrying in " + delay + "ms.");
+        schedule(entry, delay);
+    }
+
+    private void fail(final Entry entry, final String reason, final boolean permanent) {
+        LOG.error("Giving up on uploading " + entry.json + " after " + entry.attempts + " attempt(s): " + reason);
+        SubmitMetrics.increment("upload.failure");
+        try {
+            // keep the expensive extractor output for later inspection or, if the server wasn't reachable, a later retry
+            final Path failedDirectory = Files.createDirectories(directory.resolve(FAILED));
+            final Properties failure = readProperties(entry.json);
+            failure.setProperty("reason", reason);
+            failure.setProperty("permanent", Boolean.toString(permanent));
+            writeProperties(entry.json, failure);
+            Files.move(entry.json, failedDirectory.resolve(entry.json.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            final Path properties = toProperties(entry.json);
+            Files.move(properties, failedDirectory.resolve(properties.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOG.error("Failed to move outbox entry " + entry.json + " to " + FAILED, e);
+        }
+        final Listener listener = this.listener;
+        if (listener != null) listener.failed(entry, reason, permanent);
+    }
+
+    private static void delete(final Entry entry) {
+        try {
+            Files.deleteIfExists(entry.json);
+            Files.deleteIfExists(toProperties(entry.json));
+        } catch (IOException e) {
+            LOG.error("Failed to delete outbox entry " + entry.json, e);
+        }
+    }
+
+    private static void writeProperties(final Entry entry) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty("mbid", entry.mbid);
+        properties.setProperty("songId", Long.toString(entry.songId));
+        properties.setProperty("songName", entry.songName == null ? "" : entry.songName);
+        writeProperties(entry.json, properties);
+    }
+
+    private static void writeProperties(final Path json, final Properties properties) throws IOException {
+        try (final Writer writer = Files.newBufferedWriter(toProperties(json), StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+    }
+
+    private static Properties readProperties(final Path json) throws IOException {
+        final Properties properties = new Properties();
+        try (final Reader reader = Files.newBufferedReader(toProperties(json), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    private static Entry readEntry(final Path json) throws IOException {
+        final Properties properties = readProperties(json);
+        return new Entry(json, properties.getProperty("mbid"),
+            Long.parseLong(properties.getProperty("songId", "0")), properties.getProperty("songName"));
+    }
+
+    private static Path toProperties(final Path json) {
+        final String name = json.getFileName().toString();
+        return json.resolveSibling(name.substring(0, name.length() - JSON_SUFFIX.length()) + PROPERTIES_SUFFIX);
+    }
+
+    /**
+     * Queued upload.
+     */
+    static final class Entry {
+
+        private final Path json;
+        private final String mbid;
+        private final long songId;
+        private final String songName;
+        private int attempts;
+
+        private Entry(final Path json, final String mbid, final long songId, final String songName) {
+            this.json = json;
+            this.mbid = mbid;
+            this.songId = songId;
+            this.songName = songName;
+        }
+
+        String getMbid() {
+            return mbid;
+        }
+
+        long getSongId() {
+            return songId;
+        }
+
+        String getSongName() {
+            return songName;
+        }
+    }
+
+    /**
+     * Is told about the final outcome of an upload.
+     */
+    interface Listener {
+
+        void uploaded(Entry entry);
+
+        /**
+         * @param entry entry
+         * @param reason reason
+         * @param permanent true, if the server refused the results, false, if we gave up retrying
+         */
+        void failed(Entry entry, String reason, boolean permanent);
+    }
+}
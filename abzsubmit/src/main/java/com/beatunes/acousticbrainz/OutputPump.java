@@ -0,0 +1,174 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drains the merged stdout/stderr of an extractor process in the background.
+ * Only the last few KB are kept for diagnostics, and stage markers printed by the extractor
+ * are translated into progress values between 0 and 1.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class OutputPump implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutputPump.class);
+    private static final int DEFAULT_CAPACITY = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final Pattern PERCENT = Pattern.compile("(\\d{1,3})\\s*%");
+    // stage markers of streaming_extractor_music and the progress reached, when they are printed.
+    // most of the time is spent computing audio features.
+    private static final Map<String, Float> STAGES = new LinkedHashMap<>();
+    private static final float FEATURES_START = 0.3f;
+    private static final float FEATURES_END = 0.9f;
+
+    static {
+        STAGES.put("Read metadata", 0.05f);
+        STAGES.put("Compute md5 audio hash", 0.1f);
+        STAGES.put("Replay gain", 0.2f);
+        STAGES.put("Compute audio features", FEATURES_START);
+        STAGES.put("Compute aggregation", FEATURES_END);
+        STAGES.put("All done", 0.95f);
+        STAGES.put("Writing results", 0.98f);
+    }
+
+    private final InputStream in;
+    private final Consumer<Float> progress;
+    private final byte[] ring;
+    private final StringBuilder line = new StringBuilder();
+    private long written;
+    private float lastProgress;
+    private boolean inFeatures;
+    private Thread thread;
+
+    /**
+     * @param in process output
+     * @param capacity number of bytes to keep
+     * @param progress progress callback
+     */
+    OutputPump(final InputStream in, final int capacity, final Consumer<Float> progress) {
+        this.in = in;
+        this.ring = new byte[capacity];
+        this.progress = progress;
+    }
+
+    /**
+     * Starts pumping the output of the given process.
+     *
+     * @param process process
+     * @param progress progress callback, receives values between 0 and 1
+     * @return running pump
+     */
+    static OutputPump start(final Process process, final Consumer<Float> progress) {
+        final OutputPump pump = new OutputPump(process.getInputStream(), DEFAULT_CAPACITY, progress);
+        pump.thread = new Thread(pump, "AcousticBrainz Extractor Output");
+        pump.thread.setDaemon(true);
+        pump.thread.start();
+        return pump;
+    }
+
+    /**
+     * Waits until the process has closed its output.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void join() throws InterruptedException {
+        if (thread != null) thread.join();
+    }
+
+    @Override
+    public void run() {
+        final byte[] buf = new byte[4096];
+        try {
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                append(buf, count);
+            }
+        } catch (IOException e) {
+            if (LOG.isDebugEnabled()) LOG.debug("Failed to read extractor output: " + e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.error(e.toString(), e);
+            }
+        }
+    }
+
+    private void append(final byte[] buf, final int count) {
+        synchronized (ring) {
+            for (int i=0; i<count; i++) {
+                ring[(int) (written++ % ring.length)] = buf[i];
+            }
+        }
+        for (int i=0; i<count; i++) {
+            final char c = (char) (buf[i] & 0xFF);
+            // the extractor may use carriage returns to update a line in place
+            if (c == '\n' || c == '\r') {
+                parse(line);
+                line.setLength(0);
+            } else if (line.length() < MAX_LINE_LENGTH) {
+                line.append(c);
+            }
+        }
+    }
+
+    private void parse(final CharSequence line) {
+        if (line.length() == 0) return;
+        final String s = line.toString();
+        for (final Map.Entry<String, Float> stage : STAGES.entrySet()) {
+            if (s.contains(stage.getKey())) {
+                inFeatures = stage.getValue() == FEATURES_START;
+                report(stage.getValue());
+                return;
+            }
+        }
+        if (inFeatures) {
+            final Matcher matcher = PERCENT.matcher(s);
+            if (matcher.find()) {
+                final int percent = Math.min(100, Integer.parseInt(matcher.group(1)));
+                report(FEATURES_START + (FEATURES_END - FEATURES_START) * percent / 100f);
+            }
+        }
+    }
+
+    private void report(final float value) {
+        // never go backwards
+        if (value > lastProgress) {
+            lastProgress = value;
+            progress.accept(value);
+        }
+    }
+
+    /**
+     * Last bytes written by the process.
+     *
+     * @return up to capacity bytes of output
+     */
+    String getTail() {
+        synchronized (ring) {
+            final int length = (int) Math.min(written, ring.length);
+            final byte[] tail = new byte[length];
+            final int start = (int) ((written - length) % ring.length);
+            final int firstPart = Math.min(length, ring.length - start);
+            System.arraycopy(ring, start, tail, 0, firstPart);
+            System.arraycopy(ring, 0, tail, firstPart, length - firstPart);
+            return new String(tail, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Waits for an extractor process and kills it (including any child processes),
+ * if it runs too long, uses too much memory or too much CPU time.
+ * Memory and CPU usage are sampled from {@code /proc} on Linux, with {@code ps} on macOS
+ * and other Unix systems, and with {@code tasklist} on Windows. As starting {@code ps} or
+ * {@code tasklist} isn't free, those are sampled less often. On Windows, child processes
+ * are only found with Java 9 or later. If sampling fails, only the wall-clock timeout is enforced.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class ProcessWatchdog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProcessWatchdog.class);
+    private static final long SAMPLE_INTERVAL_MILLIS = 1000L;
+    private static final long TOOL_SAMPLE_INTERVAL_MILLIS = 5000L;
+    private static final long TOOL_TIMEOUT_MILLIS = 5000L;
+    // USER_HZ is 100 on practically all Linux systems
+    private static final long CLOCK_TICKS_PER_SECOND = 100L;
+    private static final Path PROC = Paths.get("/proc");
+    private static final boolean HAS_PROC = Files.isDirectory(PROC);
+    private static final boolean WINDOWS = System.getProperty("os.name", "").toLowerCase().startsWith("windows");
+
+    private final long timeoutMillis;
+    private final long maxRssBytes;
+    private final long maxCpuMillis;
+
+    /**
+     * @param timeoutMillis maximum wall-clock time
+     * @param maxRssBytes maximum resident set size of the process tree
+     * @param maxCpuMillis maximum CPU time (user + system) of the process tree
+     */
+    ProcessWatchdog(final long timeoutMillis, final long maxRssBytes, final long maxCpuMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxRssBytes = maxRssBytes;
+        this.maxCpuMillis = maxCpuMillis;
+    }
+
+    /**
+     * Creates a watchdog with limits suitable for a track of the given length.
+     * Limits can be tuned with the system properties {@code abzsubmit.watchdog.minTimeout} (ms),
+     * {@code abzsubmit.watchdog.timeoutFactor} (multiple of the track length),
+     * {@code abzsubmit.watchdog.maxRssMB}, {@code abzsubmit.watchdog.minCpu} (ms) and
+     * {@code abzsubmit.watchdog.maxCpuFactor} (multiple of the track length).
+     * As the extractor mostly uses a single thread, its CPU time grows no faster than the wall-clock
+     * time. The CPU time limit is therefore derived from the track length and is lower than the
+     * timeout, so that a runaway extractor is killed before the timeout, even on an idle machine.
+     *
+     * @param trackMillis track length in ms
+     * @return watchdog
+     */
+    static ProcessWatchdog forTrack(final long trackMillis) {
+        final long minTimeout = Long.getLong("abzsubmit.watchdog.minTimeout", TimeUnit.MINUTES.toMillis(5));
+        final double timeoutFactor = Double.parseDouble(System.getProperty("abzsubmit.watchdog.timeoutFactor", "2"));
+        final long maxRssBytes = Long.getLong("abzsubmit.watchdog.maxRssMB", 4096L) * 1024L * 1024L;
+        final long minCpu = Long.getLong("abzsubmit.watchdog.minCpu", TimeUnit.MINUTES.toMillis(2));
+        final double maxCpuFactor = Double.parseDouble(System.getProperty("abzsubmit.watchdog.maxCpuFactor", "1"));
+        final long timeout = Math.max(minTimeout, (long) (Math.max(0, trackMillis) * timeoutFactor));
+        final long maxCpu = Math.min(timeout, Math.max(minCpu, (long) (Math.max(0, trackMillis) * maxCpuFactor)));
+        return new ProcessWatchdog(timeout, maxRssBytes, maxCpu);
+    }
+
+    long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    long getMaxCpuMillis() {
+        return maxCpuMillis;
+    }
+
+    /**
+     * Waits for the process to exit.
+     *
+     * @param process process
+     * @return exit code
+     * @throws InterruptedException if interrupted while waiting. The process is killed in this case.
+     * @throws ExtractorKilledException if the process was killed, because it exceeded a limit
+     */
+    int waitFor(final Process process) throws InterruptedException, ExtractorKilledException {
+        final long start = System.currentTimeMillis();
+        final long pid = getPid(process);
+        final long sampleInterval = HAS_PROC ? SAMPLE_INTERVAL_MILLIS : TOOL_SAMPLE_INTERVAL_MILLIS;
+        long lastSample = start;
+        try {
+            while (!process.waitFor(SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                final long now = System.currentTimeMillis();
+                final long elapsed = now - start;
+                if (elapsed > timeoutMillis) {
+                    throw kill(process, pid, Reason.TIMEOUT, "ran for " + elapsed + "ms, limit is " + timeoutMillis + "ms");
+                }
+                if (pid > 0 && now - lastSample >= sampleInterval) {
+                    lastSample = now;
+                    final long[] usage = sampleTree(process, pid);
+                    final long rss = usage[0];
+                    final long cpu = usage[1];
+                    if (rss > maxRssBytes) {
+                        throw kill(process, pid, Reason.MEMORY, "used " + rss + " bytes, limit is " + maxRssBytes);
+                    }
+                    if (cpu > maxCpuMillis) {
+                        throw kill(process, pid, Reason.CPU, "used " + cpu + "ms CPU time, limit is " + maxCpuMillis + "ms");
+                    }
+                }
+            }
+            return process.exitValue();
+        } catch (InterruptedException e) {
+            killTree(process, pid);
+            throw e;
+        }
+    }
+
+    private static ExtractorKilledException kill(final Process process, final long pid, final Reason reason, final String details) {
+        LOG.warn("Killing extractor process " + (pid > 0 ? pid : process) + ", because it " + details + ".");
+        killTree(process, pid);
+        SubmitMetrics.increment(reason.getMetric());
+        return new ExtractorKilledException(reason, "Extractor killed (" + reason.getDescription() + "): " + details);
+    }
+
+    private static void killTree(final Process process, final long pid) {
+        if (pid > 0) {
+            try {
+                final List<String> command = new ArrayList<>();
+                if (WINDOWS) {
+                    command.add("taskkill");
+                    command.add("/F");
+                    command.add("/T");
+                    command.add("/PID");
+                    command.add(Long.toString(pid));
+                } else {
+                    command.add("kill");
+                    command.add("-KILL");
+                    for (final long p : getProcessTree(pid)) {
+                        command.add(Long.toString(p));
+                    }
+                    if (command.size() == 2) command.add(Long.toString(pid));
+                }
+                new ProcessBuilder(command).redirectErrorStream(true).start().waitFor(TOOL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                LOG.error("Failed to kill process tree of " + pid, e);
+            }
+        }
+        process.destroyForcibly();
+    }
+
+    /**
+     * Resident set size and CPU time of the given process and its descendants.
+     *
+     * @return bytes and ms. Zeros, if they cannot be sampled.
+     */
+    private static long[] sampleTree(final Process process, final long pid) {
+        final long[] usage = new long[2];
+        if (HAS_PROC) {
+            for (final long p : getProcessTree(pid)) {
+                usage[0] += readRssBytes(p);
+                usage[1] += readCpuMillis(p);
+            }
+        } else if (WINDOWS) {
+            final List<Long> tree = new ArrayList<>();
+            tree.add(pid);
+            tree.addAll(getDescendants(process));
+            for (final long p : tree) {
+                final long[] u = parseTasklist(run("tasklist", "/V", "/FO", "CSV", "/NH", "/FI", "PID eq " + p));
+                usage[0] += u[0];
+                usage[1] += u[1];
+            }
+        } else {
+            final Map<Long, long[]> table = parsePs(run("ps", "-A", "-o", "pid=,ppid=,rss=,time="));
+            for (final long p : getProcessTree(pid, table)) {
+                final long[] u = table.get(p);
+                if (u == null) continue;
+                usage[0] += u[1];
+                usage[1] += u[2];
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * The given process and all its descendants, if {@code /proc} or {@code ps} are available.
+     */
+    private static List<Long> getProcessTree(final long pid) {
+        if (!HAS_PROC) {
+            return WINDOWS
+                ? Collections.singletonList(pid)
+                : getProcessTree(pid, parsePs(run("ps", "-A", "-o", "pid=,ppid=,rss=,time=")));
+        }
+        final List<Long> tree = new ArrayList<>();
+        tree.add(pid);
+        final List<long[]> parents = new ArrayList<>();
+        try (final Stream<Path> dirs = Files.list(PROC)) {
+            dirs.map(p -> p.getFileName().toString())
+                .filter(name -> name.chars().allMatch(Character::isDigit))
+                .forEach(name -> {
+                    final String[] stat = readStat(Long.parseLong(name));
+                    if (stat != null) parents.add(new long[]{Long.parseLong(name), Long.parseLong(stat[1])});
+                });
+        } catch (IOException e) {
+            if (LOG.isDebugEnabled()) LOG.debug("Failed to list " + PROC + ": " + e);
+        }
+        for (int i=0; i<tree.size(); i++) {
+            final long parent = tree.get(i);
+            for (final long[] p : parents) {
+                if (p[1] == parent && !tree.contains(p[0])) tree.add(p[0]);
+            }
+        }
+        return tree;
+    }
+
+    private static List<Long> getProcessTree(final long pid, final Map<Long, long[]> table) {
+        final List<Long> tree = new ArrayList<>();
+        tree.add(pid);
+        for (int i=0; i<tree.size(); i++) {
+            final long parent = tree.get(i);
+            for (final Map.Entry<Long, long[]> e : table.entrySet()) {
+                if (e.getValue()[0] == parent && !tree.contains(e.getKey())) tree.add(e.getKey());
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Parses the output of {@code ps -A -o pid=,ppid=,rss=,time=}.
+     *
+     * @param lines output
+     * @return parent pid, RSS in bytes and CPU time in ms by pid
+     */
+    static Map<Long, long[]> parsePs(final List<String> lines) {
+        final Map<Long, long[]> table = new HashMap<>();
+        for (final String line : lines) {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length != 4) continue;
+            try {
+                table.put(Long.parseLong(fields[0]), new long[]{
+                    Long.parseLong(fields[1]), Long.parseLong(fields[2]) * 1024L, parseCpuTime(fields[3])});
+            } catch (NumberFormatException e) {
+                // e.g. a header
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Parses the output of {@code tasklist /V /FO CSV /NH} for a single process, e.g.
+     * {@code "streaming_extractor_music.exe","1234","Console","1","123,456 K","Running","user","0:01:05","N/A"}.
+     *
+     * @param lines output
+     * @return working set in bytes and CPU time in ms, zeros if the process is gone
+     */
+    static long[] parseTasklist(final List<String> lines) {
+        final long[] usage = new long[2];
+        for (final String line : lines) {
+            // anything else is a message like "INFO: No tasks are running..."
+            if (!line.startsWith("\"")) continue;
+            final String[] fields = line.substring(1, line.length() - 1).split("\",\"");
+            if (fields.length < 8) continue;
+            try {
+                // the thousands separator depends on the locale
+                usage[0] += Long.parseLong(fields[4].replaceAll("\\D", "")) * 1024L;
+                usage[1] += parseCpuTime(fields[7]);
+            } catch (NumberFormatException e) {
+                if (LOG.isDebugEnabled()) LOG.debug("Failed to parse tasklist output: " + line);
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * Parses CPU times like {@code 1-02:03:04}, {@code 02:03:04}, {@code 123:04.56} or {@code 0:04}.
+     *
+     * @param time CPU time as printed by ps or tasklist
+     * @return ms
+     */
+    static long parseCpuTime(final String time) {
+        final int dash = time.indexOf('-');
+        final long days = dash > 0 ? Long.parseLong(time.substring(0, dash)) : 0L;
+        final String[] parts = time.substring(dash + 1).split(":");
+        double seconds = 0;
+        for (final String part : parts) {
+            seconds = seconds * 60 + Double.parseDouble(part);
+        }
+        return days * TimeUnit.DAYS.toMillis(1) + Math.round(seconds * 1000);
+    }
+
+    /**
+     * Descendants of the process. {@code Process.descendants()} only exists in Java 9 and later.
+     */
+    private static List<Long> getDescendants(final Process process) {
+        final List<Long> pids = new ArrayList<>();
+        try {
+            final Method descendants = Process.class.getMethod("descendants");
+            final Method pid = Class.forName("java.lang.ProcessHandle").getMethod("pid");
+            try (final Stream<?> handles = (Stream<?>) descendants.invoke(process)) {
+                final Iterator<?> iterator = handles.iterator();
+                while (iterator.hasNext()) {
+                    pids.add(((Number) pid.invoke(iterator.next())).longValue());
+                }
+            }
+        } catch (Exception e) {
+            // not Java 9+
+        }
+        return pids;
+    }
+
+    /**
+     * Runs a command and returns its output.
+     *
+     * @return output lines, empty, if the command fails
+     */
+    private static List<String> run(final String... command) {
+        try {
+            final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            final List<String> lines = new ArrayList<>();
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) lines.add(line);
+            }
+            if (!process.waitFor(TOOL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) process.destroyForcibly();
+            return lines;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (LOG.isDebugEnabled()) LOG.debug("Failed to run " + String.join(" ", command) + ": " + e);
+        }
+        return Collections.emptyList();
+    }
+
+    private static long readRssBytes(final long pid) {
+        try {
+            for (final String line : Files.readAllLines(PROC.resolve(pid + "/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    // e.g. "VmRSS:	  123456 kB"
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024L;
+                }
+            }
+        } catch (Exception e) {
+            // process is gone
+            if (LOG.isDebugEnabled()) LOG.debug("Failed to read RSS of " + pid + ": " + e);
+        }
+        return 0;
+    }
+
+    private static long readCpuMillis(final long pid) {
+        final String[] stat = readStat(pid);
+        if (stat == null) return 0;
+        // utime and stime are fields 14 and 15, i.e. 11 and 12 after the state
+        final long ticks = Long.parseLong(stat[11]) + Long.parseLong(stat[12]);
+        return ticks * 1000L / CLOCK_TICKS_PER_SECOND;
+    }
+
+    /**
+     * Fields of {@code /proc/[pid]/stat}, starting with the state (field 3),
+     * because the command name may contain spaces.
+     */
+    private static String[] readStat(final long pid) {
+        try {
+            final String stat = new String(Files.readAllBytes(PROC.resolve(pid + "/stat")), StandardCharsets.US_ASCII);
+            return stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Process id, if the runtime lets us find out. {@code Process.pid()} only exists
+     * in Java 9 and later, so we try that reflectively and fall back to the private
+     * field used by Java 8 on Unix.
+     *
+     * @param process process
+     * @return pid or -1
+     */
+    static long getPid(final Process process) {
+        try {
+            final Method pid = Process.class.getMethod("pid");
+            return ((Number) pid.invoke(process)).longValue();
+        } catch (Exception e) {
+            // not Java 9+
+        }
+        try {
+            final Field pid = process.getClass().getDeclaredField("pid");
+            pid.setAccessible(true);
+            return pid.getInt(process);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Why the watchdog killed a process.
+     */
+    enum Reason {
+        TIMEOUT("failure.timeout", "timeout"),
+        MEMORY("failure.memory", "memory limit"),
+        CPU("failure.cpu", "CPU limit");
+
+        private final String metric;
+        private final String description;
+
+        Reason(final String metric, final String description) {
+            this.metric = metric;
+            this.description = description;
+        }
+
+        String getMetric() {
+            return metric;
+        }
+
+        String getDescription() {
+            return description;
+        }
+    }
+
+    /**
+     * Signals that the watchdog killed the extractor.
+     */
+    static final class ExtractorKilledException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Reason reason;
+
+        ExtractorKilledException(final Reason reason, final String message) {
+            super(message);
+            this.reason = reason;
+        }
+
+        Reason getReason() {
+            return reason;
+        }
+    }
+}
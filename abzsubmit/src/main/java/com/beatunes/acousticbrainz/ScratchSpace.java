@@ -0,0 +1,313 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Manages the temporary files of extractor jobs (outputs, profiles, copies, segments).
+ * <ul>
+ *     <li>Files are created in a session directory below the first usable root directory,
+ *     so fast local storage can be configured instead of the default temp directory.</li>
+ *     <li>Jobs {@link #reserve(long) reserve} the space they expect to need. Reservations block
+ *     while the quota or the free space on the volume would be exceeded, which holds up the
+ *     extractor pool until earlier jobs have cleaned up.</li>
+ *     <li>Each session directory is locked while in use. Unlocked session directories were left
+ *     behind by a crashed session and are deleted on startup.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class ScratchSpace {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScratchSpace.class);
+    private static final String SESSION_PREFIX = "abzsubmit-scratch-";
+    private static final String LOCK = ".lock";
+    private static final long MB = 1024L * 1024L;
+    private static final long DEFAULT_MAX_BYTES = 4096L * MB;
+    private static final long DEFAULT_MIN_FREE_BYTES = 512L * MB;
+    private static final long ORPHAN_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final Path root;
+    private final long maxBytes;
+    private final long minFreeBytes;
+    private Path session;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private long reserved;
+    private int jobs;
+
+    /**
+     * @param root directory session directories are created in
+     * @param maxBytes maximum number of bytes reserved at the same time
+     * @param minFreeBytes space to leave free on the volume
+     */
+    ScratchSpace(final Path root, final long maxBytes, final long minFreeBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    /**
+     * Scratch space configured with the system properties
+     * <ul>
+     *     <li>{@code abzsubmit.scratch.dir}: candidate directories, separated by the path separator.
+     *     The first one that exists and is writable is used, e.g. {@code /mnt/ssd/tmp:/dev/shm}.
+     *     By default the temp directory.</li>
+     *     <li>{@code abzsubmit.scratch.maxMB}: quota (default 4096)</li>
+     *     <li>{@code abzsubmit.scratch.minFreeMB}: space to leave free on the volume (default 512)</li>
+     * </ul>
+     *
+     * @return scratch space
+     */
+    static ScratchSpace fromSystemProperties() {
+        final Path tmp = Paths.get(System.getProperty("java.io.tmpdir"));
+        Path root = tmp;
+        final String candidates = System.getProperty("abzsubmit.scratch.dir");
+        if (candidates != null) {
+            root = null;
+            for (final String candidate : candidates.split(File.pathSeparator)) {
+                final Path path = Paths.get(candidate.trim());
+                if (!candidate.trim().isEmpty() && Files.isDirectory(path) && Files.isWritable(path)) {
+                    root = path;
+                    break;
+                }
+            }
+            if (root == null) {
+                LOG.warn("None of the configured scratch directories is usable: " + candidates + ". Using " + tmp);
+                root = tmp;
+            }
+        }
+        return new ScratchSpace(root,
+            Long.getLong("abzsubmit.scratch.maxMB", DEFAULT_MAX_BYTES / MB) * MB,
+            Long.getLong("abzsubmit.scratch.minFreeMB", DEFAULT_MIN_FREE_BYTES / MB) * MB);
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Opens this session's directory and deletes the ones crashed sessions left behind.
+     *
+     * @throws IOException if the session directory cannot be created
+     */
+    synchronized void start() throws IOException {
+        openSession();
+    }
+
+    /**
+     * Reserves space for a job, waiting while the quota or the free space would be exceeded.
+     * A job is always admitted, if no other job holds a reservation, so that jobs larger
+     * than the quota cannot block forever.
+     *
+     * @param bytes expected space
+     * @return job, to be closed when done
+     * @throws IOException if the job directory cannot be created
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Job reserve(final long bytes) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        boolean waited = false;
+        final Path directory;
+        synchronized (this) {
+            openSession();
+            while (reserved > 0 && (reserved + bytes > maxBytes || getUsableSpace() - bytes < minFreeBytes)) {
+                if (!waited) {
+                    if (LOG.isDebugEnabled()) LOG.debug("Waiting for scratch space. Reserved: " + reserved / MB + " MB, requested: " + bytes / MB + " MB.");
+                    SubmitMetrics.increment("scratch.wait");
+                    waited = true;
+                }
+                // free space may also change because of others, so check again every now and then
+                wait(TimeUnit.SECONDS.toMillis(1));
+            }
+            reserved += bytes;
+            jobs++;
+            directory = Files.createTempDirectory(session, "job");
+        }
+        if (waited) SubmitMetrics.record("scratch", (System.nanoTime() - start) / 1000L);
+        SubmitMetrics.add("scratch.bytes", bytes);
+        return new Job(directory, bytes);
+    }
+
+    private synchronized void release(final Job job, final long written) {
+        reserved -= job.bytes;
+        jobs--;
+        SubmitMetrics.add("scratch.bytes", -job.bytes);
+        SubmitMetrics.add("scratch.written", written);
+        notifyAll();
+    }
+
+    private long getUsableSpace() {
+        try {
+            return Files.getFileStore(session).getUsableSpace();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Creates and locks this session's directory and deletes directories of earlier sessions that are not locked anymore.
+     */
+    private void openSession() throws IOException {
+        if (session != null) return;
+        Files.createDirectories(root);
+        deleteOrphans();
+        session = Files.createTempDirectory(root, SESSION_PREFIX);
+        lockChannel = FileChannel.open(session.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (LOG.isDebugEnabled()) LOG.debug("Scratch directory: " + session);
+    }
+
+    private void deleteOrphans() throws IOException {
+        final List<Path> orphans = new ArrayList<>();
+        try (final Stream<Path> files = Files.list(root)) {
+            files.filter(p -> p.getFileName().toString().startsWith(SESSION_PREFIX) && Files.isDirectory(p))
+                .filter(ScratchSpace::isOrphan)
+                .forEach(orphans::add);
+        }
+        for (final Path orphan : orphans) {
+            final long bytes = deleteRecursively(orphan);
+            SubmitMetrics.increment("scratch.orphans");
+            if (LOG.isInfoEnabled()) LOG.info("Deleted " + bytes / MB + " MB of scratch files left behind by an earlier session: " + orphan);
+        }
+    }
+
+    private static boolean isOrphan(final Path sessionDirectory) {
+        final Path lockFile = sessionDirectory.resolve(LOCK);
+        try {
+            // the session may just be starting
+            if (!Files.exists(lockFile)) return System.currentTimeMillis() - Files.getLastModifiedTime(sessionDirectory).toMillis() > ORPHAN_AGE_MILLIS;
+        } catch (IOException e) {
+            return false;
+        }
+        try (final FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.tryLock();
+            if (lock == null) return false;
+            lock.release();
+            return true;
+        } catch (OverlappingFileLockException e) {
+            // locked by us
+            return false;
+        } catch (IOException e) {
+            // e.g. locked on Windows
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the session directory.
+     */
+    synchronized void shutdown() {
+        if (session == null) return;
+        if (jobs > 0) {
+            // jobs still running, the next session cleans up
+            if (LOG.isDebugEnabled()) LOG.debug("Not deleting " + session + ", because " + jobs + " job(s) are still running.");
+        } else {
+            deleteRecursively(session);
+        }
+        try {
+            if (lock != null) lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            LOG.error("Failed to release lock on " + session, e);
+        }
+        session = null;
+    }
+
+    /**
+     * @return bytes deleted
+     */
+    private static long deleteRecursively(final Path directory) {
+        final long[] bytes = {0};
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    if (Files.isRegularFile(p)) bytes[0] += Files.size(p);
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    LOG.error("Failed to delete " + p, e);
+                }
+            });
+        } catch (IOException e) {
+            LOG.error("Failed to delete " + directory, e);
+        }
+        return bytes[0];
+    }
+
+    /**
+     * Temporary files of a single extractor job. Closing deletes them and releases the reservation.
+     */
+    final class Job implements Closeable {
+
+        private final Path directory;
+        private final long bytes;
+        private boolean closed;
+
+        private Job(final Path directory, final long bytes) {
+            this.directory = directory;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return directory for the job's files, e.g. as working directory of the extractor
+         */
+        Path getDirectory() {
+            return directory;
+        }
+
+        /**
+         * @return bytes reserved for this job
+         */
+        long getReservedBytes() {
+            return bytes;
+        }
+
+        /**
+         * @param prefix prefix
+         * @param suffix suffix
+         * @return new empty file in this job's directory
+         * @throws IOException if the file cannot be created
+         */
+        Path createFile(final String prefix, final String suffix) throws IOException {
+            return Files.createTempFile(directory, prefix, suffix).toAbsolutePath();
+        }
+
+        /**
+         * @param prefix prefix
+         * @return new empty directory in this job's directory
+         * @throws IOException if the directory cannot be created
+         */
+        Path createDirectory(final String prefix) throws IOException {
+            return Files.createTempDirectory(directory, prefix).toAbsolutePath();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            release(this, deleteRecursively(directory));
+        }
+    }
+}
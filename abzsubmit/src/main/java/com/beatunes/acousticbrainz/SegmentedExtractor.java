@@ -0,0 +1,282 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Analyzes long tracks (e.g. DJ mixes or live sets), which the extractor cannot handle in one go.
+ * The track is decoded into segments of fixed length, the extractor runs on several segments
+ * in parallel, and the resulting descriptors are combined with {@link DescriptorAggregator}.
+ * Segments are decoded while earlier ones are being analyzed, and at most as many segments
+ * as may be analyzed in parallel are on disk at the same time.
+ * <p>
+ * The first segment runs on the {@link ExtractorPool} slot of the job that analyzes the track.
+ * Every further segment analyzed at the same time needs a slot borrowed from the pool, so that
+ * segments are subject to the same limit as other extractors, including the one set by the
+ * {@link LoadGovernor}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class SegmentedExtractor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedExtractor.class);
+    private static final int OK = 0;
+    // pool slots are freed without notice, so we check again after this long
+    private static final long SLOT_POLL_MILLIS = 500L;
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "AcousticBrainz Segment " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final long segmentMillis;
+    private final int parallelism;
+    private final ExtractorPool pool;
+
+    /**
+     * @param segmentMillis segment length
+     * @param parallelism maximum number of segments to analyze in parallel, e.g. as limited by scratch space
+     * @param pool pool the calling job runs in, to borrow slots for additional segments from
+     */
+    SegmentedExtractor(final long segmentMillis, final int parallelism, final ExtractorPool pool) {
+        this.segmentMillis = segmentMillis;
+        this.parallelism = Math.max(1, parallelism);
+        this.pool = pool;
+    }
+
+    /**
+     * Segment length configured with the system property {@code abzsubmit.segment.minutes}, by default 10 minutes.
+     *
+     * @return segment length in ms
+     */
+    static long getDefaultSegmentMillis() {
+        return TimeUnit.MINUTES.toMillis(Long.getLong("abzsubmit.segment.minutes", 10L));
+    }
+
+    /**
+     * Analyzes the given file segment by segment and writes the aggregated descriptors.
+     *
+     * @param audioFile audio file
+     * @param trackMillis track length, used for progress only
+     * @param mbid MBID to put into the aggregated document's tags
+     * @param outputFile file to write the aggregated JSON to
+     * @param directory empty directory for segments and their outputs, deleted when done
+     * @param analyzer runs the extractor on a single segment
+     * @param progress progress callback, 0 - 1
+     * @return exit code of the first segment that failed, or {@code 0}
+     * @throws IOException if decoding, extracting or aggregating fails
+     * @throws UnsupportedAudioFileException if the file cannot be decoded
+     * @throws InterruptedException if interrupted while waiting for segments
+     */
+    int extract(final Path audioFile, final long trackMillis, final String mbid, final Path outputFile,
+                final Path directory, final SegmentAnalyzer analyzer, final Consumer<Float> progress) throws IOException, UnsupportedAudioFileException, InterruptedException {
+        final Slots slots = new Slots();
+        final List<AudioSegmenter.Segment> segments = new ArrayList<>();
+        final List<Future<Integer>> futures = new ArrayList<>();
+        final List<Runnable> cancellations = new ArrayList<>();
+        final int expectedSegments = (int) Math.max(1, (trackMillis + segmentMillis - 1) / segmentMillis);
+        final AtomicInteger submitted = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        try {
+            try (final AudioSegmenter segmenter = new AudioSegmenter(audioFile, segmentMillis, directory)) {
+                while (true) {
+                    // don't decode further ahead than we can analyze
+                    final boolean borrowed = slots.acquire();
+                    final AudioSegmenter.Segment segment;
+                    try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("segment")) {
+                        segment = segmenter.next();
+                    } catch (IOException e) {
+                        slots.release(borrowed);
+                        throw e;
+                    }
+                    if (segment == null) {
+                        slots.release(borrowed);
+                        break;
+                    }
+                    segments.add(segment);
+                    submitted.incrementAndGet();
+                    // whoever gets here first releases the slot: the job or, if it never started, the cancellation
+                    final AtomicBoolean started = new AtomicBoolean();
+                    final Future<Integer> future = EXECUTOR.submit(() -> {
+                        if (!started.compareAndSet(false, true)) return OK;
+                        try {
+                            return analyzer.analyze(segment.getFile(), toOutput(segment), segment.getLengthMillis());
+                        } finally {
+                            // the JSON is all we need
+                            Files.deleteIfExists(segment.getFile());
+                            slots.release(borrowed);
+                            progress.accept(Math.min(1f, finished.incrementAndGet() / (float) Math.max(expectedSegments, submitted.get())));
+                        }
+                    });
+                    futures.add(future);
+                    cancellations.add(() -> {
+                        if (future.cancel(true) && started.compareAndSet(false, true)) slots.release(borrowed);
+                    });
+                }
+            }
+            if (LOG.isDebugEnabled()) LOG.debug("Split " + audioFile + " into " + segments.size() + " segments.");
+            for (int i=0; i<futures.size(); i++) {
+                final int exitCode = get(futures.get(i));
+                if (exitCode != OK) {
+                    LOG.error("Extractor failed on segment " + i + " of " + audioFile + ". Exit code: " + exitCode);
+                    return exitCode;
+                }
+            }
+            aggregate(segments, audioFile, mbid, outputFile);
+            SubmitMetrics.increment("segmented");
+            return OK;
+        } finally {
+            cancellations.forEach(Runnable::run);
+            deleteRecursively(directory);
+        }
+    }
+
+    private void aggregate(final List<AudioSegmenter.Segment> segments, final Path audioFile,
+                           final String mbid, final Path outputFile) throws IOException {
+        try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("aggregate")) {
+            final List<JSONObject> documents = new ArrayList<>();
+            final double[] lengths = new double[segments.size()];
+            final double[] offsets = new double[segments.size()];
+            for (int i=0; i<segments.size(); i++) {
+                final AudioSegmenter.Segment segment = segments.get(i);
+                try (final Reader reader = Files.newBufferedReader(toOutput(segment), StandardCharsets.UTF_8)) {
+                    documents.add((JSONObject) new JSONParser().parse(reader));
+                } catch (ParseException | ClassCastException e) {
+                    throw new IOException("Failed to parse extractor output for segment " + i + ": " + e, e);
+                }
+                lengths[i] = segment.getLengthMillis() / 1000.0;
+                offsets[i] = segment.getStartMillis() / 1000.0;
+            }
+            final JSONObject aggregated = DescriptorAggregator.aggregate(documents, lengths, offsets);
+            setTags(aggregated, audioFile, mbid);
+            try (final Writer writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+                aggregated.writeJSONString(writer);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the document refers to the original file and MBID and not to a segment,
+     * even if the extractor did not merge the MBID from the profile.
+     */
+    @SuppressWarnings("unchecked")
+    private static void setTags(final JSONObject document, final Path audioFile, final String mbid) {
+        final Object metadata = document.get("metadata");
+        if (!(metadata instanceof JSONObject)) return;
+        Object tags = ((JSONObject) metadata).get("tags");
+        if (!(tags instanceof JSONObject)) {
+            tags = new JSONObject();
+            ((JSONObject) metadata).put("tags", tags);
+        }
+        final JSONArray mbids = new JSONArray();
+        mbids.add(mbid);
+        ((JSONObject) tags).put("musicbrainz_trackid", mbids);
+        ((JSONObject) tags).put("file_name", audioFile.getFileName().toString());
+    }
+
+    private static Path toOutput(final AudioSegmenter.Segment segment) {
+        return segment.getFile().resolveSibling("segment-" + segment.getIndex() + ".json");
+    }
+
+    private static int get(final Future<Integer> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void deleteRecursively(final Path directory) {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    LOG.error("Failed to delete " + p, e);
+                }
+            });
+        } catch (IOException e) {
+            LOG.error("Failed to delete " + directory, e);
+        }
+    }
+
+    /**
+     * Segments being analyzed. The first one uses the caller's slot, any further one a borrowed slot.
+     */
+    private final class Slots {
+
+        private int running;
+
+        /**
+         * Waits for a slot.
+         *
+         * @return true, if the slot was borrowed from the pool
+         */
+        synchronized boolean acquire() throws InterruptedException {
+            while (true) {
+                if (running == 0) {
+                    running++;
+                    return false;
+                }
+                if (running < parallelism && pool.tryBorrowSlot()) {
+                    running++;
+                    return true;
+                }
+                wait(SLOT_POLL_MILLIS);
+            }
+        }
+
+        synchronized void release(final boolean borrowed) {
+            running--;
+            if (borrowed) pool.returnSlot();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Runs the extractor on a single segment.
+     */
+    interface SegmentAnalyzer {
+
+        /**
+         * @param input segment audio file
+         * @param output JSON output file
+         * @param lengthMillis segment length
+         * @return exit code
+         */
+        int analyze(Path input, Path output, long lengthMillis) throws IOException, InterruptedException;
+    }
+}
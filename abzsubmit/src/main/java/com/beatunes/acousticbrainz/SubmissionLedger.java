@@ -0,0 +1,207 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Persistent record of the recordings (MBIDs) we have already submitted, per extractor build.
+ * The same recording often appears several times in a library (compilations, remasters,
+ * duplicate rips). Checking the ledger before extracting avoids running the extractor
+ * for each of them. Recordings are {@link #claim(String, String) claimed} while being
+ * extracted and uploaded, so that concurrent jobs don't extract the same recording twice.
+ * A recording is only {@link #record(String, String) recorded} once its results were uploaded
+ * or archived.
+ * <p>
+ * The ledger file is append-only, one line per submission: MBID, extractor build SHA and
+ * the submission time. A torn last line is cut off before appending.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class SubmissionLedger {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubmissionLedger.class);
+
+    private final Path file;
+    // UUIDs take less memory than strings, which matters for large libraries
+    private final Map<String, Set<UUID>> submitted = new HashMap<>();
+    private final Set<String> claimed = new HashSet<>();
+    // claims that stand for the same submission, see link()
+    private final Map<String, String> links = new HashMap<>();
+    private Writer writer;
+    private boolean loaded;
+
+    /**
+     * @param file ledger file
+     */
+    SubmissionLedger(final Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Claims a recording for extraction, unless it was already submitted with the given
+     * extractor build or is claimed by another job.
+     *
+     * @param mbid MBID
+     * @param buildSha extractor build SHA
+     * @return true, if the caller should extract the recording and then {@link #record} or {@link #release} it
+     */
+    synchronized boolean claim(final String mbid, final String buildSha) {
+        load();
+        final UUID uuid = toUUID(mbid);
+        if (uuid != null && contains(uuid, buildSha)) {
+            SubmitMetrics.increment("ledger.hit");
+            return false;
+        }
+        if (!claimed.add(toKey(mbid, buildSha))) {
+            SubmitMetrics.increment("ledger.claimed");
+            return false;
+        }
+        SubmitMetrics.increment("ledger.miss");
+        return true;
+    }
+
+    /**
+     * The extractor output of a claimed recording may name a different MBID, e.g. because the file's tags
+     * differ from what we looked up. This claims the found MBID as well and links both claims, so that
+     * recording or releasing one of them also records or releases the other.
+     *
+     * @param claimedMbid MBID the caller has claimed
+     * @param foundMbid MBID found in the extractor output
+     * @param buildSha extractor build SHA
+     * @return false, if the found recording was already submitted or is claimed by another job.
+     * The original claim is still held in this case.
+     */
+    synchronized boolean link(final String claimedMbid, final String foundMbid, final String buildSha) {
+        if (claimedMbid.equalsIgnoreCase(foundMbid)) return true;
+        if (!claim(foundMbid, buildSha)) return false;
+        links.put(toKey(claimedMbid, buildSha), foundMbid);
+        links.put(toKey(foundMbid, buildSha), claimedMbid);
+        return true;
+    }
+
+    /**
+     * Gives up a claim and any claim linked to it without recording a submission,
+     * e.g. because extraction or upload failed.
+     *
+     * @param mbid MBID
+     * @param buildSha extractor build SHA
+     */
+    synchronized void release(final String mbid, final String buildSha) {
+        claimed.remove(toKey(mbid, buildSha));
+        final String linked = unlink(mbid, buildSha);
+        if (linked != null) claimed.remove(toKey(linked, buildSha));
+    }
+
+    /**
+     * Records a submission, and the recording linked to it, and releases the claims for them.
+     *
+     * @param mbid MBID
+     * @param buildSha extractor build SHA
+     */
+    synchronized void record(final String mbid, final String buildSha) {
+        final String linked = unlink(mbid, buildSha);
+        add(mbid, buildSha);
+        if (linked != null) add(linked, buildSha);
+    }
+
+    private String unlink(final String mbid, final String buildSha) {
+        final String linked = links.remove(toKey(mbid, buildSha));
+        if (linked != null) links.remove(toKey(linked, buildSha));
+        return linked;
+    }
+
+    private void add(final String mbid, final String buildSha) {
+        load();
+        claimed.remove(toKey(mbid, buildSha));
+        final UUID uuid = toUUID(mbid);
+        if (uuid == null || !submitted.computeIfAbsent(buildSha, k -> new HashSet<>()).add(uuid)) return;
+        try {
+            if (writer == null) {
+                Files.createDirectories(file.getParent());
+                AppendOnlyFiles.cutOffTornLine(file);
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(uuid + "\t" + buildSha + "\t" + System.currentTimeMillis() + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            LOG.error("Failed to write submission ledger " + file, e);
+        }
+    }
+
+    /**
+     * @param mbid MBID
+     * @param buildSha extractor build SHA
+     * @return true, if the recording was submitted with the given extractor build
+     */
+    synchronized boolean contains(final String mbid, final String buildSha) {
+        load();
+        final UUID uuid = toUUID(mbid);
+        return uuid != null && contains(uuid, buildSha);
+    }
+
+    private boolean contains(final UUID uuid, final String buildSha) {
+        final Set<UUID> uuids = submitted.get(buildSha);
+        return uuids != null && uuids.contains(uuid);
+    }
+
+    synchronized void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOG.error("Failed to close submission ledger " + file, e);
+        }
+        writer = null;
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        int count = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                // ignore broken lines, e.g. a torn last line
+                if (fields.length != 3) continue;
+                final UUID uuid = toUUID(fields[0]);
+                if (uuid == null) continue;
+                if (submitted.computeIfAbsent(fields[1], k -> new HashSet<>()).add(uuid)) count++;
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            LOG.error("Failed to read submission ledger " + file, e);
+            return;
+        }
+        if (LOG.isDebugEnabled()) LOG.debug("Loaded " + count + " submitted recordings from ledger.");
+    }
+
+    private static String toKey(final String mbid, final String buildSha) {
+        return mbid.toLowerCase() + "/" + buildSha;
+    }
+
+    private static UUID toUUID(final String mbid) {
+        try {
+            return UUID.fromString(mbid);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.tagtraum.core.metric.Metric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named counters and per-stage latency histograms for the submission pipeline,
+ * e.g. the counter {@code cache.hit} or the stage {@code extract}.
+ * Every processed song is also counted via {@link Metric}.
+ * Once {@link #startReporting()} was called, a summary is logged periodically.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class SubmitMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubmitMetrics.class);
+    private static final Metric METRIC = Metric.getMetric(AcousticBrainzSubmit.class);
+    private static final String SONGS = "songs";
+    private static final ConcurrentMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyHistogram> STAGES = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService reporter;
+    private static long lastReportSongs;
+    private static long lastReportTime = System.currentTimeMillis();
+
+    private SubmitMetrics() {
+    }
+
+    /**
+     * Increments a counter by one.
+     *
+     * @param name counter name
+     */
+    static void increment(final String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds to a counter.
+     *
+     * @param name counter name
+     * @param delta value to add
+     */
+    static void add(final String name, final long delta) {
+        COUNTERS.computeIfAbsent(name, n -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Current value of a counter.
+     *
+     * @param name counter name
+     * @return value or 0, if the counter has never been touched
+     */
+    static long get(final String name) {
+        final LongAdder adder = COUNTERS.get(name);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * Ratio of two counters, e.g. hits to hits plus misses.
+     *
+     * @param hits name of the hit counter
+     * @param misses name of the miss counter
+     * @return ratio between 0 and 1, or 0 if both counters are 0
+     */
+    static double ratio(final String hits, final String misses) {
+        final long h = get(hits);
+        final long total = h + get(misses);
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Snapshot of all counters, sorted by name.
+     *
+     * @return counter values
+     */
+    static Map<String, Long> snapshot() {
+        final Map<String, Long> snapshot = new TreeMap<>();
+        COUNTERS.forEach((name, adder) -> snapshot.put(name, adder.sum()));
+        return snapshot;
+    }
+
+    /**
+     * Starts timing a pipeline stage. Use with try-with-resources.
+     *
+     * @param stage stage name, e.g. {@code extract}
+     * @return running timer
+     */
+    static Timer time(final String stage) {
+        return new Timer(stage, System.nanoTime());
+    }
+
+    /**
+     * Records the duration of a pipeline stage.
+     *
+     * @param stage stage name
+     * @param micros duration in microseconds
+     */
+    static void record(final String stage, final long micros) {
+        STAGES.computeIfAbsent(stage, s -> new LatencyHistogram()).record(micros);
+    }
+
+    /**
+     * Counts a song that went through the pipeline, no matter with what outcome.
+     */
+    static void songProcessed() {
+        increment(SONGS);
+        // usage counter
+        METRIC.incCount();
+    }
+
+    /**
+     * Starts logging a summary every {@code abzsubmit.metrics.interval} seconds (default 300).
+     */
+    static synchronized void startReporting() {
+        if (reporter != null) return;
+        final long interval = Long.getLong("abzsubmit.metrics.interval", 300L);
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz Metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(SubmitMetrics::report, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops periodic logging.
+     */
+    static synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Logs throughput, the slowest stage, per-stage percentiles and all counters.
+     */
+    static synchronized void report() {
+        if (!LOG.isInfoEnabled()) return;
+        final long now = System.currentTimeMillis();
+        final long songs = get(SONGS);
+        final double minutes = Math.max(1, now - lastReportTime) / 60000.0;
+        final double songsPerMinute = (songs - lastReportSongs) / minutes;
+        lastReportSongs = songs;
+        lastReportTime = now;
+        if (songs == 0 && STAGES.isEmpty()) return;
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("AcousticBrainz submit: %d songs total, %.1f songs/min since last report.", songs, songsPerMinute));
+        String slowest = null;
+        long slowestSum = -1;
+        for (final Map.Entry<String, LatencyHistogram> e : new TreeMap<>(STAGES).entrySet()) {
+            final LatencyHistogram h = e.getValue();
+            sb.append(String.format("%n  %-10s n=%d p50=%dms p95=%dms p99=%dms max=%dms total=%ds",
+                e.getKey(), h.getCount(), h.getPercentile(50) / 1000, h.getPercentile(95) / 1000,
+                h.getPercentile(99) / 1000, h.getMax() / 1000, h.getSum() / 1000000));
+            if (h.getSum() > slowestSum) {
+                slowestSum = h.getSum();
+                slowest = e.getKey();
+            }
+        }
+        if (slowest != null) sb.append(String.format("%n  Most time is spent in stage '%s'.", slowest));
+        sb.append(String.format("%n  Hit ratios: extractor cache=%.2f, submission counts=%.2f, MBID lookups=%.2f, embedded tags=%.2f",
+            ratio("cache.hit", "cache.miss"), ratio("precheck.hit", "precheck.miss"), ratio("mbid.lookup.hit", "mbid.lookup.miss"),
+            ratio("tags.hit", "tags.miss")));
+        sb.append(String.format("%n  Counters: %s", snapshot()));
+        LOG.info(sb.toString());
+    }
+
+    /**
+     * Measures a stage, until closed.
+     */
+    static final class Timer implements AutoCloseable {
+
+        private final String stage;
+        private final long start;
+
+        private Timer(final String stage, final long start) {
+            this.stage = stage;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            record(stage, (System.nanoTime() - start) / 1000L);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ArchiveTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class ArchiveTest {
+
+    private static final String MBID = "2b8a3e56-4d20-4b52-a2b3-16e0fe5d6b0c";
+    private static final String OTHER_MBID = "b1a9c0e9-d987-4042-ae91-78d6a3267d69";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppend() throws Exception {
+        final Path directory = folder.getRoot().toPath().resolve("archive");
+        final Archive archive = new Archive(directory);
+        archive.append(MBID, 1L, json("{\"first\":1}"));
+        archive.append(OTHER_MBID, 2L, json("{\"second\":2}"));
+        archive.close();
+
+        final List<Path> segments = Archive.listSegments(directory);
+        assertEquals(1, segments.size());
+        final List<Archive.Record> records = Archive.readIndex(segments.get(0));
+        assertEquals(2, records.size());
+        assertEquals(MBID, records.get(0).getMbid());
+        assertEquals(1L, records.get(0).getSongId());
+        assertEquals("{\"first\":1}", read(records.get(0)));
+        assertEquals(OTHER_MBID, records.get(1).getMbid());
+        assertEquals("{\"second\":2}", read(records.get(1)));
+    }
+
+    @Test
+    public void testTruncatedRecordIsCutOff() throws Exception {
+        final Path directory = folder.getRoot().toPath().resolve("archive");
+        final Archive archive = new Archive(directory);
+        archive.append(MBID, 1L, json("{\"first\":1}"));
+        archive.close();
+        final Path segment = Archive.listSegments(directory).get(0);
+        final long size = Files.size(segment);
+        // crashed while writing the second record and its index line
+        Files.write(segment, "ABZ1b1a9c0e9-d987".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+        Files.write(Archive.toIndex(segment), (OTHER_MBID + "\t12").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertEquals(1, Archive.readIndex(segment).size());
+
+        final Archive reopened = new Archive(directory);
+        final Archive.Record record = reopened.append(OTHER_MBID, 2L, json("{\"second\":2}"));
+        reopened.close();
+        // the new record's header starts where the last complete record ended
+        assertEquals(size + 4 + 36 + Long.BYTES, record.getOffset());
+        final List<Archive.Record> records = Archive.readIndex(segment);
+        assertEquals(2, records.size());
+        assertEquals("{\"first\":1}", read(records.get(0)));
+        assertEquals("{\"second\":2}", read(records.get(1)));
+        assertEquals(records.get(1).getOffset() + records.get(1).getLength(), Files.size(segment));
+    }
+
+    @Test
+    public void testNewSegmentWhenFull() throws Exception {
+        final Path directory = folder.getRoot().toPath().resolve("archive");
+        final Archive archive = new Archive(directory, 1L);
+        archive.append(MBID, 1L, json("{\"first\":1}"));
+        archive.append(OTHER_MBID, 2L, json("{\"second\":2}"));
+        archive.close();
+        final List<Path> segments = Archive.listSegments(directory);
+        assertEquals(2, segments.size());
+        assertEquals(MBID, Archive.readIndex(segments.get(0)).get(0).getMbid());
+        assertEquals(OTHER_MBID, Archive.readIndex(segments.get(1)).get(0).getMbid());
+    }
+
+    private Path json(final String content) throws IOException {
+        final Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static String read(final Archive.Record record) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (final FileChannel channel = FileChannel.open(record.getSegment(), StandardOpenOption.READ)) {
+            record.copyTo(channel, compressed);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * AudioProbeTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class AudioProbeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testIdentifyKnownContainers() {
+        assertEquals("ID3", AudioProbe.identify(header("ID3\u0004\u0000")));
+        assertEquals("MPEG", AudioProbe.identify(header("\u00ff\u00fb\u0090d")));
+        assertEquals("FLAC", AudioProbe.identify(header("fLaC")));
+        assertEquals("Ogg", AudioProbe.identify(header("OggS")));
+        assertEquals("WAVE", AudioProbe.identify(header("RIFF$\u0000\u0000\u0000WAVE")));
+        assertEquals("AIFF", AudioProbe.identify(header("FORM\u0000\u0000\u0000$AIFF")));
+        assertEquals("AIFF", AudioProbe.identify(header("FORM\u0000\u0000\u0000$AIFC")));
+        assertEquals("MP4", AudioProbe.identify(header("\u0000\u0000\u0000 ftypM4A ")));
+        assertEquals("APE", AudioProbe.identify(header("MAC ")));
+        assertEquals("WavPack", AudioProbe.identify(header("wvpk")));
+        assertEquals("ASF", AudioProbe.identify(header("0&\u00b2u")));
+    }
+
+    @Test
+    public void testIdentifyUnknownContainers() {
+        // MP3 with leading padding, Musepack, CAF, DSF, TTA, RIFF without WAVE
+        assertNull(AudioProbe.identify(header("\u0000\u0000\u0000\u0000\u00ff\u00fb")));
+        assertNull(AudioProbe.identify(header("MPCK")));
+        assertNull(AudioProbe.identify(header("MP+\u0007")));
+        assertNull(AudioProbe.identify(header("caff")));
+        assertNull(AudioProbe.identify(header("DSD \u001c")));
+        assertNull(AudioProbe.identify(header("TTA1")));
+        assertNull(AudioProbe.identify(header("RIFF$\u0000\u0000\u0000AVI ")));
+    }
+
+    @Test
+    public void testValidWave() throws IOException {
+        AudioProbe.check(write("valid.wav", createWave()));
+    }
+
+    @Test
+    public void testStreamedWave() throws IOException {
+        final byte[] wave = createWave();
+        // streaming writers may not know the size
+        Arrays.fill(wave, 4, 8, (byte) 0);
+        AudioProbe.check(write("streamed.wav", wave));
+    }
+
+    @Test(expected = AudioProbe.RejectedFileException.class)
+    public void testTruncatedWave() throws IOException {
+        final byte[] wave = createWave();
+        AudioProbe.check(write("truncated.wav", Arrays.copyOf(wave, wave.length / 2)));
+    }
+
+    @Test(expected = AudioProbe.RejectedFileException.class)
+    public void testEmptyFile() throws IOException {
+        AudioProbe.check(write("empty.mp3", new byte[5]));
+    }
+
+    @Test
+    public void testUnknownHeaderIsSkipped() throws IOException {
+        final byte[] padded = new byte[4096];
+        padded[1024] = (byte) 0xFF;
+        padded[1025] = (byte) 0xFB;
+        AudioProbe.check(write("padded.mp3", padded));
+        AudioProbe.check(write("track.mpc", concat(header("MPCK"), new byte[4096])));
+        AudioProbe.check(write("track.tta", concat(header("TTA1"), new byte[4096])));
+    }
+
+    @Test
+    public void testUnreadableKnownContainerIsSkipped() throws IOException {
+        // no service provider can open these, which is no evidence that the extractor cannot
+        AudioProbe.check(write("track.flac", concat(header("fLaC"), new byte[4096])));
+        AudioProbe.check(write("broken.wav", concat(header("RIFF\u0000\u0000\u0000\u0000WAVE"), "junk".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    private Path write(final String name, final byte[] bytes) throws IOException {
+        final Path file = folder.getRoot().toPath().resolve(name);
+        Files.write(file, bytes);
+        return file;
+    }
+
+    /**
+     * One second of 16 bit stereo silence.
+     */
+    private static byte[] createWave() throws IOException {
+        final AudioFormat format = new AudioFormat(44100f, 16, 2, true, false);
+        final byte[] pcm = new byte[44100 * 4];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), format, 44100), AudioFileFormat.Type.WAVE, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] header(final String ascii) {
+        return Arrays.copyOf(ascii.getBytes(StandardCharsets.ISO_8859_1), 12);
+    }
+
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] c = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BatchJournalTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class BatchJournalTest {
+
+    private static final String SHA = "cead25079874084f62182a551b7393616cd33d87";
+    private static final String OTHER_SHA = "2d9f1f26377add8aeb1075a9c2973f962c4f09fd";
+    private static final String MBID = "2b8a3e56-4d20-4b52-a2b3-16e0fe5d6b0c";
+    private static final long LAST_MODIFIED = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplay() throws Exception {
+        final Path file = journalFile();
+        final BatchJournal journal = new BatchJournal(file, 1000, 60000L);
+        journal.extracted(1L, LAST_MODIFIED, MBID, SHA);
+        journal.extracted(2L, LAST_MODIFIED, MBID, SHA);
+        journal.uploaded(2L);
+        journal.rejected(3L, SHA, LAST_MODIFIED, "Not an audio file");
+        // an upload that was refused keeps the extraction's build and file state
+        journal.extracted(4L, LAST_MODIFIED, MBID, SHA);
+        journal.rejected(4L, null, null, "400: Bad Request");
+        journal.close();
+
+        final BatchJournal replayed = new BatchJournal(file, 1000, 60000L);
+        for (long songId = 1; songId <= 4; songId++) {
+            assertTrue("Song " + songId, replayed.isDone(songId, SHA, LAST_MODIFIED));
+            // a different extractor or a changed file means the track has to be analyzed again
+            assertFalse("Song " + songId, replayed.isDone(songId, OTHER_SHA, LAST_MODIFIED));
+            assertFalse("Song " + songId, replayed.isDone(songId, SHA, LAST_MODIFIED + 1));
+        }
+        assertFalse(replayed.isDone(5L, SHA, LAST_MODIFIED));
+        replayed.close();
+    }
+
+    @Test
+    public void testFailedIsTriedAgain() throws Exception {
+        final Path file = journalFile();
+        final BatchJournal journal = new BatchJournal(file, 1000, 60000L);
+        journal.failed(1L, SHA, LAST_MODIFIED, "Exit code 1");
+        // e.g. the extractor crashed
+        journal.extracted(2L, LAST_MODIFIED, MBID, SHA);
+        journal.failed(2L, null, null, "Exit code 139");
+        journal.close();
+
+        final BatchJournal replayed = new BatchJournal(file, 1000, 60000L);
+        assertFalse(replayed.isDone(1L, SHA, LAST_MODIFIED));
+        assertFalse(replayed.isDone(2L, SHA, LAST_MODIFIED));
+        replayed.extracted(1L, LAST_MODIFIED, MBID, SHA);
+        assertTrue(replayed.isDone(1L, SHA, LAST_MODIFIED));
+        replayed.close();
+    }
+
+    @Test
+    public void testLaterLinesOverride() throws Exception {
+        final Path file = journalFile();
+        final BatchJournal journal = new BatchJournal(file, 1, 60000L);
+        journal.extracted(1L, LAST_MODIFIED, MBID, OTHER_SHA);
+        journal.extracted(1L, LAST_MODIFIED, MBID, SHA);
+        journal.close();
+        final BatchJournal replayed = new BatchJournal(file, 1, 60000L);
+        assertTrue(replayed.isDone(1L, SHA, LAST_MODIFIED));
+        assertFalse(replayed.isDone(1L, OTHER_SHA, LAST_MODIFIED));
+        replayed.close();
+    }
+
+    @Test
+    public void testUploadBeforeExtracted() throws Exception {
+        final Path file = journalFile();
+        final BatchJournal journal = new BatchJournal(file, 1000, 60000L);
+        journal.extracted(1L, LAST_MODIFIED, MBID, SHA);
+        journal.uploaded(1L);
+        // the outbox was faster than the job that enqueued the results
+        journal.extracted(1L, LAST_MODIFIED, MBID, SHA);
+        journal.close();
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1).startsWith("1\tUPLOADED\t" + MBID + "\t" + SHA + "\t" + LAST_MODIFIED + "\t"));
+    }
+
+    @Test
+    public void testTornLastLine() throws Exception {
+        final Path file = journalFile();
+        final BatchJournal journal = new BatchJournal(file, 1000, 60000L);
+        journal.extracted(1L, LAST_MODIFIED, MBID, SHA);
+        journal.close();
+        // crashed while writing the second line
+        Files.write(file, ("2\tEXTRACTED\t" + MBID + "\t" + SHA).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        final BatchJournal replayed = new BatchJournal(file, 1000, 60000L);
+        assertTrue(replayed.isDone(1L, SHA, LAST_MODIFIED));
+        assertFalse(replayed.isDone(2L, SHA, LAST_MODIFIED));
+        // appending must not glue the new line to the torn one
+        replayed.extracted(3L, LAST_MODIFIED, MBID, SHA);
+        replayed.close();
+        final BatchJournal again = new BatchJournal(file, 1000, 60000L);
+        assertTrue(again.isDone(3L, SHA, LAST_MODIFIED));
+        again.close();
+    }
+
+    private Path journalFile() {
+        return folder.getRoot().toPath().resolve("journal.tsv");
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * DescriptorAggregatorTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class DescriptorAggregatorTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testAggregate() throws ParseException {
+        final JSONObject first = parse("{" +
+            "\"lowlevel\": {\"loudness\": {\"mean\": 1.0, \"var\": 1.0, \"min\": 0.5, \"max\": 2.0}," +
+            " \"bands\": {\"mean\": [1.0, 2.0], \"var\": [0.0, 0.0]}}," +
+            "\"rhythm\": {\"beats_count\": 3, \"beats_position\": [0.5, 1.0, 1.5], \"bpm\": 120.0}," +
+            "\"tonal\": {\"key_key\": \"C\"}," +
+            "\"metadata\": {\"version\": {\"essentia\": \"2.1\"}, \"audio_properties\": {\"length\": 600.0, \"md5_encoded\": \"a\"}}}");
+        final JSONObject second = parse("{" +
+            "\"lowlevel\": {\"loudness\": {\"mean\": 3.0, \"var\": 1.0, \"min\": 0.1, \"max\": 4.0}," +
+            " \"bands\": {\"mean\": [3.0, 2.0], \"var\": [0.0, 0.0]}}," +
+            "\"rhythm\": {\"beats_count\": 2, \"beats_position\": [0.25, 0.75], \"bpm\": 120.0}," +
+            "\"tonal\": {\"key_key\": \"G\"}," +
+            "\"metadata\": {\"version\": {\"essentia\": \"2.1\"}, \"audio_properties\": {\"length\": 200.0, \"md5_encoded\": \"b\"}}}");
+        final JSONObject aggregated = DescriptorAggregator.aggregate(Arrays.asList(first, second),
+            new double[] {600.0, 200.0}, new double[] {0.0, 600.0});
+
+        final JSONObject loudness = get(aggregated, "lowlevel", "loudness");
+        // weighted by length: 0.75 * 1 + 0.25 * 3
+        assertEquals(1.5, number(loudness, "mean"), DELTA);
+        // pooled: 0.75 * (1 + 1) + 0.25 * (1 + 9) - 1.5^2
+        assertEquals(1.75, number(loudness, "var"), DELTA);
+        assertEquals(0.1, number(loudness, "min"), DELTA);
+        assertEquals(4.0, number(loudness, "max"), DELTA);
+
+        final JSONObject bands = get(aggregated, "lowlevel", "bands");
+        assertEquals(1.5, ((Number) ((JSONArray) bands.get("mean")).get(0)).doubleValue(), DELTA);
+        assertEquals(2.0, ((Number) ((JSONArray) bands.get("mean")).get(1)).doubleValue(), DELTA);
+        assertEquals(0.75, ((Number) ((JSONArray) bands.get("var")).get(0)).doubleValue(), DELTA);
+        assertEquals(0.0, ((Number) ((JSONArray) bands.get("var")).get(1)).doubleValue(), DELTA);
+
+        final JSONObject rhythm = (JSONObject) aggregated.get("rhythm");
+        assertEquals(5L, ((Number) rhythm.get("beats_count")).longValue());
+        assertEquals(Arrays.asList(0.5, 1.0, 1.5, 600.25, 600.75), rhythm.get("beats_position"));
+        assertEquals(120.0, number(rhythm, "bpm"), DELTA);
+        assertEquals("C", ((JSONObject) aggregated.get("tonal")).get("key_key"));
+
+        final JSONObject audioProperties = get(aggregated, "metadata", "audio_properties");
+        assertEquals(800.0, number(audioProperties, "length"), DELTA);
+        assertFalse(audioProperties.containsKey("md5_encoded"));
+        final JSONObject version = get(aggregated, "metadata", "version");
+        assertEquals("2.1", version.get("essentia"));
+        assertEquals(Boolean.TRUE, version.get("segmented"));
+    }
+
+    @Test
+    public void testSegmentedWithoutVersion() throws ParseException {
+        final JSONObject segment = parse("{\"metadata\": {\"tags\": {}}}");
+        final JSONObject aggregated = DescriptorAggregator.aggregate(Arrays.asList(segment, segment),
+            new double[] {600.0, 600.0}, new double[] {0.0, 600.0});
+        assertEquals(Boolean.TRUE, get(aggregated, "metadata", "version").get("segmented"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMismatchedLengths() throws ParseException {
+        DescriptorAggregator.aggregate(Arrays.asList(parse("{}"), parse("{}")), new double[] {1.0}, new double[] {0.0});
+    }
+
+    private static JSONObject parse(final String json) throws ParseException {
+        return (JSONObject) new JSONParser().parse(json);
+    }
+
+    private static JSONObject get(final JSONObject document, final String... path) {
+        JSONObject object = document;
+        for (final String key : path) object = (JSONObject) object.get(key);
+        return object;
+    }
+
+    private static double number(final JSONObject object, final String key) {
+        return ((Number) object.get(key)).doubleValue();
+    }
+}
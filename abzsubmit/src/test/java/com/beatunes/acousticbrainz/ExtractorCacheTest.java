@@ -0,0 +1,100 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ExtractorCacheTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class ExtractorCacheTest {
+
+    private static final String MBID = "2b8a3e56-4d20-4b52-a2b3-16e0fe5d6b0c";
+    private static final String SHA = "cead25079874084f62182a551b7393616cd33d87";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testKey() throws Exception {
+        final Path cacheDirectory = folder.newFolder("cache").toPath();
+        final Path audioFile = folder.newFile("track.mp3").toPath();
+        Files.write(audioFile, "audio".getBytes(StandardCharsets.US_ASCII));
+        final ExtractorCache cache = new ExtractorCache(cacheDirectory, 1024 * 1024);
+        final String key = cache.createKey(audioFile, MBID, SHA);
+        assertEquals(key, cache.createKey(audioFile, MBID, SHA));
+        assertNotEquals(key, cache.createKey(audioFile, MBID, "2d9f1f26377add8aeb1075a9c2973f962c4f09fd"));
+        // identical audio elsewhere
+        final Path copy = folder.newFile("copy.mp3").toPath();
+        Files.write(copy, "audio".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(key, cache.createKey(copy, MBID, SHA));
+        cache.close();
+    }
+
+    @Test
+    public void testDigestIsRemembered() throws Exception {
+        final Path cacheDirectory = folder.newFolder("cache").toPath();
+        final Path audioFile = folder.newFile("track.mp3").toPath();
+        Files.write(audioFile, "audio".getBytes(StandardCharsets.US_ASCII));
+        final ExtractorCache cache = new ExtractorCache(cacheDirectory, 1024 * 1024);
+        final String key = cache.createKey(audioFile, MBID, SHA);
+        cache.close();
+        final List<String> lines = Files.readAllLines(cacheDirectory.resolve("digests.tsv"), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith(audioFile.toAbsolutePath().toString()));
+
+        // a new session uses the remembered digest
+        final ExtractorCache reloaded = new ExtractorCache(cacheDirectory, 1024 * 1024);
+        assertEquals(key, reloaded.createKey(audioFile, MBID, SHA));
+        reloaded.close();
+        assertEquals(1, Files.readAllLines(cacheDirectory.resolve("digests.tsv"), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testTornDigestLine() throws Exception {
+        final Path cacheDirectory = folder.newFolder("cache").toPath();
+        final Path audioFile = folder.newFile("track.mp3").toPath();
+        Files.write(audioFile, "audio".getBytes(StandardCharsets.US_ASCII));
+        // crashed while writing the path
+        Files.write(cacheDirectory.resolve("digests.tsv"), "(dev=1,ino=2)\t1500000000000\t5\tabc\t/mus".getBytes(StandardCharsets.UTF_8));
+        final ExtractorCache cache = new ExtractorCache(cacheDirectory, 1024 * 1024);
+        cache.createKey(audioFile, MBID, SHA);
+        cache.close();
+        final List<String> lines = Files.readAllLines(cacheDirectory.resolve("digests.tsv"), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith("\t" + audioFile.toAbsolutePath()));
+    }
+
+    @Test
+    public void testChangedFileIsHashedAgain() throws Exception {
+        final Path cacheDirectory = folder.newFolder("cache").toPath();
+        final Path audioFile = folder.newFile("track.mp3").toPath();
+        Files.write(audioFile, "audio".getBytes(StandardCharsets.US_ASCII));
+        final ExtractorCache cache = new ExtractorCache(cacheDirectory, 1024 * 1024);
+        final String key = cache.createKey(audioFile, MBID, SHA);
+        // same size, different content and modification time
+        Files.write(audioFile, "AUDIO".getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(audioFile, FileTime.fromMillis(Files.getLastModifiedTime(audioFile).toMillis() + 2000));
+        final String changedKey = cache.createKey(audioFile, MBID, SHA);
+        assertNotEquals(key, changedKey);
+        cache.close();
+    }
+}
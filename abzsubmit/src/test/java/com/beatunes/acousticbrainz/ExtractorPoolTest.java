@@ -0,0 +1,151 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ExtractorPoolTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class ExtractorPoolTest {
+
+    @Test(timeout = 5000)
+    public void testSubmitReturnsOnceAdmitted() throws Exception {
+        final ExtractorPool pool = new ExtractorPool(2);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch running = new CountDownLatch(2);
+        final Runnable job = () -> {
+            running.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        // two running and two waiting jobs are admitted without waiting for any of them
+        for (int i = 0; i < 4; i++) pool.submit(job);
+        assertTrue(running.await(2, TimeUnit.SECONDS));
+        final Thread submitter = new Thread(() -> {
+            try {
+                pool.submit(job);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+        submitter.join(200);
+        // saturated
+        assertTrue(submitter.isAlive());
+        blocker.countDown();
+        submitter.join();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testShortestJobFirst() throws Exception {
+        final ExtractorPool pool = new ExtractorPool(1);
+        pool.setShortestJobFirst(true);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch blocker = block(pool);
+        // default aging is 0.05 ms per unit of cost, i.e. these deadlines are 50s apart
+        final Future<?> last = pool.submit(() -> order.add("long"), 1_000_000L);
+        pool.submit(() -> order.add("short"), 1_000L);
+        pool.submit(() -> order.add("medium"), 100_000L);
+        blocker.countDown();
+        last.get(5, TimeUnit.SECONDS);
+        assertEquals(order.toString(), "short", order.get(0));
+        assertEquals(order.toString(), "medium", order.get(1));
+        assertEquals(order.toString(), "long", order.get(2));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testAging() throws Exception {
+        final ExtractorPool pool = new ExtractorPool(1);
+        pool.setShortestJobFirst(true);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch blocker = block(pool);
+        // the expensive job's deadline is 5ms after its submission
+        pool.submit(() -> order.add("expensive"), 100L);
+        Thread.sleep(50);
+        // submitted later than the expensive job's deadline, so it has to wait despite being cheaper
+        final Future<?> cheap = pool.submit(() -> order.add("cheap"), 0L);
+        blocker.countDown();
+        cheap.get(5, TimeUnit.SECONDS);
+        assertEquals(order.toString(), "expensive", order.get(0));
+        assertEquals(order.toString(), "cheap", order.get(1));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testBorrowSlot() throws Exception {
+        final ExtractorPool pool = new ExtractorPool(2);
+        final CountDownLatch blocker = block(pool);
+        assertTrue(pool.tryBorrowSlot());
+        assertEquals(1, pool.getBorrowedCount());
+        // one slot is busy, the other borrowed
+        assertFalse(pool.tryBorrowSlot());
+        final CountDownLatch started = new CountDownLatch(1);
+        pool.submit(started::countDown);
+        assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+        pool.returnSlot();
+        assertEquals(0, pool.getBorrowedCount());
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        blocker.countDown();
+        pool.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void testCancelledJobFreesAdmission() throws Exception {
+        // one running and one waiting job
+        final ExtractorPool pool = new ExtractorPool(1);
+        final CountDownLatch blocker = block(pool);
+        final Future<?> waiting = pool.submit(() -> {});
+        assertTrue(waiting.cancel(true));
+        // would block, if the cancelled job still counted
+        final Future<?> next = pool.submit(() -> {});
+        blocker.countDown();
+        next.get();
+        pool.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReturnWithoutBorrow() {
+        new ExtractorPool(1).returnSlot();
+    }
+
+    /**
+     * Occupies one slot until the returned latch is counted down.
+     */
+    private static CountDownLatch block(final ExtractorPool pool) throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        pool.submit(() -> {
+            running.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        running.await();
+        return blocker;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Drives fake submissions through the submission pipeline against a {@link StandInServer}
+ * and reports throughput and tail latency. A stub extractor replaces Essentia: it writes
+ * low-level JSON of realistic size after a configurable delay. Everything after that
+ * (MBID scanning, coverage pre-check, outbox, upload with retries) is the real code.
+ * <p>
+ * Configured with system properties:
+ * <ul>
+ *     <li>{@code abzsubmit.harness.songs}: number of submissions (default 2000)</li>
+ *     <li>{@code abzsubmit.harness.concurrency}: parallel stub extractors (default: processors)</li>
+ *     <li>{@code abzsubmit.harness.extractMillis}: stub extractor run time (default 0)</li>
+ *     <li>{@code abzsubmit.harness.jsonKB}: size of the stub output (default 150)</li>
+ *     <li>{@code abzsubmit.harness.duplicates}: fraction of songs sharing an MBID with an earlier one (default 0)</li>
+ *     <li>{@code abzsubmit.harness.skipThreshold}: enables the coverage pre-check (default 0, off)</li>
+ *     <li>{@code abzsubmit.harness.backoff}: initial retry delay in ms (default 100)</li>
+ *     <li>{@code abzsubmit.harness.buildSha}: build SHA the stub extractor reports (default: a dummy SHA)</li>
+ *     <li>{@code abzsubmit.server}: use a running server instead of starting a stand-in</li>
+ *     <li>{@code abzsubmit.standin.*}: see {@link StandInServer#fromSystemProperties(int)}</li>
+ * </ul>
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class LoadHarness {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadHarness.class);
+    private static final String USER_AGENT = "abzsubmit-harness";
+    private static final String STUB_BUILD_SHA = "0000000000000000000000000000000000000000";
+
+    private final int songs;
+    private final int concurrency;
+    private final long extractMillis;
+    private final int jsonBytes;
+    private final double duplicates;
+    private final int skipThreshold;
+    private final long backoffMillis;
+    private final String buildSha;
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private final ConcurrentMap<Long, Long> startTimes = new ConcurrentHashMap<>();
+    private final LongAdder uploaded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private LoadHarness() {
+        this.songs = Integer.getInteger("abzsubmit.harness.songs", 2000);
+        this.concurrency = Integer.getInteger("abzsubmit.harness.concurrency", Runtime.getRuntime().availableProcessors());
+        this.extractMillis = Long.getLong("abzsubmit.harness.extractMillis", 0L);
+        this.jsonBytes = Integer.getInteger("abzsubmit.harness.jsonKB", 150) * 1024;
+        this.duplicates = Double.parseDouble(System.getProperty("abzsubmit.harness.duplicates", "0"));
+        this.skipThreshold = Integer.getInteger("abzsubmit.harness.skipThreshold", 0);
+        this.backoffMillis = Long.getLong("abzsubmit.harness.backoff", 100L);
+        this.buildSha = System.getProperty("abzsubmit.harness.buildSha", STUB_BUILD_SHA);
+    }
+
+    public static void main(final String[] args) throws Exception {
+        new LoadHarness().run();
+    }
+
+    private void run() throws Exception {
+        final String configuredServer = System.getProperty("abzsubmit.server");
+        final StandInServer standIn = configuredServer == null ? StandInServer.fromSystemProperties(0) : null;
+        if (standIn != null) standIn.start();
+        final AcousticBrainzClient client = new AcousticBrainzClient(
+            standIn != null ? standIn.getBaseURL() : configuredServer, USER_AGENT);
+        final CoverageChecker coverage = new CoverageChecker(client);
+        final Path directory = Files.createTempDirectory("abzsubmit-harness");
+        final Outbox outbox = new Outbox(directory.resolve("outbox"), client, backoffMillis);
+        final ExtractorPool pool = new ExtractorPool(concurrency);
+        final CountDownLatch done = new CountDownLatch(songs);
+        outbox.setListener(new Outbox.Listener() {
+            @Override
+            public void uploaded(final Outbox.Entry entry) {
+                uploaded.increment();
+                finish(entry.getSongId(), done);
+            }
+
+            @Override
+            public void failed(final Outbox.Entry entry, final String reason, final boolean permanent) {
+                failed.increment();
+                finish(entry.getSongId(), done);
+            }
+        });
+        outbox.start();
+
+        final String[] mbids = new String[songs];
+        for (int i=0; i<songs; i++) {
+            mbids[i] = i > 0 && ThreadLocalRandom.current().nextDouble() < duplicates
+                ? mbids[ThreadLocalRandom.current().nextInt(i)]
+                : UUID.randomUUID().toString();
+        }
+        if (LOG.isInfoEnabled()) LOG.info("Submitting " + songs + " fake songs with " + concurrency + " stub extractor(s)...");
+        final long start = System.nanoTime();
+        try {
+            for (int i=0; i<songs; i++) {
+                final long songId = i;
+                final String mbid = mbids[i];
+                if (skipThreshold > 0) coverage.register(mbid);
+                startTimes.put(songId, System.nanoTime());
+                pool.submit(() -> process(songId, mbid, directory, coverage, outbox, done));
+            }
+            done.await();
+            final long elapsedNanos = System.nanoTime() - start;
+            report(elapsedNanos, standIn);
+        } finally {
+            pool.shutdown();
+            outbox.shutdown();
+            client.shutdown();
+            if (standIn != null) standIn.stop();
+            deleteRecursively(directory);
+        }
+    }
+
+    private void process(final long songId, final String mbid, final Path directory,
+                         final CoverageChecker coverage, final Outbox outbox, final CountDownLatch done) {
+        Path outputFile = null;
+        try {
+            if (skipThreshold > 0) {
+                try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("precheck")) {
+                    if (coverage.getCount(mbid) >= skipThreshold) {
+                        skipped.increment();
+                        finish(songId, done);
+                        return;
+                    }
+                }
+            }
+            outputFile = Files.createTempFile(directory, "stub", ".json");
+            try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("extract")) {
+                runStubExtractor(mbid, outputFile);
+            }
+            final String usedMBID;
+            try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("parse");
+                 final Reader reader = Files.newBufferedReader(outputFile, StandardCharsets.UTF_8)) {
+                usedMBID = MBIDScanner.scan(reader);
+            }
+            try (final SubmitMetrics.Timer ignored = SubmitMetrics.time("enqueue")) {
+                outbox.enqueue(usedMBID, songId, "Fake song " + songId, outputFile);
+            }
+        } catch (Exception e) {
+            LOG.error("Failed to process fake song " + songId, e);
+            errors.increment();
+            finish(songId, done);
+        } finally {
+            SubmitMetrics.songProcessed();
+            if (outputFile != null) {
+                try {
+                    Files.deleteIfExists(outputFile);
+                } catch (IOException e) {
+                    LOG.error(e.toString(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes something that looks like extractor output to the given file.
+     */
+    private void runStubExtractor(final String mbid, final Path outputFile) throws IOException, InterruptedException {
+        if (extractMillis > 0) Thread.sleep(extractMillis);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        try (final Writer writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+            writer.write("{\"lowlevel\": {\"mfcc\": {\"mean\": [");
+            int written = 0;
+            while (written < jsonBytes) {
+                if (written > 0) writer.write(", ");
+                final String value = Float.toString(random.nextFloat() * 1000f - 500f);
+                writer.write(value);
+                written += value.length() + 2;
+            }
+            writer.write("]}}, \"metadata\": {\"version\": {\"essentia_build_sha\": \"" + buildSha
+                + "\"}, \"tags\": {\"musicbrainz_trackid\": [\"" + mbid + "\"]}}}");
+        }
+    }
+
+    private void finish(final long songId, final CountDownLatch done) {
+        final Long start = startTimes.remove(songId);
+        if (start != null) {
+            endToEnd.record((System.nanoTime() - start) / 1000L);
+            done.countDown();
+        }
+    }
+
+    private void report(final long elapsedNanos, final StandInServer standIn) {
+        final double seconds = elapsedNanos / 1e9;
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Load test finished: %d songs in %.1fs (%.1f songs/s).", songs, seconds, songs / seconds));
+        sb.append(String.format("%n  uploaded=%d failed=%d skipped=%d errors=%d",
+            uploaded.sum(), failed.sum(), skipped.sum(), errors.sum()));
+        sb.append(String.format("%n  end-to-end p50=%dms p95=%dms p99=%dms p99.9=%dms max=%dms",
+            endToEnd.getPercentile(50) / 1000, endToEnd.getPercentile(95) / 1000,
+            endToEnd.getPercentile(99) / 1000, endToEnd.getPercentile(99.9) / 1000, endToEnd.getMax() / 1000));
+        if (standIn != null) {
+            sb.append(String.format("%n  stand-in received %d requests over %d connections, %.1f MB uncompressed",
+                standIn.getRequests(), standIn.getConnections(), standIn.getBytes() / 1024.0 / 1024.0));
+        }
+        LOG.info(sb.toString());
+        SubmitMetrics.report();
+    }
+
+    private static void deleteRecursively(final Path directory) {
+        try (final Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    LOG.warn("Failed to delete " + p + ": " + e);
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Failed to clean up " + directory + ": " + e);
+        }
+    }
+}
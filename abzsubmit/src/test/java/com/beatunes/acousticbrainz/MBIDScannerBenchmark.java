@@ -0,0 +1,104 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link MBIDScanner} with the full parse by {@link JSONParser} it replaced.
+ * Both read the document from disk, just like {@code AcousticBrainzSubmit.extractMBID}.
+ * <p>
+ * By default, the bundled {@code lowlevel.json} is used. To measure with real extractor output,
+ * pass the JSON files written by {@code streaming_extractor_music} via the system property
+ * {@code abzsubmit.bench.json} (separated by {@link File#pathSeparator}).
+ * JMH forks a JVM with the same {@code java.class.path}, so run {@link #main(String[])} with
+ * {@code target/classes}, {@code target/test-classes} and the test dependencies on the classpath.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MBIDScannerBenchmark {
+
+    private static final String FIXTURE = "bundled";
+
+    @Param(FIXTURE)
+    public String json;
+    private Path file;
+    private Path tempFile;
+
+    @Setup
+    public void setUp() throws IOException, ParseException {
+        if (FIXTURE.equals(json)) {
+            tempFile = Files.createTempFile("lowlevel", ".json");
+            try (final InputStream in = MBIDScannerBenchmark.class.getResourceAsStream("lowlevel.json")) {
+                Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            file = tempFile;
+        } else {
+            file = Paths.get(json);
+        }
+        // don't measure something that doesn't work
+        if (!Objects.equals(scanner(), parser())) {
+            throw new IllegalStateException("Scanner and parser disagree on " + file + ": " + scanner() + " != " + parser());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (tempFile != null) Files.deleteIfExists(tempFile);
+    }
+
+    @Benchmark
+    public String scanner() throws IOException {
+        try (final Reader in = Files.newBufferedReader(file)) {
+            return MBIDScanner.scan(in);
+        }
+    }
+
+    @Benchmark
+    public String parser() throws IOException, ParseException {
+        try (final Reader in = Files.newBufferedReader(file)) {
+            final JSONObject document = (JSONObject) new JSONParser().parse(in);
+            final JSONObject tags = (JSONObject) ((JSONObject) document.get("metadata")).get("tags");
+            // usually an array, but merged values may be plain strings
+            final Object mbid = tags.get("musicbrainz_trackid");
+            if (mbid instanceof JSONArray) return ((JSONArray) mbid).isEmpty() ? null : (String) ((JSONArray) mbid).get(0);
+            return (String) mbid;
+        }
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        final String files = System.getProperty("abzsubmit.bench.json");
+        new Runner(new OptionsBuilder()
+            .include(MBIDScannerBenchmark.class.getSimpleName())
+            .param("json", files == null ? new String[]{FIXTURE} : files.split(File.pathSeparator))
+            .build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * MBIDScannerTest. Compares the scanner with a full parse by {@link JSONParser}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class MBIDScannerTest {
+
+    @Test
+    public void testExtractorOutput() throws IOException, ParseException {
+        final String mbid;
+        try (final Reader in = openFixture()) {
+            mbid = MBIDScanner.scan(in);
+        }
+        assertEquals("2B8a3e56-4d20-4b52-a2b3-16e0fe5d6b0c", mbid);
+        try (final Reader in = openFixture()) {
+            assertEquals(parse(in), mbid);
+        }
+    }
+
+    @Test
+    public void testSameAsParser() throws IOException, ParseException {
+        final String[] documents = {
+            "{\"metadata\": {\"tags\": {\"musicbrainz_trackid\": [\"a\", \"b\"]}}}",
+            "{\"metadata\": {\"tags\": {\"musicbrainz_trackid\": \"plain\"}}}",
+            "{ \"metadata\" : { \"version\" : {\"x\": [1, {\"y\": \"}\"}]}, \"tags\" : { \"musicbrainz_trackid\" : [ \"spaced\" ] } } }",
+            "{\"tags\": {\"musicbrainz_trackid\": [\"wrong level\"]}, \"metadata\": {\"tags\": {\"musicbrainz_trackid\": [\"right level\"]}}}",
+            "{\"metadata\": {\"tags\": {\"musicbrainz_trackid\": [\"Gl\\u00f3s\\u00F3li \\\"q\\\" \\\\ \\/ \\t\"]}}}",
+            "{\"lowlevel\": {\"a\\\"b\": -1.5e-05, \"c\": [true, false, null]}, \"metadata\": {\"tags\": {\"musicbrainz_trackid\": [\"after\"]}}}",
+        };
+        for (final String document : documents) {
+            assertEquals(document, parse(new StringReader(document)), MBIDScanner.scan(new StringReader(document)));
+        }
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        assertNull(MBIDScanner.scan(new StringReader("{}")));
+        assertNull(MBIDScanner.scan(new StringReader("{\"metadata\": {\"tags\": {\"artist\": [\"a\"]}}}")));
+        assertNull(MBIDScanner.scan(new StringReader("{\"metadata\": {\"tags\": {\"musicbrainz_trackid\": []}}}")));
+        assertNull(MBIDScanner.scan(new StringReader("{\"metadata\": \"tags\"}")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedUnicodeEscape() throws IOException {
+        MBIDScanner.scan(new StringReader("{\"metadata\": {\"tags\": {\"musicbrainz_trackid\": [\"\\u00zz\"]}}}"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedUnicodeEscape() throws IOException {
+        MBIDScanner.scan(new StringReader("{\"metadata\": {\"tags\": {\"musicbrainz_trackid\": [\"\\u00"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedDocument() throws IOException {
+        MBIDScanner.scan(new StringReader("{\"lowlevel\": {\"mfcc\": [1, 2"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoObject() throws IOException {
+        MBIDScanner.scan(new StringReader("[\"metadata\"]"));
+    }
+
+    private static Reader openFixture() {
+        return new InputStreamReader(MBIDScannerTest.class.getResourceAsStream("lowlevel.json"), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * MBID as found by a full parse.
+     */
+    private static String parse(final Reader in) throws IOException, ParseException {
+        final JSONObject document = (JSONObject) new JSONParser().parse(in);
+        final JSONObject metadata = (JSONObject) document.get("metadata");
+        if (metadata == null) return null;
+        final JSONObject tags = (JSONObject) metadata.get("tags");
+        if (tags == null) return null;
+        final Object mbid = tags.get("musicbrainz_trackid");
+        if (mbid instanceof JSONArray) return ((JSONArray) mbid).isEmpty() ? null : (String) ((JSONArray) mbid).get(0);
+        return (String) mbid;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * OutboxTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class OutboxTest {
+
+    private static final String MBID = "2b8a3e56-4d20-4b52-a2b3-16e0fe5d6b0c";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStartRequeuesRetryableFailures() throws Exception {
+        final Path directory = folder.newFolder("outbox").toPath();
+        final Path failed = Files.createDirectories(directory.resolve("failed"));
+        writeEntry(failed, "1-" + MBID + "-1", "503: Service Unavailable", false);
+        writeEntry(failed, "2-" + MBID + "-2", "400: Bad Request", true);
+        // written before failures were marked
+        writeEntry(failed, "3-" + MBID + "-3", null, false);
+
+        // nothing listens on the discard port, so uploads fail and are retried much later
+        final AcousticBrainzClient client = new AcousticBrainzClient("http://127.0.0.1:9/", "abzsubmit-test");
+        final Outbox outbox = new Outbox(directory, client, 60000L);
+        outbox.start();
+        outbox.shutdown();
+        client.shutdown();
+
+        assertTrue(Files.exists(directory.resolve("1-" + MBID + "-1.json.gz")));
+        assertTrue(Files.exists(directory.resolve("1-" + MBID + "-1.properties")));
+        assertFalse(Files.exists(failed.resolve("1-" + MBID + "-1.json.gz")));
+        assertTrue(Files.exists(directory.resolve("3-" + MBID + "-3.json.gz")));
+        // refused by the server, trying again doesn't help
+        assertTrue(Files.exists(failed.resolve("2-" + MBID + "-2.json.gz")));
+        assertFalse(Files.exists(directory.resolve("2-" + MBID + "-2.json.gz")));
+        assertFalse(outbox.isEmpty());
+    }
+
+    private static void writeEntry(final Path directory, final String name, final String reason, final boolean permanent) throws IOException {
+        Files.write(directory.resolve(name + ".json.gz"), new byte[]{0x1f, (byte) 0x8b});
+        final StringBuilder properties = new StringBuilder("mbid=" + MBID + "\nsongId=1\nsongName=Song\n");
+        if (reason != null) properties.append("reason=").append(reason).append("\npermanent=").append(permanent).append('\n');
+        Files.write(directory.resolve(name + ".properties"), properties.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
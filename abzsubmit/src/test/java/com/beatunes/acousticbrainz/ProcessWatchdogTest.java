@@ -0,0 +1,73 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ProcessWatchdogTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class ProcessWatchdogTest {
+
+    @Test
+    public void testLimits() {
+        final long minute = 60_000L;
+        final ProcessWatchdog longTrack = ProcessWatchdog.forTrack(60 * minute);
+        assertEquals(120 * minute, longTrack.getTimeoutMillis());
+        assertEquals(60 * minute, longTrack.getMaxCpuMillis());
+        // minimums
+        final ProcessWatchdog shortTrack = ProcessWatchdog.forTrack(minute);
+        assertEquals(5 * minute, shortTrack.getTimeoutMillis());
+        assertEquals(2 * minute, shortTrack.getMaxCpuMillis());
+        final ProcessWatchdog track = ProcessWatchdog.forTrack(4 * minute);
+        assertEquals(8 * minute, track.getTimeoutMillis());
+        assertEquals(4 * minute, track.getMaxCpuMillis());
+    }
+
+    @Test
+    public void testParseCpuTime() {
+        // macOS
+        assertEquals(4_560L, ProcessWatchdog.parseCpuTime("0:04.56"));
+        assertEquals(123 * 60_000L + 4_560L, ProcessWatchdog.parseCpuTime("123:04.56"));
+        // Linux and tasklist
+        assertEquals(2 * 3_600_000L + 3 * 60_000L + 4_000L, ProcessWatchdog.parseCpuTime("02:03:04"));
+        assertEquals(86_400_000L + 2 * 3_600_000L + 3 * 60_000L + 4_000L, ProcessWatchdog.parseCpuTime("1-02:03:04"));
+        assertEquals(65_000L, ProcessWatchdog.parseCpuTime("0:01:05"));
+    }
+
+    @Test
+    public void testParsePs() {
+        final Map<Long, long[]> table = ProcessWatchdog.parsePs(Arrays.asList(
+            "    1     0   1234   0:01.50",
+            "  500     1 204800  12:00.00",
+            "  501   500   1024   0:00.25",
+            "garbage"));
+        assertEquals(3, table.size());
+        assertArrayEquals(new long[]{1L, 204800L * 1024L, 720_000L}, table.get(500L));
+        assertArrayEquals(new long[]{500L, 1024L * 1024L, 250L}, table.get(501L));
+    }
+
+    @Test
+    public void testParseTasklist() {
+        assertArrayEquals(new long[]{123456L * 1024L, 65_000L}, ProcessWatchdog.parseTasklist(Collections.singletonList(
+            "\"streaming_extractor_music.exe\",\"1234\",\"Console\",\"1\",\"123,456 K\",\"Running\",\"PC\\user\",\"0:01:05\",\"N/A\"")));
+        // German locale
+        assertArrayEquals(new long[]{123456L * 1024L, 65_000L}, ProcessWatchdog.parseTasklist(Collections.singletonList(
+            "\"streaming_extractor_music.exe\",\"1234\",\"Console\",\"1\",\"123.456 K\",\"Wird ausgef\u00fchrt\",\"PC\\user\",\"0:01:05\",\"N/A\"")));
+        assertArrayEquals(new long[]{0L, 0L}, ProcessWatchdog.parseTasklist(Collections.singletonList(
+            "INFO: No tasks are running which match the specified criteria.")));
+    }
+}
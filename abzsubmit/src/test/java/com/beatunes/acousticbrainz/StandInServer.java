@@ -0,0 +1,281 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the AcousticBrainz API, so that submissions can be exercised
+ * without touching acousticbrainz.org. Mimics {@code POST /api/v1/{mbid}/low-level}
+ * and {@code GET /api/v1/count?recording_ids=...} and can be configured to respond slowly
+ * or with errors. Accepted submissions are counted per MBID and reflected by the count endpoint.
+ * <p>
+ * Run standalone with {@link #main(String[])} and point the plugin at it with
+ * {@code -Dabzsubmit.server=http://localhost:PORT/api/v1/}.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+final class StandInServer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StandInServer.class);
+    private static final String PREFIX = "/api/v1/";
+    // the real server rejects upper case MBIDs with 405
+    private static final Pattern LOW_LEVEL = Pattern.compile("^" + PREFIX + "([0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12})/low-level$");
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, AtomicInteger> submissions = new ConcurrentHashMap<>();
+    private final Set<InetSocketAddress> clients = ConcurrentHashMap.newKeySet();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile double serverErrorRate;
+    private volatile double clientErrorRate;
+    private volatile String serverErrorBody = "{\"message\": \"Internal server error (stand-in)\"}";
+    private volatile String clientErrorBody = "{\"message\": \"Invalid low-level data (stand-in)\"}";
+
+    /**
+     * @param port port to listen on, {@code 0} for any free port
+     * @param threads number of request handler threads
+     * @throws IOException if the server cannot be bound
+     */
+    StandInServer(final int port, final int threads) throws IOException {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "AcousticBrainz Stand-In " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        this.server.setExecutor(executor);
+        this.server.createContext(PREFIX, this::handle);
+    }
+
+    void start() {
+        server.start();
+        if (LOG.isInfoEnabled()) LOG.info("AcousticBrainz stand-in listening at " + getBaseURL());
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return API base URL, suitable for {@link AcousticBrainzClient#AcousticBrainzClient(String)}
+     */
+    String getBaseURL() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PREFIX;
+    }
+
+    /**
+     * Each response is delayed by a random time in the given range.
+     *
+     * @param minMillis minimum latency
+     * @param maxMillis maximum latency
+     */
+    void setLatency(final long minMillis, final long maxMillis) {
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = Math.max(minMillis, maxMillis);
+    }
+
+    /**
+     * @param rate fraction of submissions that are answered with 503
+     */
+    void setServerErrorRate(final double rate) {
+        this.serverErrorRate = rate;
+    }
+
+    /**
+     * @param rate fraction of submissions that are answered with 400
+     */
+    void setClientErrorRate(final double rate) {
+        this.clientErrorRate = rate;
+    }
+
+    /**
+     * @param body body of 5xx responses, may be empty
+     */
+    void setServerErrorBody(final String body) {
+        this.serverErrorBody = body;
+    }
+
+    /**
+     * @param body body of 4xx responses, may be empty
+     */
+    void setClientErrorBody(final String body) {
+        this.clientErrorBody = body;
+    }
+
+    /**
+     * @return number of requests handled so far
+     */
+    long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of distinct client connections so far. Much smaller than
+     * {@link #getRequests()}, if connections are kept alive.
+     */
+    int getConnections() {
+        return clients.size();
+    }
+
+    /**
+     * @return number of decompressed body bytes received so far
+     */
+    long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @param mbid MBID
+     * @return number of accepted submissions for the given MBID
+     */
+    int getSubmissions(final String mbid) {
+        final AtomicInteger count = submissions.get(mbid.toLowerCase());
+        return count == null ? 0 : count.get();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.increment();
+        clients.add(exchange.getRemoteAddress());
+        try {
+            delay();
+            final String path = exchange.getRequestURI().getPath();
+            if ("GET".equals(exchange.getRequestMethod()) && path.equals(PREFIX + "count")) {
+                handleCount(exchange);
+                return;
+            }
+            final Matcher matcher = LOW_LEVEL.matcher(path);
+            if (!matcher.matches()) {
+                send(exchange, path.endsWith("/low-level") ? 405 : 404, "{\"message\": \"Not found\"}");
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "{\"message\": \"Method not allowed\"}");
+                return;
+            }
+            handleSubmit(exchange, matcher.group(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleSubmit(final HttpExchange exchange, final String mbid) throws IOException {
+        final InputStream body = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+            ? new GZIPInputStream(exchange.getRequestBody())
+            : exchange.getRequestBody();
+        final byte[] buf = new byte[8 * 1024];
+        int first = -1;
+        int justRead;
+        try (final InputStream in = body) {
+            while ((justRead = in.read(buf)) != -1) {
+                if (first == -1 && justRead > 0) first = buf[0];
+                bytes.add(justRead);
+            }
+        }
+        final double random = ThreadLocalRandom.current().nextDouble();
+        if (random < serverErrorRate) {
+            send(exchange, 503, serverErrorBody);
+        } else if (random < serverErrorRate + clientErrorRate || first != '{') {
+            send(exchange, 400, clientErrorBody);
+        } else {
+            submissions.computeIfAbsent(mbid, m -> new AtomicInteger()).incrementAndGet();
+            send(exchange, 200, "{\"message\": \"ok\", \"id\": \"" + mbid + "\"}");
+        }
+    }
+
+    private void handleCount(final HttpExchange exchange) throws IOException {
+        final String query = exchange.getRequestURI().getRawQuery();
+        final StringBuilder sb = new StringBuilder("{");
+        if (query != null && query.startsWith("recording_ids=")) {
+            final String ids = URLDecoder.decode(query.substring("recording_ids=".length()), "UTF-8");
+            for (final String id : ids.split(";")) {
+                if (id.isEmpty()) continue;
+                if (sb.length() > 1) sb.append(", ");
+                sb.append('"').append(id.toLowerCase()).append("\": {\"count\": ").append(getSubmissions(id)).append('}');
+            }
+        }
+        sb.append('}');
+        send(exchange, 200, sb.toString());
+    }
+
+    private void delay() throws InterruptedException {
+        final long min = minLatencyMillis;
+        final long max = maxLatencyMillis;
+        final long latency = max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+        if (latency > 0) Thread.sleep(latency);
+    }
+
+    private static void send(final HttpExchange exchange, final int code, final String body) throws IOException {
+        final byte[] b = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, b.length == 0 ? -1 : b.length);
+        if (b.length > 0) {
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(b);
+            }
+        }
+    }
+
+    /**
+     * Runs the stand-in until the JVM is stopped.
+     * Configured with the system properties {@code abzsubmit.standin.port} (default 8080),
+     * {@code .threads}, {@code .minLatency}, {@code .maxLatency} (ms),
+     * {@code .serverErrorRate} and {@code .clientErrorRate} (0 - 1).
+     *
+     * @param args ignored
+     * @throws Exception if the server cannot be started
+     */
+    public static void main(final String[] args) throws Exception {
+        final StandInServer server = fromSystemProperties(Integer.getInteger("abzsubmit.standin.port", 8080));
+        server.start();
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Creates a stand-in configured with the {@code abzsubmit.standin.*} system properties.
+     *
+     * @param port port, {@code 0} for any free port
+     * @return server, not yet started
+     * @throws IOException if the server cannot be bound
+     */
+    static StandInServer fromSystemProperties(final int port) throws IOException {
+        final StandInServer server = new StandInServer(port, Integer.getInteger("abzsubmit.standin.threads", 16));
+        server.setLatency(Long.getLong("abzsubmit.standin.minLatency", 0L), Long.getLong("abzsubmit.standin.maxLatency", 0L));
+        server.setServerErrorRate(Double.parseDouble(System.getProperty("abzsubmit.standin.serverErrorRate", "0")));
+        server.setClientErrorRate(Double.parseDouble(System.getProperty("abzsubmit.standin.clientErrorRate", "0")));
+        return server;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * =================================================
+ * Copyright 2017 tagtraum industries incorporated
+ * All rights reserved.
+ * =================================================
+ */
+package com.beatunes.acousticbrainz;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SubmissionLedgerTest.
+ *
+ * @author <a href="mailto:hs@tagtraum.com">Hendrik Schreiber</a>
+ */
+public class SubmissionLedgerTest {
+
+    private static final String SHA = "cead25079874084f62182a551b7393616cd33d87";
+    private static final String CLAIMED = "2b8a3e56-4d20-4b52-a2b3-16e0fe5d6b0c";
+    private static final String FOUND = "6f1c2a4e-0b7d-4c1e-9a55-3f0d2e8b7c11";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testClaimIsNotSubmission() throws Exception {
+        final SubmissionLedger ledger = new SubmissionLedger(ledgerFile());
+        assertTrue(ledger.claim(CLAIMED, SHA));
+        assertFalse(ledger.claim(CLAIMED, SHA));
+        assertFalse(ledger.contains(CLAIMED, SHA));
+        // e.g. a failed upload
+        ledger.release(CLAIMED, SHA);
+        assertTrue(ledger.claim(CLAIMED, SHA));
+        ledger.close();
+    }
+
+    @Test
+    public void testRecordSurvivesReload() throws Exception {
+        final Path file = ledgerFile();
+        final SubmissionLedger ledger = new SubmissionLedger(file);
+        assertTrue(ledger.claim(CLAIMED, SHA));
+        ledger.record(CLAIMED, SHA);
+        ledger.close();
+        final SubmissionLedger reloaded = new SubmissionLedger(file);
+        assertTrue(reloaded.contains(CLAIMED, SHA));
+        assertFalse(reloaded.claim(CLAIMED, SHA));
+        reloaded.close();
+    }
+
+    @Test
+    public void testTornLastLine() throws Exception {
+        final Path file = ledgerFile();
+        // crashed while writing the timestamp, which still leaves three fields
+        Files.write(file, (CLAIMED + "\t" + SHA + "\t15000").getBytes(StandardCharsets.UTF_8));
+        final SubmissionLedger ledger = new SubmissionLedger(file);
+        ledger.record(FOUND, SHA);
+        ledger.close();
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith(FOUND + "\t" + SHA + "\t"));
+        final SubmissionLedger reloaded = new SubmissionLedger(file);
+        assertTrue(reloaded.contains(FOUND, SHA));
+        reloaded.close();
+    }
+
+    @Test
+    public void testLinkedRecord() throws Exception {
+        final SubmissionLedger ledger = new SubmissionLedger(ledgerFile());
+        assertTrue(ledger.claim(CLAIMED, SHA));
+        assertTrue(ledger.link(CLAIMED, CLAIMED.toUpperCase(), SHA));
+        assertTrue(ledger.link(CLAIMED, FOUND, SHA));
+        assertFalse(ledger.claim(FOUND, SHA));
+        // the outbox reports the found MBID
+        ledger.record(FOUND, SHA);
+        assertTrue(ledger.contains(FOUND, SHA));
+        assertTrue(ledger.contains(CLAIMED, SHA));
+        ledger.close();
+    }
+
+    @Test
+    public void testLinkedRelease() throws Exception {
+        final SubmissionLedger ledger = new SubmissionLedger(ledgerFile());
+        assertTrue(ledger.claim(CLAIMED, SHA));
+        assertTrue(ledger.link(CLAIMED, FOUND, SHA));
+        ledger.release(FOUND, SHA);
+        assertFalse(ledger.contains(CLAIMED, SHA));
+        assertTrue(ledger.claim(CLAIMED, SHA));
+        assertTrue(ledger.claim(FOUND, SHA));
+        ledger.close();
+    }
+
+    @Test
+    public void testLinkToSubmitted() throws Exception {
+        final SubmissionLedger ledger = new SubmissionLedger(ledgerFile());
+        assertTrue(ledger.claim(FOUND, SHA));
+        ledger.record(FOUND, SHA);
+        assertTrue(ledger.claim(CLAIMED, SHA));
+        assertFalse(ledger.link(CLAIMED, FOUND, SHA));
+        // the original claim is still held
+        assertFalse(ledger.claim(CLAIMED, SHA));
+        ledger.release(CLAIMED, SHA);
+        assertFalse(ledger.contains(CLAIMED, SHA));
+        ledger.close();
+    }
+
+    private Path ledgerFile() {
+        return folder.getRoot().toPath().resolve("submitted.tsv");
+    }
+}